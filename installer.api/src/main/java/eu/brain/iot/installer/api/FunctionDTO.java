@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package eu.brain.iot.installer.api;
+
+import java.util.List;
+
+/**
+ * A function to install as part of a batch
+ */
+public class FunctionDTO {
+
+    public String symbolicName;
+
+    public String version;
+
+    /**
+     * the indexes to resolve the function against
+     */
+    public List<String> indexes;
+
+    /**
+     * the requirements of the function, in Require-Capability format
+     */
+    public List<String> requirements;
+}
@@ -21,6 +21,19 @@ public interface FunctionInstaller {
 	Promise<InstallResponseDTO> installFunction(String symbolicName, String version, List<String> indexes, 
     		List<String> requirements, HttpClient client);
 
+	/**
+	 * Install several functions together. The requirements of all of the
+	 * functions are resolved at once and their bundles are downloaded in
+	 * parallel, then installed and started as a single change. If that
+	 * fails each function is installed on its own, so that one bad function
+	 * does not prevent the others from being installed.
+	 *
+	 * @param functions the functions to install
+	 * @param client the client to download bundles with
+	 * @return the result for each function, keyed by symbolic name
+	 */
+	Promise<Map<String, InstallResponseDTO>> installFunctions(List<FunctionDTO> functions, HttpClient client);
+
 	Promise<InstallResponseDTO> updateFunction(String oldSymbolicName, String oldVersion, 
     		String newSymbolicName, String newVersion, List<String> indexes, 
     		List<String> requirements, HttpClient client);
@@ -29,4 +29,10 @@ public class InstallResponseDTO {
      */
     public List<String> messages;
 
+    /**
+     * the time spent in each phase of the request and the bundles fetched,
+     * or <code>null</code> if the request was not processed
+     */
+    public InstallTimingDTO timing;
+
 }
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package eu.brain.iot.installer.api;
+
+/**
+ * Where the time of an install request went, and how much was fetched
+ */
+public class InstallTimingDTO {
+
+    /**
+     * milliseconds the request waited in the installer queue
+     */
+    public long queueMillis;
+
+    /**
+     * milliseconds spent fetching and loading the indexes
+     */
+    public long indexLoadMillis;
+
+    /**
+     * milliseconds spent resolving the requirements
+     */
+    public long resolveMillis;
+
+    /**
+     * milliseconds spent downloading bundles
+     */
+    public long downloadMillis;
+
+    /**
+     * milliseconds spent installing bundles into the framework
+     */
+    public long installMillis;
+
+    /**
+     * milliseconds spent starting the installed bundles
+     */
+    public long startMillis;
+
+    /**
+     * milliseconds from queueing the request to responding to it
+     */
+    public long totalMillis;
+
+    /**
+     * the bundles in the resolution
+     */
+    public int bundlesResolved;
+
+    /**
+     * the bundles downloaded
+     */
+    public int bundlesDownloaded;
+
+    /**
+     * the resolved bundles which were already installed, so were not downloaded
+     */
+    public int bundlesAlreadyInstalled;
+
+    /**
+     * the bytes of bundles downloaded
+     */
+    public long bytesFetched;
+
+    /**
+     * the indexes served from a copy the installer had already loaded,
+     * rather than fetched and loaded in full
+     */
+    public int indexCacheHits;
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package eu.brain.iot.installer.api;
+
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics recorded by one module
+ */
+public class MetricsDTO {
+
+    /**
+     * the module the metrics were recorded by, e.g. installer, resolver or management
+     */
+    public String source;
+
+    /**
+     * the time the snapshot was taken, in milliseconds since the epoch
+     */
+    public long timestamp;
+
+    /**
+     * counts of events since the module started, by metric name
+     */
+    public Map<String, Long> counters;
+
+    /**
+     * values sampled when the snapshot was taken, by metric name
+     */
+    public Map<String, Double> gauges;
+
+    /**
+     * durations of operations since the module started, by metric name
+     */
+    public Map<String, TimerDTO> timers;
+}
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package eu.brain.iot.installer.api;
+
+/**
+ * A service reporting the queue depths, latencies and cache hit rates of a
+ * module. Each module that records metrics registers one, with the
+ * {@link #SOURCE} property naming the module.
+ */
+public interface MetricsProvider {
+
+    /**
+     * The service property naming the module whose metrics are reported
+     */
+    String SOURCE = "metrics.source";
+
+    /**
+     * @return a snapshot of the current metrics
+     */
+    MetricsDTO getMetrics();
+}
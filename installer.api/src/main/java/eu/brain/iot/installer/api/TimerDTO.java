@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package eu.brain.iot.installer.api;
+
+/**
+ * The durations recorded for one kind of operation
+ */
+public class TimerDTO {
+
+    /**
+     * the number of operations timed
+     */
+    public long count;
+
+    /**
+     * the total time in milliseconds of all the operations
+     */
+    public long totalMillis;
+
+    /**
+     * the time in milliseconds of the longest operation
+     */
+    public long maxMillis;
+
+    /**
+     * the time in milliseconds of the most recent operation
+     */
+    public long lastMillis;
+}
@@ -19,9 +19,13 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +38,7 @@ import java.util.stream.Collectors;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.resource.Requirement;
 import org.osgi.resource.Resource;
@@ -53,22 +58,34 @@ import org.osgi.util.promise.Promise;
 import org.osgi.util.promise.PromiseFactory;
 
 import com.paremus.brain.iot.installer.impl.InstallRequest.InstallAction;
+import com.paremus.brain.iot.resolver.index.CompactRepository;
+import com.paremus.brain.iot.resolver.metrics.MetricsRecorder;
 
 import aQute.bnd.header.Parameters;
 import aQute.bnd.http.HttpClient;
-import aQute.bnd.osgi.Processor;
 import aQute.bnd.osgi.resource.CapReqBuilder;
-import aQute.bnd.repository.osgi.OSGiRepository;
 import eu.brain.iot.eventing.api.EventBus;
+import eu.brain.iot.installer.api.FunctionDTO;
 import eu.brain.iot.installer.api.FunctionInstaller;
 import eu.brain.iot.installer.api.InstallResolver;
 import eu.brain.iot.installer.api.InstallResponseDTO;
 import eu.brain.iot.installer.api.InstallResponseDTO.ResponseCode;
+import eu.brain.iot.installer.api.InstallTimingDTO;
+import eu.brain.iot.installer.api.MetricsDTO;
+import eu.brain.iot.installer.api.MetricsProvider;
 
 //Be immediate so we don't stop processing queued events if the service is released
-@Component(configurationPid="eu.brain.iot.BundleInstallerService", immediate=true)
+@Component(configurationPid="eu.brain.iot.BundleInstallerService", immediate=true,
+        property = MetricsProvider.SOURCE + "=installer")
 @Designate(ocd=BundleInstallerImpl.Config.class)
-public class BundleInstallerImpl implements FunctionInstaller {
+public class BundleInstallerImpl implements FunctionInstaller, MetricsProvider {
+
+    // the timers of the phases of an install
+    static final String INDEX_LOAD = "phase.index_load";
+    static final String RESOLVE = "phase.resolve";
+    static final String DOWNLOAD = "phase.download";
+    static final String INSTALL = "phase.install";
+    static final String START = "phase.start";
 
     @Reference(service = LoggerFactory.class, cardinality = ReferenceCardinality.OPTIONAL)
     private FormatterLogger log;
@@ -86,6 +103,8 @@ public class BundleInstallerImpl implements FunctionInstaller {
 
     private final BlockingQueue<InstallRequest> queue = new LinkedBlockingQueue<>();
 
+    private final MetricsRecorder metrics = new MetricsRecorder("installer");
+
     private final PromiseFactory promiseFactory = new PromiseFactory(null);
 
     private BundleContext context;
@@ -93,6 +112,11 @@ public class BundleInstallerImpl implements FunctionInstaller {
     private Thread thread;
 
 	private File httpCacheDir;
+	private File indexSnapshotDir;
+
+	// the parsed indexes, kept between requests and brought up to date from their delta feeds
+	private final Map<URI, CompactRepository> repositories = new HashMap<>();
+	private HttpClient repositoryClient;
 
 	@ObjectClassDefinition(
         name = "Bundle Installer",
@@ -104,10 +128,15 @@ public class BundleInstallerImpl implements FunctionInstaller {
     }
 
 
+    public BundleInstallerImpl() {
+        metrics.gauge("queue.depth", queue::size);
+    }
+
     @Activate
     void activate(Config config, BundleContext context) throws IOException, Exception {
         this.context = context;
         httpCacheDir = context.getDataFile("httpcache");
+        indexSnapshotDir = context.getDataFile("indexes");
 
         start();
     }
@@ -134,6 +163,11 @@ public class BundleInstallerImpl implements FunctionInstaller {
             thread.join(2000);
         } catch (InterruptedException e) {
         }
+
+        synchronized (repositories) {
+            repositories.values().forEach(CompactRepository::close);
+            repositories.clear();
+        }
     }
 
     @Override
@@ -150,7 +184,7 @@ public class BundleInstallerImpl implements FunctionInstaller {
 			dto.sponsor = symbolicName + ":" + ((version == null) ? "0.0.0" : version);
 			dto.client = client;
 			
-			queue.add(dto);
+			enqueue(dto);
 		} catch (Exception e) {
 			response.fail(e);
 		}
@@ -158,6 +192,38 @@ public class BundleInstallerImpl implements FunctionInstaller {
 		return response.getPromise();
 	}
 
+    @Override
+    public Promise<Map<String, InstallResponseDTO>> installFunctions(List<FunctionDTO> functions, HttpClient client) {
+    	InstallRequest batch = new InstallRequest();
+    	batch.action = InstallAction.BATCH;
+    	batch.client = client;
+
+    	Map<String, Promise<InstallResponseDTO>> responses = new LinkedHashMap<>();
+    	for (FunctionDTO f : functions) {
+    		Deferred<InstallResponseDTO> response = promiseFactory.deferred();
+    		InstallRequest dto = new InstallRequest();
+    		dto.action = InstallAction.INSTALL;
+    		if(f.indexes != null) dto.indexes.addAll(f.indexes);
+    		if(f.requirements != null) dto.requirements.addAll(f.requirements);
+    		dto.response = response;
+    		dto.sponsor = f.symbolicName + ":" + ((f.version == null) ? "0.0.0" : f.version);
+    		dto.client = client;
+    		batch.batch.add(dto);
+    		responses.put(f.symbolicName, response.getPromise());
+    	}
+
+    	enqueue(batch);
+
+    	return promiseFactory.all(new ArrayList<>(responses.values())).map(l -> {
+    		Map<String, InstallResponseDTO> result = new LinkedHashMap<>();
+    		int i = 0;
+    		for (String symbolicName : responses.keySet()) {
+    			result.put(symbolicName, l.get(i++));
+    		}
+    		return result;
+    	});
+    }
+
     @Override
     public Promise<InstallResponseDTO> updateFunction(String oldSymbolicName, String oldVersion, 
     		String newSymbolicName, String newVersion, List<String> indexes, 
@@ -174,7 +240,7 @@ public class BundleInstallerImpl implements FunctionInstaller {
     		dto.sponsor = newSymbolicName + ":" + ((newVersion == null) ? "0.0.0" : newVersion);
     		dto.client = client;
     		
-    		queue.add(dto);
+    		enqueue(dto);
     	} catch (Exception e) {
     		response.fail(e);
     	}
@@ -192,7 +258,7 @@ public class BundleInstallerImpl implements FunctionInstaller {
 			dto.response = response;
 			dto.sponsor = symbolicName + ":" + version;
 			
-			queue.add(dto);
+			enqueue(dto);
 		} catch (Exception e) {
 			response.fail(e);
 		}
@@ -218,7 +284,7 @@ public class BundleInstallerImpl implements FunctionInstaller {
 			dto.response = response;
 
             info("Adding reset request to queue");
-			queue.add(dto);
+			enqueue(dto);
 		} catch (Exception e) {
 			response.fail(e);
 		}
@@ -226,8 +292,53 @@ public class BundleInstallerImpl implements FunctionInstaller {
 		return response.getPromise();
 	}
 
+    /**
+     * The queue depth and wait time, the time spent in each phase of an
+     * install, and the number of bundles and bytes downloaded
+     */
+    @Override
+    public MetricsDTO getMetrics() {
+        return metrics.snapshot();
+    }
+
+    private void enqueue(InstallRequest request) {
+        request.queued = System.nanoTime();
+        queue.add(request);
+    }
+
+    /**
+     * Run a phase of an install, recording its duration in the metrics and
+     * in the timing of the request
+     */
+    private <T> T phase(InstallTimingDTO timing, String phase, Callable<T> task) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return task.call();
+        } finally {
+            long millis = metrics.stop(phase, start);
+            switch (phase) {
+                case INDEX_LOAD:
+                    timing.indexLoadMillis += millis;
+                    break;
+                case RESOLVE:
+                    timing.resolveMillis += millis;
+                    break;
+                case DOWNLOAD:
+                    timing.downloadMillis += millis;
+                    break;
+                case INSTALL:
+                    timing.installMillis += millis;
+                    break;
+                case START:
+                    timing.startMillis += millis;
+                    break;
+            }
+        }
+    }
+
     // package access for Mockito
     void sendResponse(ResponseCode code, String message, InstallRequest request) {
+        metrics.increment("responses." + code);
         info("sendResponse: code=%s message=%s\n", code, message);
         // Force a thread switch to release the installer thread
         promiseFactory.executor().execute(() ->
@@ -235,6 +346,7 @@ public class BundleInstallerImpl implements FunctionInstaller {
     }
 
     private void sendResponse(ResponseCode code, List<String> messages, InstallRequest request) {
+        metrics.increment("responses." + code);
         info("sendResponse: code=%s messages=%s\n", code, messages);
         // Force a thread switch to release the installer thread
         promiseFactory.executor().execute(() ->
@@ -266,7 +378,6 @@ public class BundleInstallerImpl implements FunctionInstaller {
     }
 
     private List<String> install(InstallRequest request) throws Exception {
-        final boolean update = request.action.equals(InstallRequest.InstallAction.UPDATE);
         final String sponsor = request.sponsor;
 
         if (sponsor == null || sponsor.isEmpty()) {
@@ -281,54 +392,44 @@ public class BundleInstallerImpl implements FunctionInstaller {
 
         debug("Requirements: " + requirements);
 
-        List<OSGiRepository> indexes = getRepositories(request);
+        InstallTimingDTO timing = request.timing;
+        List<CompactRepository> indexes = phase(timing, INDEX_LOAD, () -> getRepositories(request));
         // resolve the request
-        Map<Resource, String> resolve;
-        try {
-			resolve = resolver.resolveInitial(sponsor, indexes, requirements);
-        } finally {
-        	for(OSGiRepository r : indexes) {
-        		r.close();
-        	}
-        }
+        Map<Resource, String> resolve = phase(timing, RESOLVE,
+                () -> resolver.resolveInitial(sponsor, indexes, requirements));
         List<String> locations = new ArrayList<>(resolve.values());
+        timing.bundlesResolved = resolve.size();
 
         debug("Resolution size: %d", resolve.size());
 
-        final String oldSponsor = request.oldSponsor;
-
         if (resolve.size() == 0) {
             return Collections.singletonList(sponsor + " is already installed");
         }
 
+        // download before changing the framework, so a failed download leaves it untouched
+        File dir = prefetchDir();
+        try {
+            Map<String, File> downloaded = phase(timing, DOWNLOAD,
+                    () -> prefetch(locations, dir, request.client, timing));
+            return install(request, locations, downloaded);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private List<String> install(InstallRequest request, List<String> locations, Map<String, File> downloaded)
+            throws Exception {
+        final boolean update = request.action.equals(InstallRequest.InstallAction.UPDATE);
+        final String sponsor = request.sponsor;
+        final String oldSponsor = request.oldSponsor;
+
         List<String> oldLocs = installer.getLocations(oldSponsor);
 
         // if any error occurs, replay rollbacks to restore framework state
         List<Callable<Void>> rollbacks = new LinkedList<>();
 
         try {
-            if (update) {
-                rollbacks.add(0, () -> {
-                    debug("ROLLBACK stop");
-                    for (String loc : oldLocs) {
-                        Bundle b = context.getBundle(loc);
-                        if (b != null && !isFragment(b)) {
-                            b.start();
-                        }
-                    }
-                    return null;
-                });
-
-                debug("STOP: %s", oldLocs.stream().map(l ->
-                        l.replaceFirst(".*/", "")).collect(Collectors.toList()));
-
-                for (String loc : oldLocs) {
-                    Bundle b = context.getBundle(loc);
-                    if (b != null) {
-                        b.stop();
-                    }
-                }
-            } else {
+            if (!update) {
                 rollbacks.add(0, () -> {
                     debug("ROLLBACK uninstall");
                     List<Bundle> bundles = installer.addLocations(oldSponsor, oldLocs, request.client);
@@ -344,20 +445,18 @@ public class BundleInstallerImpl implements FunctionInstaller {
                 debug("UNINSTALLED: %s", uninstalled);
             }
 
+            // For an update the old bundles keep running until the new ones
+            // are active, so a failure only has to remove the new bundles
             rollbacks.add(0, () -> {
                 debug("ROLLBACK install");
                 installer.removeSponsor(sponsor);
                 return null;
             });
 
-            List<Bundle> installed = installer.addLocations(sponsor, locations, request.client);
+            List<Bundle> installed = phase(request.timing, INSTALL,
+                    () -> installer.addLocations(sponsor, locations, downloaded, request.client));
 
-            for (Bundle b : installed) {
-                if (!isFragment(b)) {
-                    debug("START %s", b);
-                    b.start();
-                }
-            }
+            phase(request.timing, START, () -> start(installed));
 
             if (update) {
                 for (String loc : locations) {
@@ -375,6 +474,25 @@ public class BundleInstallerImpl implements FunctionInstaller {
                 // update OK, we don't want to rollback
                 rollbacks.clear();
 
+                // The new bundles are active, now retire the old ones
+                List<String> retired = oldLocs.stream()
+                        .filter(l -> !locations.contains(l))
+                        .collect(Collectors.toList());
+
+                debug("STOP: %s", retired.stream().map(l ->
+                        l.replaceFirst(".*/", "")).collect(Collectors.toList()));
+
+                for (String loc : retired) {
+                    Bundle b = context.getBundle(loc);
+                    if (b != null && !isFragment(b)) {
+                        try {
+                            b.stop();
+                        } catch (Exception e) {
+                            warn("Failed to stop %s: %s", b, e.getMessage());
+                        }
+                    }
+                }
+
                 List<Bundle> uninstalled = installer.removeSponsor(oldSponsor);
                 debug("UNINSTALLED: %s", uninstalled);
             }
@@ -393,11 +511,182 @@ public class BundleInstallerImpl implements FunctionInstaller {
     }
 
 
+    /**
+     * Install the requests of a batch from one resolution, downloading their
+     * bundles in parallel. If that fails, install each request on its own
+     * so that every request gets its own result.
+     */
+    private void installBatch(InstallRequest batch) {
+        Set<Object> sponsors = installer.getSponsors();
+        List<InstallRequest> requests = new ArrayList<>();
+        for (InstallRequest r : batch.batch) {
+            r.queued = batch.queued;
+            r.timing.queueMillis = batch.timing.queueMillis;
+            if (sponsors.contains(r.sponsor)) {
+                sendResponse(ResponseCode.SUCCESS, r.sponsor + " is already installed", r);
+            } else {
+                requests.add(r);
+            }
+        }
+
+        if (requests.size() > 1) {
+            long start = System.currentTimeMillis();
+            try {
+                Map<String, List<String>> added = installTogether(requests, batch.client, batch.timing);
+                info("Installed %d functions together in %d ms", requests.size(),
+                        System.currentTimeMillis() - start);
+                for (InstallRequest r : requests) {
+                    r.timing = batch.timing;
+                    sendResponse(ResponseCode.SUCCESS, added.get(r.sponsor), r);
+                }
+                return;
+            } catch (Exception e) {
+                warn("Batch install failed, installing one at a time: %s", e.toString());
+            }
+        }
+
+        for (InstallRequest r : requests) {
+            try {
+                sendResponse(ResponseCode.SUCCESS, install(r), r);
+            } catch (BadRequestException e) {
+                sendResponse(ResponseCode.BAD_REQUEST, e.getMessage(), r);
+            } catch (Exception e) {
+                warn("request %s failed: %s", r.sponsor, e.toString());
+                sendResponse(ResponseCode.FAIL, e.toString(), r);
+            }
+        }
+    }
+
+    private Map<String, List<String>> installTogether(List<InstallRequest> requests, HttpClient client,
+            InstallTimingDTO timing) throws Exception {
+        Map<String, List<Requirement>> roots = new LinkedHashMap<>();
+        InstallRequest combined = new InstallRequest();
+        combined.client = client;
+        combined.timing = timing;
+        for (InstallRequest r : requests) {
+            List<Requirement> requirements = getRequirements(r);
+            if (requirements.isEmpty()) {
+                throw new BadRequestException("no requirements in request for " + r.sponsor);
+            }
+            roots.put(r.sponsor, requirements);
+            for (String index : r.indexes) {
+                if (!combined.indexes.contains(index)) {
+                    combined.indexes.add(index);
+                }
+            }
+        }
+
+        List<Requirement> requirements = roots.values().stream()
+                .flatMap(List::stream).collect(Collectors.toList());
+
+        List<CompactRepository> indexes = phase(timing, INDEX_LOAD, () -> getRepositories(combined));
+        Map<Resource, String> resolve = phase(timing, RESOLVE,
+                () -> resolver.resolveInitial("batch" + roots.keySet(), indexes, requirements));
+        debug("Batch resolution size: %d", resolve.size());
+        timing.bundlesResolved = resolve.size();
+
+        Map<String, List<String>> locations = InstallerUtils.attribute(resolve, roots);
+
+        File dir = prefetchDir();
+        try {
+            Map<String, File> downloaded = phase(timing, DOWNLOAD,
+                    () -> prefetch(new LinkedHashSet<>(resolve.values()), dir, client, timing));
+
+            Map<String, List<String>> added = new LinkedHashMap<>();
+            List<Bundle> installed = new ArrayList<>();
+            try {
+                phase(timing, INSTALL, () -> {
+                    for (Map.Entry<String, List<String>> e : locations.entrySet()) {
+                        List<Bundle> bundles = installer.addLocations(e.getKey(), e.getValue(), downloaded, client);
+                        installed.addAll(bundles);
+                        added.put(e.getKey(), bundles.stream().map(b -> b.toString()).collect(Collectors.toList()));
+                    }
+                    return null;
+                });
+
+                phase(timing, START, () -> start(installed));
+            } catch (Exception e) {
+                debug("ROLLBACK batch");
+                for (String sponsor : locations.keySet()) {
+                    installer.removeSponsor(sponsor);
+                }
+                throw e;
+            }
+            return added;
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private Void start(List<Bundle> installed) throws BundleException {
+        for (Bundle b : installed) {
+            if (!isFragment(b)) {
+                debug("START %s", b);
+                b.start();
+            }
+        }
+        return null;
+    }
+
+    private File prefetchDir() throws IOException {
+        return httpCacheDir == null ? Files.createTempDirectory("prefetch").toFile()
+                : Files.createTempDirectory(httpCacheDir.toPath(), "prefetch").toFile();
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Download the remote bundle locations in parallel, skipping those
+     * already installed
+     *
+     * @return the downloaded files, keyed by location
+     */
+    private Map<String, File> prefetch(Collection<String> locations, File dir, HttpClient client,
+            InstallTimingDTO timing) throws Exception {
+        Map<String, Promise<File>> downloads = new LinkedHashMap<>();
+        int i = 0;
+        for (String location : locations) {
+            URI uri = new URI(location);
+            if (context != null && context.getBundle(location) != null) {
+                metrics.increment("download.skipped");
+                timing.bundlesAlreadyInstalled++;
+            } else if ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) {
+                downloads.put(location, client.build().useCache(new File(dir, String.valueOf(i++))).async(uri));
+            }
+        }
+
+        Map<String, File> files = new HashMap<>();
+        for (Map.Entry<String, Promise<File>> e : downloads.entrySet()) {
+            Throwable failure = e.getValue().getFailure();
+            if (failure != null) {
+                throw new IOException("Unable to download " + e.getKey(), failure);
+            }
+            File file = e.getValue().getValue();
+            if (file != null) {
+                metrics.increment("download.bundles");
+                metrics.add("download.bytes", file.length());
+                timing.bundlesDownloaded++;
+                timing.bytesFetched += file.length();
+                files.put(e.getKey(), file);
+            }
+        }
+        debug("Downloaded %d bundles", files.size());
+        return files;
+    }
+
     private static boolean isFragment(Bundle bundle) {
         return (bundle.adapt(BundleRevision.class).getTypes() & BundleRevision.TYPE_FRAGMENT) > 0;
     }
 
-    private List<OSGiRepository> getRepositories(InstallRequest request) throws Exception  {
+    private List<CompactRepository> getRepositories(InstallRequest request) throws Exception  {
 
     	if (request.indexes == null || request.indexes.isEmpty()) {
             throw new BadRequestException("no indexes in request");
@@ -412,26 +701,39 @@ public class BundleInstallerImpl implements FunctionInstaller {
             throw new BadRequestException("indexes contains invalid URI: " + e);
         }
 
-    	Processor processor = new Processor();
-    	processor.addBasicPlugin(request.client);
-    	
-    	List<OSGiRepository> repositories = new ArrayList<>(indexes.size());
-		for(URI index : indexes) {
-			OSGiRepository repo = new OSGiRepository();
-			repo.setReporter(processor);
-			repo.setRegistry(processor);
-
-			Map<String, String> props = new HashMap<>();
-			props.put("name", "Repository for " + index);
-			props.put("locations", index.toString());
-			props.put("cache", httpCacheDir.getAbsolutePath());
-
-			repo.setProperties(props);
-
-			repositories.add(repo);
-		}
+    	List<CompactRepository> result = new ArrayList<>(indexes.size());
+    	synchronized (repositories) {
+    		if (request.client != repositoryClient) {
+    			repositories.values().forEach(CompactRepository::close);
+    			repositories.clear();
+    			repositoryClient = request.client;
+    		}
+
+    		for(URI index : indexes) {
+    			CompactRepository repo = repositories.get(index);
+    			if (repo == null) {
+    				repo = new CompactRepository("Repository for " + index, Collections.singletonList(index),
+    						request.client, httpCacheDir, indexSnapshotDir, CompactRepository.DEFAULT_MAX_STALE);
+    				// load it now, so that the time is not counted as resolving
+    				repo.size();
+    			} else {
+    				// apply the index's delta feed, if it has one
+    				CompactRepository loaded = repo;
+    				try {
+    					repo = repo.update();
+    				} catch (IllegalStateException e) {
+    					warn("Unable to update the index %s, using the copy already loaded: %s", index, e.getMessage());
+    				}
+    				if (repo == loaded || repo.changesSince(loaded) != null) {
+    					request.timing.indexCacheHits++;
+    				}
+    			}
+    			repositories.put(index, repo);
+    			result.add(repo);
+    		}
+    	}
 
-		return repositories;
+		return result;
     }
 
     List<Requirement> getRequirements(InstallRequest request) throws BadRequestException {
@@ -500,6 +802,8 @@ public class BundleInstallerImpl implements FunctionInstaller {
 
                 try {
                     request = queue.take();
+                    request.timing.queueMillis = metrics.stop("queue.wait", request.queued);
+                    metrics.increment("requests." + request.action);
                     debug("\n\nRequest: action=%s sponsor=%s",
                             request.action, request.sponsor);
 
@@ -513,6 +817,10 @@ public class BundleInstallerImpl implements FunctionInstaller {
                             sendResponse(ResponseCode.SUCCESS, added, request);
                             break;
 
+                        case BATCH:
+                            installBatch(request);
+                            break;
+
                         case UNINSTALL:
                         case RESET:
                             List<String> removed = uninstall(request);
@@ -16,8 +16,10 @@ import org.osgi.framework.BundleException;
 
 import aQute.bnd.http.HttpClient;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -55,6 +57,23 @@ public interface FrameworkInstaller {
      */
     List<Bundle> addLocations(Object sponsor, List<String> bundleLocations, HttpClient client) throws BundleException, IOException;
 
+    /**
+     * As {@link #addLocations(Object, List, HttpClient)}, but bundles whose
+     * location has already been downloaded are installed from the
+     * downloaded file rather than fetched again.
+     *
+     * @param sponsor The object representing the "owner" of this installation
+     * @param bundleLocations The URIs to install and/or sponsor
+     * @param downloaded The files already downloaded, keyed by location
+     * @param client The Http Client to use when downloading other bundles
+     *
+     * @return The list of bundles actually installed by this operation
+     * @throws BundleException
+     * @throws IOException
+     */
+    List<Bundle> addLocations(Object sponsor, List<String> bundleLocations, Map<String, File> downloaded,
+            HttpClient client) throws BundleException, IOException;
+
     /**
      * Remove bundles associated with the specified sponsor object.
      *
@@ -12,6 +12,8 @@ package com.paremus.brain.iot.installer.impl;
 
 import static java.util.stream.Collectors.toSet;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -58,7 +60,13 @@ public class FrameworkInstallerImpl implements FrameworkInstaller {
     }
 
     @Override
-    public synchronized List<Bundle> addLocations(Object sponsor, List<String> bundleLocations, HttpClient client) throws BundleException, IOException {
+    public List<Bundle> addLocations(Object sponsor, List<String> bundleLocations, HttpClient client) throws BundleException, IOException {
+        return addLocations(sponsor, bundleLocations, Collections.emptyMap(), client);
+    }
+
+    @Override
+    public synchronized List<Bundle> addLocations(Object sponsor, List<String> bundleLocations,
+            Map<String, File> downloaded, HttpClient client) throws BundleException, IOException {
         List<Bundle> installed = new ArrayList<>(bundleLocations.size());
 
         for (String location : bundleLocations) {
@@ -74,7 +82,9 @@ public class FrameworkInstallerImpl implements FrameworkInstaller {
                 // No existing bundle with that location. Install it and add the sponsor.
                 try {
                     URI locationUri = new URI(location);
-                    try (InputStream stream = client.connect(locationUri.toURL())) {
+                    File file = downloaded.get(location);
+                    try (InputStream stream = file != null ? new FileInputStream(file)
+                            : client.connect(locationUri.toURL())) {
                         if (log != null)
                             log.info("installing %s", locationUri);
                         Bundle bundle = this.context.installBundle(location, stream);
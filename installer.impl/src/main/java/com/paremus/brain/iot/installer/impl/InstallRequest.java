@@ -19,6 +19,7 @@ import org.osgi.util.promise.Deferred;
 
 import aQute.bnd.http.HttpClient;
 import eu.brain.iot.installer.api.InstallResponseDTO;
+import eu.brain.iot.installer.api.InstallTimingDTO;
 
 /**
  * The event that can be used to install or update bundles.
@@ -48,6 +49,12 @@ public class InstallRequest {
          */
         UPDATE,
 
+        /**
+         * Install the smart behaviours of the {@link InstallRequest#batch}
+         * together, from a single resolution.
+         */
+        BATCH,
+
         /**
          * Uninstall the specified smart behaviour.
          */
@@ -88,4 +95,20 @@ public class InstallRequest {
 	 */
 	public HttpClient client;
 
+	/**
+	 * The install requests to process together if this is a Batch, each
+	 * with its own response
+	 */
+	public List<InstallRequest> batch = new ArrayList<>();
+
+	/**
+	 * The {@link System#nanoTime()} the request was queued at
+	 */
+	public long queued;
+
+	/**
+	 * The time spent in each phase of the request, and the bundles fetched
+	 */
+	public InstallTimingDTO timing = new InstallTimingDTO();
+
 }
@@ -11,14 +11,24 @@
 package com.paremus.brain.iot.installer.impl;
 
 import aQute.bnd.osgi.resource.RequirementBuilder;
+import aQute.bnd.osgi.resource.ResourceUtils;
 import eu.brain.iot.installer.api.InstallResponseDTO;
 import org.osgi.framework.VersionRange;
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.namespace.implementation.ImplementationNamespace;
 import org.osgi.resource.Namespace;
 import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class InstallerUtils {
 
@@ -26,9 +36,61 @@ public class InstallerUtils {
         InstallResponseDTO event = new InstallResponseDTO();
         event.code = code;
         event.messages = messages;
+        if (installRequest != null && installRequest.timing != null) {
+            event.timing = installRequest.timing;
+            if (installRequest.queued != 0) {
+                event.timing.totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - installRequest.queued);
+            }
+        }
         return event;
     }
 
+    /**
+     * Work out which of the resolved resources each sponsor needs, by following
+     * the requirements of the sponsor's root requirements through the resolution.
+     * Resources which can't be traced to a sponsor are given to every sponsor.
+     *
+     * @param resolution the combined resolution, mapped to the locations to install from
+     * @param roots the root requirements of each sponsor
+     * @return the locations each sponsor needs, in resolution order
+     */
+    public static Map<String, List<String>> attribute(Map<Resource, String> resolution,
+            Map<String, List<Requirement>> roots) {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        Set<Resource> attributed = new HashSet<>();
+
+        for (Map.Entry<String, List<Requirement>> e : roots.entrySet()) {
+            Set<Resource> closure = new HashSet<>();
+            Deque<Requirement> todo = new ArrayDeque<>(e.getValue());
+            while (!todo.isEmpty()) {
+                Requirement req = todo.poll();
+                for (Resource resource : resolution.keySet()) {
+                    if (!closure.contains(resource) && ResourceUtils.matches(req, resource)) {
+                        closure.add(resource);
+                        todo.addAll(resource.getRequirements(null));
+                    }
+                }
+            }
+            attributed.addAll(closure);
+            result.put(e.getKey(), resolution.entrySet().stream()
+                    .filter(r -> closure.contains(r.getKey()))
+                    .map(Map.Entry::getValue)
+                    .distinct()
+                    .collect(Collectors.toList()));
+        }
+
+        List<String> unattributed = resolution.entrySet().stream()
+                .filter(r -> !attributed.contains(r.getKey()))
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+        if (!unattributed.isEmpty()) {
+            for (List<String> locations : result.values()) {
+                locations.addAll(unattributed);
+            }
+        }
+        return result;
+    }
+
     public static Requirement bundleRequirement(String symbolicName, VersionRange range) {
         return createRequirement(BundleNamespace.BUNDLE_NAMESPACE, symbolicName, range, BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE);
     }
@@ -12,6 +12,8 @@ package com.paremus.brain.iot.installer.impl;
 
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -33,6 +35,7 @@ import com.paremus.brain.iot.installer.impl.BundleInstallerImpl.Config;
 import aQute.bnd.http.HttpClient;
 import eu.brain.iot.installer.api.InstallResponseDTO;
 import eu.brain.iot.installer.api.InstallResponseDTO.ResponseCode;
+import eu.brain.iot.installer.api.MetricsDTO;
 
 
 public class BundleInstallerImplTest {
@@ -95,4 +98,30 @@ public class BundleInstallerImplTest {
     	assertTrue(value.messages.toString(), value.messages.stream().anyMatch(s -> s.contains("indexes contains invalid")));
     }
 
+    @Test
+    public void testTimingInResponse() throws Exception {
+    	InstallResponseDTO value = impl.installFunction("foo", "1.0.0",  singletonList("c:\\invalid"),
+    			singletonList(IDENTITY_REQUIREMENT), client).timeout(1000).getValue();
+
+    	assertNotNull(value.timing);
+    	assertEquals(0, value.timing.bundlesResolved);
+    	assertEquals(0, value.timing.bytesFetched);
+    	assertTrue(value.timing.totalMillis >= value.timing.queueMillis + value.timing.indexLoadMillis);
+    }
+
+    @Test
+    public void testMetricsRecorded() throws Exception {
+    	impl.installFunction("foo", "1.0.0",  singletonList("c:\\invalid"), singletonList(IDENTITY_REQUIREMENT), client)
+    			.timeout(1000).getValue();
+
+    	MetricsDTO metrics = impl.getMetrics();
+    	assertEquals("installer", metrics.source);
+    	assertEquals(Long.valueOf(1), metrics.counters.get("requests.INSTALL"));
+    	assertEquals(Long.valueOf(1), metrics.counters.get("responses.BAD_REQUEST"));
+    	assertEquals(1, metrics.timers.get("queue.wait").count);
+    	assertEquals(1, metrics.timers.get(BundleInstallerImpl.INDEX_LOAD).count);
+    	assertNull(metrics.timers.get(BundleInstallerImpl.RESOLVE));
+    	assertEquals(0, metrics.gauges.get("queue.depth"), 0);
+    }
+
 }
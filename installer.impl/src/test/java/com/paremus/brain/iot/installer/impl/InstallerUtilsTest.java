@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.installer.impl;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.osgi.resource.CapReqBuilder;
+import aQute.bnd.osgi.resource.ResourceBuilder;
+
+public class InstallerUtilsTest {
+
+    @Test
+    public void testAttribute() throws Exception {
+        Resource a = resource("a", "(osgi.wiring.package=p)");
+        Resource b = resource("b", null, "p");
+        Resource c = resource("c", "(osgi.wiring.package=p)");
+        Resource d = resource("d", null);
+
+        Map<Resource, String> resolution = new LinkedHashMap<>();
+        resolution.put(a, "file:a.jar");
+        resolution.put(b, "file:b.jar");
+        resolution.put(c, "file:c.jar");
+        resolution.put(d, "file:d.jar");
+
+        Map<String, List<Requirement>> roots = new LinkedHashMap<>();
+        roots.put("one:1", singletonList(identity("a")));
+        roots.put("two:1", singletonList(identity("c")));
+
+        Map<String, List<String>> attributed = InstallerUtils.attribute(resolution, roots);
+
+        // the shared package provider goes to both, d can't be traced so goes to both
+        assertEquals(Arrays.asList("file:a.jar", "file:b.jar", "file:d.jar"), attributed.get("one:1"));
+        assertEquals(Arrays.asList("file:b.jar", "file:c.jar", "file:d.jar"), attributed.get("two:1"));
+    }
+
+    private static Requirement identity(String name) throws Exception {
+        return new CapReqBuilder("osgi.identity")
+                .addDirective("filter", "(osgi.identity=" + name + ")")
+                .buildSyntheticRequirement();
+    }
+
+    private static Resource resource(String name, String requires, String... exports) throws Exception {
+        ResourceBuilder rb = new ResourceBuilder();
+        rb.addCapability(new CapReqBuilder("osgi.identity").addAttribute("osgi.identity", name));
+        for (String p : exports) {
+            rb.addCapability(new CapReqBuilder("osgi.wiring.package").addAttribute("osgi.wiring.package", p));
+        }
+        if (requires != null) {
+            rb.addRequirement(new CapReqBuilder("osgi.wiring.package").addDirective("filter", requires));
+        }
+        return rb.build();
+    }
+}
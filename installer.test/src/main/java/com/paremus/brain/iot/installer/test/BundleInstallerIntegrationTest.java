@@ -26,18 +26,24 @@ import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
 import org.osgi.service.cm.Configuration;
 import org.osgi.util.promise.Promise;
 
@@ -50,6 +56,7 @@ import aQute.bnd.osgi.resource.CapReqBuilder;
 import aQute.bnd.osgi.resource.ResourceUtils;
 import eu.brain.iot.eventing.api.EventBus;
 import eu.brain.iot.eventing.api.SmartBehaviour;
+import eu.brain.iot.installer.api.FunctionDTO;
 import eu.brain.iot.installer.api.FunctionInstaller;
 import eu.brain.iot.installer.api.InstallResponseDTO;
 import eu.brain.iot.installer.api.InstallResponseDTO.ResponseCode;
@@ -256,21 +263,49 @@ public class BundleInstallerIntegrationTest implements SmartBehaviour<Management
         pause("bad update example-2");
 
         /*
-         * update example-2
+         * update example-2, measuring how long the behaviour is not running
          */
-        promise = installer.updateFunction("Install-Example-1", "1", "Install-Example-2", "2", index2, 
-        		asList(createBundleRequirement("com.paremus.brain.iot.example.behaviour.impl", "0.0.2"),
-        				createBundleRequirement("com.paremus.brain.iot.example.light.impl", "0.0.2"),
-        				createBundleRequirement("com.paremus.brain.iot.example.sensor.impl", "(0.0.2,0.0.3]")),
-        		client);
-        
-        response = promise.timeout(10000).getValue();
+        String behaviourBSN = "com.paremus.brain.iot.example.behaviour.impl";
+        AtomicLong oldStopping = new AtomicLong();
+        AtomicLong newStarted = new AtomicLong();
+        SynchronousBundleListener swapListener = e -> {
+            if (!behaviourBSN.equals(e.getBundle().getSymbolicName())) {
+                return;
+            }
+            boolean isNew = e.getBundle().getVersion().compareTo(new Version(0, 0, 2)) >= 0;
+            if (e.getType() == BundleEvent.STOPPING && !isNew) {
+                oldStopping.compareAndSet(0, System.nanoTime());
+            } else if (e.getType() == BundleEvent.STARTED && isNew) {
+                newStarted.compareAndSet(0, System.nanoTime());
+            }
+        };
+        context.addBundleListener(swapListener);
+
+        try {
+            promise = installer.updateFunction("Install-Example-1", "1", "Install-Example-2", "2", index2, 
+            		asList(createBundleRequirement(behaviourBSN, "0.0.2"),
+            				createBundleRequirement("com.paremus.brain.iot.example.light.impl", "0.0.2"),
+            				createBundleRequirement("com.paremus.brain.iot.example.sensor.impl", "(0.0.2,0.0.3]")),
+            		client);
+
+            response = promise.timeout(10000).getValue();
+        } finally {
+            context.removeBundleListener(swapListener);
+        }
         TestUtils.listBundles(context);
 
         assertEquals(ResponseCode.SUCCESS, response.code);
         assertEquals(singletonMap("Install-Example-2", "2"), installer.listInstalledFunctions());
         int added2 = response.messages.size();
         assertEquals("update 3 changed bundles", 3, added2);
+
+        assertTrue("new behaviour should have started", newStarted.get() != 0);
+        assertTrue("old behaviour should have stopped", oldStopping.get() != 0);
+        long downtime = Math.max(0, newStarted.get() - oldStopping.get());
+        System.err.printf("TEST update downtime=%d us, overlap=%d us\n",
+        		TimeUnit.NANOSECONDS.toMicros(downtime),
+        		TimeUnit.NANOSECONDS.toMicros(Math.max(0, oldStopping.get() - newStarted.get())));
+        assertEquals("new behaviour should start before the old one stops", 0, downtime);
         pause("update example-2");
 
 
@@ -296,6 +331,70 @@ public class BundleInstallerIntegrationTest implements SmartBehaviour<Management
 
     }
 
+    @Test
+    public void testInstallFunctions() throws Exception {
+        File repo1 = new File(resourceDir, "index-0.0.1.xml");
+        assertTrue("index-0.0.1.xml not found", repo1.exists());
+        List<String> index1 = Collections.singletonList(repo1.toURI().toString());
+
+        final int initialBundles = context.getBundles().length;
+
+        FunctionDTO light = new FunctionDTO();
+        light.symbolicName = "Light";
+        light.version = "1";
+        light.indexes = index1;
+        light.requirements = asList(createBundleRequirement("com.paremus.brain.iot.example.light.impl", "0.0.1"));
+
+        FunctionDTO sensor = new FunctionDTO();
+        sensor.symbolicName = "Sensor";
+        sensor.version = "1";
+        sensor.indexes = index1;
+        sensor.requirements = asList(createBundleRequirement("com.paremus.brain.iot.example.sensor.impl", "(0.0.1,0.0.2]"));
+
+        FunctionDTO missing = new FunctionDTO();
+        missing.symbolicName = "Missing";
+        missing.version = "1";
+        missing.indexes = index1;
+        missing.requirements = asList(createBundleRequirement("com.paremus.brain.iot.example.behaviour.impl", "9.9.9"));
+
+        /*
+         * the batch can't resolve as a whole, so each function gets its own result
+         */
+        long start = System.currentTimeMillis();
+        Map<String, InstallResponseDTO> responses = installer.installFunctions(asList(light, sensor, missing), client)
+                .timeout(20000).getValue();
+        System.err.printf("TEST batch install took %d ms\n", System.currentTimeMillis() - start);
+
+        assertEquals(ResponseCode.SUCCESS, responses.get("Light").code);
+        assertEquals(ResponseCode.SUCCESS, responses.get("Sensor").code);
+        assertEquals(ResponseCode.FAIL, responses.get("Missing").code);
+
+        installer.resetNode().timeout(10000).getValue();
+
+        /*
+         * the functions install together
+         */
+        start = System.currentTimeMillis();
+        responses = installer.installFunctions(asList(light, sensor), client).timeout(20000).getValue();
+        System.err.printf("TEST batch install took %d ms\n", System.currentTimeMillis() - start);
+
+        assertEquals(ResponseCode.SUCCESS, responses.get("Light").code);
+        assertEquals(ResponseCode.SUCCESS, responses.get("Sensor").code);
+        Map<String, String> expected = new HashMap<>();
+        expected.put("Light", "1");
+        expected.put("Sensor", "1");
+        assertEquals(expected, installer.listInstalledFunctions());
+
+        /*
+         * uninstalling one function leaves the bundles the other needs
+         */
+        installer.uninstallFunction("Light", "1").timeout(10000).getValue();
+        assertEquals(singletonMap("Sensor", "1"), installer.listInstalledFunctions());
+
+        installer.resetNode().timeout(10000).getValue();
+        assertEquals("RESET should remove all added bundles", initialBundles, context.getBundles().length);
+    }
+
     @Test
     public void testMarketplaceIndex() throws Exception {
     	
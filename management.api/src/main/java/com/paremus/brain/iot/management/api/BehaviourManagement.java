@@ -10,6 +10,9 @@
 
 package com.paremus.brain.iot.management.api;
 
+import org.osgi.util.promise.Promise;
+import org.osgi.util.pushstream.PushStream;
+
 import eu.brain.iot.installer.api.BehaviourDTO;
 
 import java.util.Collection;
@@ -24,12 +27,53 @@ public interface BehaviourManagement {
 	 */
     Collection<BehaviourDTO> findBehaviours(String ldapFilter) throws Exception;
 
+    /**
+     * Find the behaviours in the known indexes one page at a time. Results
+     * are ordered by bundle and version, so a continuation stays valid if
+     * the indexes change between pages.
+     * @param ldapFilter the filter, or <code>null</code> for all behaviours
+     * @param limit the maximum number of behaviours to return
+     * @param continuation the continuation of the previous page, or
+     *        <code>null</code> for the first page
+     * @return the page of behaviours
+     * @throws Exception
+     */
+    BehaviourPageDTO findBehaviours(String ldapFilter, int limit, String continuation) throws Exception;
+
+    /**
+     * Stream the behaviours in the known indexes, ordered by bundle and
+     * version. Matches are found as the stream is consumed.
+     * @param ldapFilter the filter, or <code>null</code> for all behaviours
+     * @return a stream of the matching behaviours
+     * @throws Exception
+     */
+    PushStream<BehaviourDTO> streamBehaviours(String ldapFilter) throws Exception;
+
     /**
      * Install the named behaviour
      * @param behaviour
-     * @param targetNode
+     * @param targetNode the node to install on, or <code>null</code> to use
+     *        a node already known to host the behaviour, falling back to this node
      */
     void installBehaviour(BehaviourDTO behaviour, String targetNode);
+
+    /**
+     * Replace the installed version of the named behaviour with the given
+     * version. The new version is started before the old one is stopped.
+     * @param behaviour the version to update to
+     * @param targetNode the node to update
+     */
+    void updateBehaviour(BehaviourDTO behaviour, String targetNode);
+
+    /**
+     * Install or update the named behaviour on many nodes, in waves and with
+     * a bounded number of nodes installing at once
+     * @param behaviour the behaviour to roll out
+     * @param rollout the target nodes and the rollout limits
+     * @return a promise resolved with the result for each node once the
+     *         rollout completes or is aborted
+     */
+    Promise<RolloutResultDTO> rolloutBehaviour(BehaviourDTO behaviour, RolloutRequestDTO rollout);
     
     /**
      * Uninstall the named behaviour
@@ -48,4 +92,45 @@ public interface BehaviourManagement {
      * Clear the blacklist on this Bundle Management Service
      */
     void clearBlacklist();
+
+    /**
+     * Get the event types whose unhandled events are currently ignored
+     * @return one entry per blacklisted event type
+     */
+    Collection<BlacklistEntryDTO> getBlacklist();
+
+    /**
+     * Get the occupancy of the buffers holding unhandled events while
+     * a consumer for them is being installed
+     * @return one entry per event type currently being buffered
+     */
+    Collection<EventBufferDTO> getEventBuffers();
+
+    /**
+     * Get the number of management requests in flight, and how many have
+     * been abandoned because they did not complete in time
+     * @return the current metrics
+     */
+    ManagementMetricsDTO getMetrics();
+
+    /**
+     * Get the known placements of installed behaviours, learned from the
+     * install and uninstall responses of all nodes
+     * @return one entry per behaviour and node
+     */
+    Collection<PlacementDTO> getPlacements();
+
+    /**
+     * Get the startup state of this Bundle Management Service. The service
+     * is registered before the marketplace indexes have been loaded.
+     * @return the current readiness
+     */
+    ReadinessDTO getReadiness();
+
+    /**
+     * Get the health of each marketplace index loaded by this Bundle
+     * Management Service
+     * @return one entry per index
+     */
+    Collection<IndexHealthDTO> getIndexHealth();
 }
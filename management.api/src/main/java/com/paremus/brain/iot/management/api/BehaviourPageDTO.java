@@ -0,0 +1,27 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+package com.paremus.brain.iot.management.api;
+
+import java.util.List;
+
+import eu.brain.iot.installer.api.BehaviourDTO;
+
+/**
+ * One page of behaviour search results, ordered by bundle and version
+ */
+public class BehaviourPageDTO {
+
+    public List<BehaviourDTO> behaviours;
+
+    /**
+     * the token to pass to get the next page, or <code>null</code> if this is the last page
+     */
+    public String continuation;
+}
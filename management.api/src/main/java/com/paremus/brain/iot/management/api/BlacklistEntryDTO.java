@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+/**
+ * Why unhandled events of one type are currently being ignored
+ */
+public class BlacklistEntryDTO {
+    /**
+     * reasons for ignoring an event type
+     */
+    public enum Reason {
+        /**
+         * a consumer was installed, the next unhandled event will be blacklisted
+         */
+        INSTALLED,
+
+        /**
+         * events were still unhandled after installing a consumer
+         */
+        CONSUMER_NOT_CONFIGURED,
+
+        /**
+         * no node offered to install a consumer
+         */
+        NO_HOSTS,
+
+        /**
+         * the chosen node failed to install a consumer
+         */
+        INSTALL_FAILED;
+    }
+
+    public String eventType;
+
+    public Reason reason;
+
+    public String message;
+
+    /**
+     * the number of times the event type has been blacklisted without a
+     * successful install in between
+     */
+    public int strikes;
+
+    /**
+     * the time the entry was created, in milliseconds since the epoch
+     */
+    public long since;
+
+    /**
+     * the time the entry expires, in milliseconds since the epoch, or
+     * {@link Long#MAX_VALUE} if it only expires when the consumer is uninstalled
+     */
+    public long expires;
+}
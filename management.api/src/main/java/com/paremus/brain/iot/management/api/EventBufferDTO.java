@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+/**
+ * The occupancy of the buffer holding unhandled events of one type
+ */
+public class EventBufferDTO {
+
+    public String eventType;
+
+    /**
+     * events held in memory
+     */
+    public int buffered;
+
+    /**
+     * events written to the spill segment
+     */
+    public int spilled;
+
+    /**
+     * the number of events that can be held in memory
+     */
+    public int capacity;
+
+    /**
+     * events discarded because the buffer was full
+     */
+    public long dropped;
+}
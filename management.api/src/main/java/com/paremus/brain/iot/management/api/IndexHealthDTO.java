@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+package com.paremus.brain.iot.management.api;
+
+/**
+ * The health of one marketplace index
+ */
+public class IndexHealthDTO {
+
+    public enum State {
+        /**
+         * the last load of the index succeeded
+         */
+        HEALTHY,
+
+        /**
+         * recent loads failed, the last good copy of the index, if any, is served
+         */
+        FAILING,
+
+        /**
+         * the index failed too many times in a row and is not being fetched
+         * until its retry interval has passed, the last good copy, if any,
+         * is served
+         */
+        OPEN;
+    }
+
+    public String index;
+
+    public State state;
+
+    /**
+     * the number of consecutive failed loads
+     */
+    public int failures;
+
+    /**
+     * the time of the last successful load, in milliseconds since the epoch, or 0
+     */
+    public long lastSuccess;
+
+    /**
+     * the time of the last failed load, in milliseconds since the epoch, or 0
+     */
+    public long lastFailure;
+
+    /**
+     * the time the last successful load took, in milliseconds
+     */
+    public long latency;
+
+    /**
+     * the number of resources in the copy being served, or -1 if there is none
+     */
+    public int resources;
+
+    /**
+     * the reason for the last failure, if the index is not healthy
+     */
+    public String message;
+}
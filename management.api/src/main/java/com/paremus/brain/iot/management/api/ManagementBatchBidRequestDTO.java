@@ -0,0 +1,23 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+import java.util.List;
+
+/**
+ * Several bid requests sent together, so that each node can answer all of
+ * them from a single resolution. Each request in the batch is answered with
+ * its own {@link ManagementResponseDTO}.
+ */
+public class ManagementBatchBidRequestDTO extends ManagementBidRequestDTO {
+
+    public List<ManagementBidRequestDTO> requests;
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+/**
+ * A management event used to agree which Behaviour Management Service runs
+ * the bid round for an unhandled event type
+ */
+public class ManagementClaimDTO extends TargettedManagementDTO {
+    /**
+     * Set of possible claim actions
+     */
+    public enum ClaimAction {
+        /**
+         * Ask the target node, which owns the event type, to run the bid round
+         */
+        REQUEST,
+
+        /**
+         * The source node is running the bid round, other nodes should wait
+         * for it until the lease expires
+         */
+        CLAIM,
+
+        /**
+         * The source node has given up the bid round without installing a consumer
+         */
+        RELEASE;
+    }
+
+    public ClaimAction action;
+
+    public String eventType;
+
+    /**
+     * the time in milliseconds for which the claim is valid
+     */
+    public long lease;
+
+    /**
+     * why a claim was released
+     */
+    public BlacklistEntryDTO.Reason reason;
+
+    public String message;
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+import java.util.Map;
+
+/**
+ * A snapshot of the management requests being tracked by a Behaviour
+ * Management Service
+ */
+public class ManagementMetricsDTO {
+
+    /**
+     * last resort requests in flight
+     */
+    public int inFlight;
+
+    /**
+     * last resort requests in flight by phase (FOLLOW, BID, AWARD, INSTALL, REPLAY)
+     */
+    public Map<String, Integer> inFlightByPhase;
+
+    /**
+     * last resort requests abandoned because their phase deadline passed, by
+     * phase. An expired FOLLOW request is taken over rather than abandoned.
+     */
+    public Map<String, Long> expired;
+
+    /**
+     * install requests from other nodes that this node is carrying out
+     */
+    public int pendingInstalls;
+
+    /**
+     * install requests from other nodes abandoned because no install response arrived in time
+     */
+    public long expiredInstalls;
+
+    /**
+     * Behaviour Management Service nodes considered when choosing the owner
+     * of an event type, including this one
+     */
+    public int knownNodes;
+
+    /**
+     * the time in milliseconds the most recently awarded bid round waited for bids
+     */
+    public long bidWindow;
+
+    /**
+     * the time in milliseconds from sending the bid request to awarding the
+     * install in the most recently awarded bid round
+     */
+    public long lastRoundLatency;
+
+    /**
+     * the bid response latency in milliseconds of each responding node, at the
+     * configured percentile
+     */
+    public Map<String, Long> bidLatencies;
+}
@@ -10,6 +10,8 @@
 
 package com.paremus.brain.iot.management.api;
 
+import eu.brain.iot.installer.api.InstallTimingDTO;
+
 /**
  * An response event sent by the behaviour management service
  */
@@ -42,4 +44,16 @@ public class ManagementResponseDTO extends TargettedManagementDTO {
     
     public String message;
 
+    /**
+     * the action of the install request this responds to, or <code>null</code>
+     * if it does not respond to an install request
+     */
+    public ManagementInstallRequestDTO.ManagementInstallAction action;
+
+    /**
+     * the time spent in each phase of the install on the responding node,
+     * or <code>null</code> if it is not known
+     */
+    public InstallTimingDTO timing;
+
 }
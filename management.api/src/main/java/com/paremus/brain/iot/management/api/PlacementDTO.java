@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+/**
+ * Where a smart behaviour has been installed, as seen by this Behaviour
+ * Management Service
+ */
+public class PlacementDTO {
+
+    public String symbolicName;
+
+    public String version;
+
+    /**
+     * the framework UUID of the node hosting the behaviour
+     */
+    public String node;
+
+    /**
+     * the time of the install, in milliseconds since the epoch
+     */
+    public long installed;
+
+    /**
+     * <code>false</code> if an install on the node has since failed, or the
+     * node has stopped responding
+     */
+    public boolean healthy;
+}
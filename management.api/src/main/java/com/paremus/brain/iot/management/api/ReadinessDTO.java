@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+/**
+ * How far the Behaviour Management Service has got with starting up
+ */
+public class ReadinessDTO {
+
+    public enum State {
+        /**
+         * the marketplace indexes are being loaded, behaviour searches are
+         * answered from the snapshot saved by the last run, if any
+         */
+        LOADING,
+
+        /**
+         * the indexes are loaded, the preinstalled behaviours are being installed
+         */
+        PREINSTALLING,
+
+        /**
+         * the indexes are loaded and the preinstalled behaviours are installed
+         */
+        READY,
+
+        /**
+         * the indexes could not be loaded
+         */
+        FAILED;
+    }
+
+    public State state;
+
+    /**
+     * the time the service entered this state, in milliseconds since the epoch
+     */
+    public long since;
+
+    public String message;
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+import java.util.List;
+
+import com.paremus.brain.iot.management.api.ManagementInstallRequestDTO.ManagementInstallAction;
+
+/**
+ * How to roll a behaviour out to a set of nodes
+ */
+public class RolloutRequestDTO {
+
+    /**
+     * the framework UUIDs of the nodes to install on, in rollout order
+     */
+    public List<String> nodes;
+
+    /**
+     * {@link ManagementInstallAction#INSTALL} or
+     * {@link ManagementInstallAction#UPDATE}, defaults to INSTALL
+     */
+    public ManagementInstallAction action;
+
+    /**
+     * the maximum number of nodes installing at once, or 0 for no limit
+     */
+    public int concurrency;
+
+    /**
+     * the number of nodes in each wave, or 0 for a single wave. A wave
+     * starts only once every node in the previous wave has completed.
+     */
+    public int waveSize;
+
+    /**
+     * the number of failed nodes which aborts the rollout, or 0 to never
+     * abort. Nodes already installing are allowed to complete, no more are
+     * started.
+     */
+    public int failureThreshold;
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.api;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of rolling a behaviour out to a set of nodes
+ */
+public class RolloutResultDTO {
+
+    public String symbolicName;
+
+    public String version;
+
+    /**
+     * the nodes where the behaviour was installed
+     */
+    public List<String> succeeded;
+
+    /**
+     * the nodes where the install failed or timed out, mapped to the reason
+     */
+    public Map<String, String> failed;
+
+    /**
+     * the nodes not attempted because the rollout was aborted
+     */
+    public List<String> skipped;
+
+    /**
+     * <code>true</code> if the failure threshold was reached
+     */
+    public boolean aborted;
+}
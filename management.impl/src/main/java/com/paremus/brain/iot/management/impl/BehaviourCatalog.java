@@ -0,0 +1,471 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+package com.paremus.brain.iot.management.impl;
+
+import static org.osgi.framework.namespace.IdentityNamespace.IDENTITY_NAMESPACE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Resource;
+
+import com.paremus.brain.iot.management.api.BehaviourPageDTO;
+import com.paremus.brain.iot.management.impl.BehaviourSnapshot.Entry;
+
+import aQute.bnd.osgi.resource.ResourceUtils;
+import eu.brain.iot.installer.api.BehaviourDTO;
+
+/**
+ * The smart behaviours of a marketplace, projected to {@link BehaviourDTO}s
+ * once, with hash indexes over the attributes most often searched for.
+ * <p>
+ * A search filter made only of equality tests, <code>&amp;</code> and
+ * <code>|</code> on the indexed attributes is answered by intersecting and
+ * joining the index entries. Other parts of a filter only narrow the
+ * candidates further, and a filter with no usable part falls back to a
+ * scan. The full filter is always applied to the candidates, so the indexes
+ * never change the result, only the number of behaviours examined.
+ */
+class BehaviourCatalog {
+
+    /**
+     * The smart behaviour capability attributes with indexes
+     */
+    static final List<String> INDEXED = Collections.unmodifiableList(Arrays.asList("name", "author", "consumed"));
+
+    private static final Comparator<String> NULLS_FIRST = Comparator.nullsFirst(Comparator.naturalOrder());
+
+    /**
+     * The stable order of search results: by bundle, then by version, then
+     * by the rest of the behaviour, as a bundle may hold several behaviours
+     */
+    static final Comparator<BehaviourDTO> ORDER = Comparator
+            .comparing((BehaviourDTO b) -> String.valueOf(b.bundle))
+            .thenComparing(b -> b.version, BehaviourCatalog::compareVersions)
+            .thenComparing(b -> b.name, NULLS_FIRST)
+            .thenComparing(b -> b.author, NULLS_FIRST)
+            .thenComparing(b -> b.consumed, NULLS_FIRST)
+            .thenComparing(b -> b.description, NULLS_FIRST);
+
+    private final List<Entry> entries;
+
+    // the rows in ORDER
+    private final int[] order;
+
+    // attribute -> trimmed string value -> rows
+    private final Map<String, Map<String, BitSet>> indexes = new HashMap<>();
+    // attribute -> rows whose value isn't a string, which the index can't rule out
+    private final Map<String, BitSet> unindexed = new HashMap<>();
+
+    BehaviourCatalog(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+
+        for (String key : INDEXED) {
+            indexes.put(key, new HashMap<>());
+            unindexed.put(key, new BitSet());
+        }
+        order = IntStream.range(0, this.entries.size()).boxed()
+                .sorted((a, b) -> ORDER.compare(this.entries.get(a).behaviour, this.entries.get(b).behaviour))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        for (int row = 0; row < this.entries.size(); row++) {
+            Map<String, Object> attrs = this.entries.get(row).attributes;
+            for (String key : INDEXED) {
+                Object v = attrs.get(key);
+                if (v instanceof Collection) {
+                    for (Object o : (Collection<?>) v) {
+                        add(key, o, row);
+                    }
+                } else if (v != null) {
+                    add(key, v, row);
+                }
+            }
+        }
+    }
+
+    private void add(String key, Object value, int row) {
+        if (value instanceof String) {
+            indexes.get(key).computeIfAbsent(((String) value).trim(), k -> new BitSet()).set(row);
+        } else {
+            unindexed.get(key).set(row);
+        }
+    }
+
+    /**
+     * @param cap a smart behaviour capability
+     * @return the behaviour it describes
+     */
+    static BehaviourDTO project(Capability cap) {
+        BehaviourDTO dto = new BehaviourDTO();
+        Resource resource = cap.getResource();
+        Capability idCap = resource.getCapabilities(IDENTITY_NAMESPACE).get(0);
+
+        dto.bundle = ResourceUtils.getIdentity(idCap);
+        dto.version = ResourceUtils.getIdentityVersion(resource);
+
+        cap.getAttributes().forEach((k, v) -> {
+            switch (k) {
+                case "name":
+                    dto.name = String.valueOf(v);
+                    break;
+                case "description":
+                    dto.description = String.valueOf(v);
+                    break;
+                case "author":
+                    dto.author = String.valueOf(v);
+                    break;
+                case "consumed":
+                    dto.consumed = String.valueOf(v);
+                    break;
+            }
+        });
+        return dto;
+    }
+
+    List<Entry> entries() {
+        return entries;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param ldapFilter a filter over the smart behaviour capability
+     *        attributes, or <code>null</code> for all behaviours
+     * @return copies of the matching behaviours, in marketplace order
+     */
+    List<BehaviourDTO> find(String ldapFilter) throws InvalidSyntaxException {
+        if (ldapFilter == null) {
+            List<BehaviourDTO> all = new ArrayList<>(entries.size());
+            for (Entry e : entries) {
+                all.add(BehaviourSnapshot.copy(e.behaviour));
+            }
+            return all;
+        }
+
+        Filter filter = FrameworkUtil.createFilter(ldapFilter);
+        BitSet candidates = candidates(ldapFilter);
+
+        List<BehaviourDTO> found = new ArrayList<>();
+        if (candidates == null) {
+            for (Entry e : entries) {
+                if (filter.matches(e.attributes)) {
+                    found.add(BehaviourSnapshot.copy(e.behaviour));
+                }
+            }
+        } else {
+            for (int row = candidates.nextSetBit(0); row >= 0; row = candidates.nextSetBit(row + 1)) {
+                Entry e = entries.get(row);
+                if (filter.matches(e.attributes)) {
+                    found.add(BehaviourSnapshot.copy(e.behaviour));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param ldapFilter a filter over the smart behaviour capability
+     *        attributes, or <code>null</code> for all behaviours
+     * @return a lazy stream of copies of the matching behaviours, in {@link #ORDER}
+     */
+    Stream<BehaviourDTO> stream(String ldapFilter) throws InvalidSyntaxException {
+        return positions(ldapFilter, 0).mapToObj(i -> BehaviourSnapshot.copy(entries.get(order[i]).behaviour));
+    }
+
+    /**
+     * @param ldapFilter a filter over the smart behaviour capability
+     *        attributes, or <code>null</code> for all behaviours
+     * @param limit the maximum number of behaviours to return
+     * @param continuation the token of the previous page, or <code>null</code> to start at the beginning
+     * @return copies of up to <code>limit</code> matching behaviours in
+     *         {@link #ORDER}, and a token for the next page if there are more
+     * @throws IllegalArgumentException if the continuation is not valid
+     */
+    BehaviourPageDTO page(String ldapFilter, int limit, String continuation) throws InvalidSyntaxException {
+        int[] found = positions(ldapFilter, continuation == null ? 0 : resume(continuation))
+                .limit(limit + 1L)
+                .toArray();
+
+        BehaviourPageDTO page = new BehaviourPageDTO();
+        page.behaviours = new ArrayList<>(Math.min(limit, found.length));
+        for (int i = 0; i < found.length && i < limit; i++) {
+            page.behaviours.add(BehaviourSnapshot.copy(entries.get(order[found[i]]).behaviour));
+        }
+        if (found.length > limit) {
+            page.continuation = token(found[limit - 1]);
+        }
+        return page;
+    }
+
+    /**
+     * @return the positions in {@link #order} of the matching rows, from <code>start</code>
+     */
+    private IntStream positions(String ldapFilter, int start) throws InvalidSyntaxException {
+        Filter filter = ldapFilter == null ? null : FrameworkUtil.createFilter(ldapFilter);
+        BitSet candidates = ldapFilter == null ? null : candidates(ldapFilter);
+
+        return IntStream.range(start, order.length)
+                .filter(i -> candidates == null || candidates.get(order[i]))
+                .filter(i -> filter == null || filter.matches(entries.get(order[i]).attributes));
+    }
+
+    /**
+     * The token holds the behaviour and the number of identical behaviours
+     * before it, which the same bundle in two federated indexes can produce
+     *
+     * @return an opaque token identifying the position in {@link #order}
+     */
+    private String token(int position) {
+        BehaviourDTO behaviour = entries.get(order[position]).behaviour;
+        int ties = 0;
+        while (position - ties > 0
+                && ORDER.compare(entries.get(order[position - ties - 1]).behaviour, behaviour) == 0) {
+            ties++;
+        }
+        return token(behaviour, ties);
+    }
+
+    /**
+     * @param behaviour the last behaviour of a page
+     * @param ties the number of identical behaviours before it
+     * @return an opaque token identifying the position after the behaviour
+     */
+    static String token(BehaviourDTO behaviour, int ties) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (String s : key(behaviour)) {
+                out.writeBoolean(s != null);
+                if (s != null) {
+                    out.writeUTF(s);
+                }
+            }
+            out.writeInt(ties);
+        } catch (IOException ioe) {
+            // Not possible writing to memory
+            throw new IllegalStateException(ioe);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @return the position in {@link #order} after the one the token identifies,
+     *         even if that behaviour has since been removed
+     * @throws IllegalArgumentException if the token is not valid
+     */
+    private int resume(String token) {
+        BehaviourDTO after = new BehaviourDTO();
+        int ties;
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            String[] key = new String[6];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+            after.bundle = key[0];
+            after.version = key[1];
+            after.name = key[2];
+            after.author = key[3];
+            after.consumed = key[4];
+            after.description = key[5];
+            ties = in.readInt();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid continuation " + token, e);
+        }
+
+        // the first behaviour not before the token's, then past its ties
+        int start = 0;
+        int high = order.length;
+        while (start < high) {
+            int mid = (start + high) >>> 1;
+            if (ORDER.compare(entries.get(order[mid]).behaviour, after) < 0) {
+                start = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = 0; i <= ties && start < order.length
+                && ORDER.compare(entries.get(order[start]).behaviour, after) == 0; i++) {
+            start++;
+        }
+        return start;
+    }
+
+    private static String[] key(BehaviourDTO b) {
+        return new String[] { b.bundle, b.version, b.name, b.author, b.consumed, b.description };
+    }
+
+    private static int compareVersions(String a, String b) {
+        try {
+            return Version.parseVersion(a).compareTo(Version.parseVersion(b));
+        } catch (IllegalArgumentException iae) {
+            // Not valid OSGi versions, order them as text
+            return String.valueOf(a).compareTo(String.valueOf(b));
+        }
+    }
+
+    /**
+     * @return the rows which may match the filter, or <code>null</code> if
+     *         the indexes can't narrow the search
+     */
+    BitSet candidates(String ldapFilter) {
+        try {
+            return new Parser(ldapFilter).filter();
+        } catch (RuntimeException e) {
+            // Not a filter the parser understands, scan instead
+            return null;
+        }
+    }
+
+    private BitSet lookup(String key, String value) {
+        Map<String, BitSet> index = indexes.get(key);
+        if (index == null) {
+            return null;
+        }
+        BitSet rows = (BitSet) unindexed.get(key).clone();
+        BitSet matched = index.get(value.trim());
+        if (matched != null) {
+            rows.or(matched);
+        }
+        return rows;
+    }
+
+    /**
+     * Walks a filter that {@link FrameworkUtil#createFilter(String)} has
+     * accepted, computing the candidate rows of each part. <code>null</code>
+     * stands for "any row".
+     */
+    private class Parser {
+        private final String f;
+        private int pos;
+
+        Parser(String f) {
+            this.f = f.trim();
+        }
+
+        BitSet filter() {
+            skipSpace();
+            expect('(');
+            skipSpace();
+            BitSet rows;
+            switch (f.charAt(pos)) {
+                case '&':
+                    pos++;
+                    rows = and();
+                    break;
+                case '|':
+                    pos++;
+                    rows = or();
+                    break;
+                case '!':
+                    pos++;
+                    filter();
+                    rows = null;
+                    break;
+                default:
+                    rows = item();
+                    break;
+            }
+            skipSpace();
+            expect(')');
+            return rows;
+        }
+
+        private BitSet and() {
+            BitSet rows = null;
+            skipSpace();
+            while (f.charAt(pos) == '(') {
+                BitSet next = filter();
+                if (next != null) {
+                    if (rows == null) {
+                        rows = next;
+                    } else {
+                        rows.and(next);
+                    }
+                }
+                skipSpace();
+            }
+            return rows;
+        }
+
+        private BitSet or() {
+            BitSet rows = new BitSet();
+            boolean any = false;
+            skipSpace();
+            while (f.charAt(pos) == '(') {
+                BitSet next = filter();
+                if (next == null) {
+                    any = true;
+                } else {
+                    rows.or(next);
+                }
+                skipSpace();
+            }
+            return any ? null : rows;
+        }
+
+        private BitSet item() {
+            int start = pos;
+            while ("=<>~".indexOf(f.charAt(pos)) < 0) {
+                pos++;
+            }
+            String key = f.substring(start, pos).trim();
+            boolean equality = f.charAt(pos) == '=';
+            pos += equality ? 1 : 2;
+
+            StringBuilder value = new StringBuilder();
+            boolean wildcard = false;
+            for (char c = f.charAt(pos); c != ')'; c = f.charAt(pos)) {
+                if (c == '\\') {
+                    c = f.charAt(++pos);
+                } else if (c == '*') {
+                    wildcard = true;
+                }
+                value.append(c);
+                pos++;
+            }
+            return equality && !wildcard ? lookup(key, value.toString()) : null;
+        }
+
+        private void expect(char c) {
+            if (f.charAt(pos++) != c) {
+                throw new IllegalArgumentException("Expected " + c + " in " + f);
+            }
+        }
+
+        private void skipSpace() {
+            while (pos < f.length() && Character.isWhitespace(f.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
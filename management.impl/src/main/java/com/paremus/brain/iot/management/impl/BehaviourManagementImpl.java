@@ -18,8 +18,6 @@ import static eu.brain.iot.behaviour.namespace.SmartBehaviourDeploymentNamespace
 import static eu.brain.iot.behaviour.namespace.SmartBehaviourDeploymentNamespace.CONTENT_MIME_TYPE_INDEX;
 import static eu.brain.iot.behaviour.namespace.SmartBehaviourDeploymentNamespace.IDENTITY_TYPE_SMART_BEHAVIOUR;
 import static eu.brain.iot.behaviour.namespace.SmartBehaviourDeploymentNamespace.SMART_BEHAVIOUR_DEPLOYMENT_NAMESPACE;
-import static eu.brain.iot.behaviour.namespace.SmartBehaviourNamespace.SMART_BEHAVIOUR_NAMESPACE;
-import static java.lang.String.format;
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE;
@@ -30,22 +28,32 @@ import static org.osgi.service.repository.ContentNamespace.CAPABILITY_URL_ATTRIB
 import static org.osgi.service.repository.ContentNamespace.CONTENT_NAMESPACE;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -72,23 +80,36 @@ import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.osgi.util.promise.Promise;
 import org.osgi.util.promise.Promises;
+import org.osgi.util.pushstream.PushStream;
+import org.osgi.util.pushstream.PushStreamProvider;
 
+import com.paremus.brain.iot.management.api.BlacklistEntryDTO.Reason;
+import com.paremus.brain.iot.management.api.ManagementClaimDTO.ClaimAction;
 import com.paremus.brain.iot.management.api.ManagementInstallRequestDTO.ManagementInstallAction;
+import com.paremus.brain.iot.management.impl.EventBuffer.Offer;
+import com.paremus.brain.iot.management.impl.EventBuffer.OverflowPolicy;
+import com.paremus.brain.iot.management.impl.InFlightRegistry.InFlightRequest;
+import com.paremus.brain.iot.management.impl.InFlightRegistry.Phase;
+import com.paremus.brain.iot.resolver.index.FederatedRepository;
+import com.paremus.brain.iot.resolver.index.IndexFederation;
+import com.paremus.brain.iot.resolver.index.IndexHealth;
+import com.paremus.brain.iot.resolver.metrics.MetricsRecorder;
 
 import aQute.bnd.header.Parameters;
 import aQute.bnd.http.HttpClient;
 import aQute.bnd.osgi.Processor;
-import aQute.bnd.osgi.resource.ResourceUtils;
-import aQute.bnd.repository.osgi.OSGiRepository;
 import eu.brain.iot.eventing.annotation.SmartBehaviourDefinition;
 import eu.brain.iot.eventing.api.EventBus;
 import eu.brain.iot.eventing.api.SmartBehaviour;
 import eu.brain.iot.eventing.api.UntypedSmartBehaviour;
 import eu.brain.iot.installer.api.BehaviourDTO;
+import eu.brain.iot.installer.api.FunctionDTO;
 import eu.brain.iot.installer.api.FunctionInstaller;
 import eu.brain.iot.installer.api.InstallResolver;
 import eu.brain.iot.installer.api.InstallResponseDTO;
 import eu.brain.iot.installer.api.InstallResponseDTO.ResponseCode;
+import eu.brain.iot.installer.api.InstallTimingDTO;
+import eu.brain.iot.installer.api.MetricsProvider;
 
 //Be immediate so we don't lose state if the service is released
 @Component(configurationPid = BehaviourManagementImpl.PID,
@@ -97,7 +118,7 @@ import eu.brain.iot.installer.api.InstallResponseDTO.ResponseCode;
 )
 @ExportedService(service_exported_interfaces=BehaviourManagement.class)
 @Designate(ocd=BehaviourManagementImpl.Config.class)
-@SmartBehaviourDefinition(consumed = {ManagementBidRequestDTO.class, ManagementBlacklistDTO.class},
+@SmartBehaviourDefinition(consumed = {ManagementBidRequestDTO.class, ManagementBatchBidRequestDTO.class, ManagementBlacklistDTO.class},
         filter = "(requestIdentity=*)",
         author = BehaviourManagementImpl.BEHAVIOUR_AUTHOR,
         name = BehaviourManagementImpl.BEHAVIOUR_NAME,
@@ -105,8 +126,6 @@ import eu.brain.iot.installer.api.InstallResponseDTO.ResponseCode;
 public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequestDTO>, BehaviourManagement {
 
 	private static final String IDENTITY_FILTER = "osgi.identity;filter:=\"(&(osgi.identity=%s)(version=%s))\"";
-	private static final String SMART_BEHAVIOUR_FILTER = SMART_BEHAVIOUR_NAMESPACE +
-			";filter:=\"(consumed=%s)\"";
 
     private static final String LAST_RESORT_PREFIX = "LastResort:";
 
@@ -128,9 +147,59 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
     	public String connection_settings() default "";
         @AttributeDefinition(description="The identities of behaviours that should be installed, <symbolic name>:<version>")
         public String[] preinstalled_behaviours() default {};
+        @AttributeDefinition(description="The maximum number of bid requests resolved concurrently")
+        public int bid_workers() default 4;
+        @AttributeDefinition(description="The maximum number of requestors with bids waiting for a free bid worker, and of bids waiting for each requestor")
+        public int bid_queue_size() default 64;
+        @AttributeDefinition(description="The time in seconds for which events with no consumer in the marketplace are ignored")
+        public long consumer_not_found_ttl() default 60;
+        @AttributeDefinition(description="The maximum number of unhandled events held in memory per event type while a behaviour is installed")
+        public int last_resort_buffer_size() default 1000;
+        @AttributeDefinition(description="What to do with unhandled events when the buffer for their event type is full")
+        public OverflowPolicy last_resort_overflow_policy() default OverflowPolicy.DROP_OLDEST;
+        @AttributeDefinition(description="The size in bytes of the segment file used per event type by the SPILL overflow policy")
+        public int last_resort_spill_size() default 4 * 1024 * 1024;
+        @AttributeDefinition(description="The maximum number of buffered events redelivered per replay batch after a behaviour is installed")
+        public int replay_batch_size() default 50;
+        @AttributeDefinition(description="The time in milliseconds between replay batches")
+        public long replay_interval_ms() default 100;
+        @AttributeDefinition(description="The time in seconds after which buffered events that are still unhandled are discarded")
+        public long replay_timeout() default 60;
+        @AttributeDefinition(description="The time in seconds to wait for the first bid for a last resort request")
+        public long bid_timeout() default 10;
+        @AttributeDefinition(description="The time in seconds to wait for bids to be awarded once the first bid arrives")
+        public long award_timeout() default 10;
+        @AttributeDefinition(description="The time in seconds to wait for an awarded install to complete")
+        public long install_timeout() default 120;
+        @AttributeDefinition(description="The time in seconds for which an event type is first blacklisted, doubling for each further failure")
+        public long blacklist_ttl() default 60;
+        @AttributeDefinition(description="The maximum time in seconds for which an event type is blacklisted")
+        public long blacklist_max_ttl() default 3600;
+        @AttributeDefinition(description="The time in seconds for which a claim to run the bid round for an event type is valid unless renewed")
+        public long claim_lease() default 5;
+        @AttributeDefinition(description="The time in seconds after which a silent node is no longer considered when choosing the owner of an event type")
+        public long node_timeout() default 600;
+        @AttributeDefinition(description="The minimum time in milliseconds to wait for bids")
+        public long bid_window_min_ms() default 50;
+        @AttributeDefinition(description="The maximum time in milliseconds to wait for bids, also used until bid latencies have been observed")
+        public long bid_window_max_ms() default 1000;
+        @AttributeDefinition(description="The percentile of each node's recent bid latencies that the bid window must cover")
+        public int bid_window_percentile() default 95;
+        @AttributeDefinition(description="The number of bids after which a round closes without waiting for the window, 0 for every known node")
+        public int bid_expected_responders() default 0;
+        @AttributeDefinition(description="The time in milliseconds to collect last resort bid requests into one batch, 0 to send each immediately")
+        public long bid_batch_window_ms() default 100;
+        @AttributeDefinition(description="The maximum number of bid requests in one batch")
+        public int bid_batch_size() default 16;
+        @AttributeDefinition(description="The time in seconds between checks of the marketplace indexes for changes, or 0 to only load them when the configuration changes")
+        public long index_refresh_interval() default 300;
+        @AttributeDefinition(description="The number of consecutive failed loads of a marketplace index after which it is not fetched, and its last good copy is served, until the retry interval has passed")
+        public int index_failure_threshold() default 3;
+        @AttributeDefinition(description="The time in seconds before a marketplace index that keeps failing to load is fetched again")
+        public long index_retry_interval() default 60;
     }
 
-    class UntypedEvent {
+    static class UntypedEvent {
         String eventType;
         Map<String, Object> eventData;
     }
@@ -156,11 +225,38 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 
     private final ScheduledExecutorService sched = Executors.newSingleThreadScheduledExecutor();
 
-    private final Map<String, List<UntypedEvent>> inProgress = new ConcurrentHashMap<>();
-    private final Map<String, Set<ManagementResponseDTO>> bidResponses = new ConcurrentHashMap<>();
-    private final Map<String, String> pendingInstall = new ConcurrentHashMap<>();
-
-    private final Map<String, Long> blacklist = new ConcurrentHashMap<>();
+    // loads the marketplace indexes and installs the preinstalled behaviours
+    // off the SCR thread, one configuration at a time
+    private final ExecutorService startup = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "BRAIN-IoT Behaviour Management Startup"));
+
+    // loads each marketplace index concurrently
+    private final ExecutorService indexLoaders = Executors.newCachedThreadPool(
+            r -> new Thread(r, "BRAIN-IoT Behaviour Management Index Loader"));
+    private IndexFederation federation;
+
+    private volatile ThreadPoolExecutor bidWorkers;
+    private final AtomicInteger bidWorkerCount = new AtomicInteger();
+    private int bidQueueSize;
+    private KeyedExecutor bidExecutor;
+
+    private final InFlightRegistry registry = new InFlightRegistry();
+    private final BidLatencies bidLatencies = new BidLatencies(32);
+    private volatile long lastBidWindow;
+    private volatile long lastRoundLatency;
+    private final MetricsRecorder metrics = new MetricsRecorder("management");
+    // Guarded by itself
+    private final List<InFlightRequest> pendingBids = new ArrayList<>();
+
+    private final AtomicInteger spillCount = new AtomicInteger();
+
+    private final PushStreamProvider pushStreams = new PushStreamProvider();
+
+    private final TimingWheel wheel = new TimingWheel(1000, 512, System.currentTimeMillis());
+    private final Blacklist blacklist = new Blacklist(wheel, System::currentTimeMillis,
+            TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1));
+    // event type -> time until which it is known to have no consumer in the marketplace
+    private final UnresolvableTypes unresolvable = new UnresolvableTypes();
     private final Map<String, String> bundle2lastresort = new ConcurrentHashMap<>();
 
     private List<URI> indexes = new ArrayList<>();
@@ -170,20 +266,48 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
     private Thread thread;
 
     private String myNode;
+    private KnownNodes nodes;
+    private PlacementDirectory placements;
+
+    private final Set<Rollout> activeRollouts = ConcurrentHashMap.newKeySet();
 
     private List<ServiceRegistration<?>> registrations = new ArrayList<ServiceRegistration<?>>();
 
 	private Processor processor;
 	private HttpClient client;
 
-	private OSGiRepository repository;
+	// the published view of the marketplace, replaced when the indexes change
+	private volatile MarketplaceView marketplace;
+	private final IndexRevalidator revalidator = new IndexRevalidator();
+	private final AtomicBoolean refreshQueued = new AtomicBoolean();
 	private File httpCacheDir;
+	private File indexSnapshotDir;
+	private File spillDir;
+	private File snapshotFile;
+
+	private volatile BehaviourSnapshot snapshot;
+	private volatile ReadinessDTO readiness = readiness(ReadinessDTO.State.LOADING, "Starting");
 
     @Activate
     private void activate(BundleContext context, Config config) throws Exception {
 		debug("activate");
         myNode = context.getProperty(Constants.FRAMEWORK_UUID);
+        nodes = new KnownNodes(myNode);
+        placements = new PlacementDirectory(context.getDataFile("placements"));
+        try {
+            placements.load();
+        } catch (Exception e) {
+            warn("Unable to read the placement directory: %s", e.getMessage());
+        }
         httpCacheDir = context.getDataFile("httpcache");
+        indexSnapshotDir = context.getDataFile("indexes");
+        spillDir = context.getDataFile("lastresort");
+        snapshotFile = context.getDataFile("behaviours");
+        try {
+            snapshot = BehaviourSnapshot.load(snapshotFile);
+        } catch (Exception e) {
+            warn("Unable to read the behaviour snapshot: %s", e.getMessage());
+        }
 
 
         processor = new Processor();
@@ -198,6 +322,9 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 
 		processor.addBasicPlugin(client);
 
+		federation = new IndexFederation(client, httpCacheDir, indexSnapshotDir, indexLoaders,
+				config.index_failure_threshold(), TimeUnit.SECONDS.toMillis(config.index_retry_interval()));
+
         // configure our consumers to only accept responses to our requests
         Hashtable<String, Object> baseProps = new Hashtable<>();
         baseProps.put(EVENT_SERVICE_PROPERTY_PREFIX + "author", BEHAVIOUR_AUTHOR);
@@ -219,6 +346,13 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
         registrations.add(context.registerService(SmartBehaviour.class,
         		new ManagementResponseConsumer(this), props));
 
+        props = new Hashtable<>(baseProps);
+        props.put(EVENT_SERVICE_PROPERTY_PREFIX + "description", "Management claim consumer");
+        props.put(EVENT_SERVICE_PROPERTY_PREFIX + "consumed", ManagementClaimDTO.class.getName());
+
+        registrations.add(context.registerService(SmartBehaviour.class,
+        		new ManagementClaimConsumer(this), props));
+
         props = new Hashtable<>(baseProps);
         props.put(EVENT_SERVICE_PROPERTY_PREFIX + "description", "Unhandled Event consumer");
         props.put(EVENT_SERVICE_PROPERTY_PREFIX + "consumer.of.last.resort", true);
@@ -226,21 +360,77 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
         registrations.add(context.registerService(UntypedSmartBehaviour.class,
         		new LastResortConsumer(this), props));
 
+        registerMetrics(context);
+
+        bidWorkers = newBidWorkers(config);
+        bidExecutor = new KeyedExecutor(bidWorkers, config.bid_queue_size());
+
         modified(config);
         start();
     }
 
     private synchronized void start() {
+        // The queue thread is the fast lane for installs and blacklist updates,
+        // bids are resolved on the bid workers
         thread = new Thread(new QueueProcessor(), "BRAIN-IoT Behaviour Management");
         thread.start();
 
         sched.scheduleAtFixedRate(new BidTracker(), 1, 1, TimeUnit.SECONDS);
+        sched.scheduleAtFixedRate(this::purgeUnresolvable, 10, 10, TimeUnit.SECONDS);
+        sched.scheduleAtFixedRate(this::expireInFlight, 1, 1, TimeUnit.SECONDS);
+        sched.scheduleAtFixedRate(() -> wheel.advance(System.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+
+        long renew = Math.max(1, TimeUnit.SECONDS.toMillis(config.claim_lease()) / 2);
+        sched.scheduleAtFixedRate(this::renewClaims, renew, renew, TimeUnit.MILLISECONDS);
+
+        long refresh = config.index_refresh_interval();
+        if (refresh > 0) {
+            sched.scheduleWithFixedDelay(() -> {
+                // Checks run on the startup thread, don't queue more than one
+                if (refreshQueued.compareAndSet(false, true)) {
+                    try {
+                        startup.execute(this::refreshIndexes);
+                    } catch (RejectedExecutionException ree) {
+                        // We are shutting down
+                    }
+                }
+            }, refresh, refresh, TimeUnit.SECONDS);
+        }
+    }
+
+    private ThreadPoolExecutor newBidWorkers(Config cfg) {
+        int workers = Math.max(1, cfg.bid_workers());
+        bidQueueSize = Math.max(1, cfg.bid_queue_size());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+        		new ArrayBlockingQueue<>(bidQueueSize),
+        		r -> new Thread(r, "BRAIN-IoT Behaviour Management Bid Worker " + bidWorkerCount.incrementAndGet()));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     @Modified
     private synchronized void modified(Config cfg) throws Exception {
         this.config = cfg;
 
+        blacklist.configure(TimeUnit.SECONDS.toMillis(cfg.blacklist_ttl()),
+        		TimeUnit.SECONDS.toMillis(cfg.blacklist_max_ttl()));
+
+        int workers = Math.max(1, cfg.bid_workers());
+        int queueSize = Math.max(1, cfg.bid_queue_size());
+        if (queueSize != bidQueueSize) {
+        	// The queue can't be resized, replace the pool and let the old one finish its work
+        	ThreadPoolExecutor old = bidWorkers;
+        	bidWorkers = newBidWorkers(cfg);
+        	bidExecutor.configure(bidWorkers, queueSize);
+        	old.shutdown();
+        } else if (workers > bidWorkers.getMaximumPoolSize()) {
+        	bidWorkers.setMaximumPoolSize(workers);
+        	bidWorkers.setCorePoolSize(workers);
+        } else {
+        	bidWorkers.setCorePoolSize(workers);
+        	bidWorkers.setMaximumPoolSize(workers);
+        }
+
         List<URI> indexes = new ArrayList<>();
         for (String index : config.indexes()) {
             indexes.add(URI.create(index));
@@ -251,33 +441,219 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
             debug("modified: " + indexes);
             this.indexes = indexes;
 
-            OSGiRepository repo = loadIndex("Bundle Management Marketplaces", indexes);
-
-            shutdownOldRepo();
-
-    		this.repository = repo;
+            revalidator.clear();
+            // forget the health and loaded copies of indexes no longer configured
+            federation.retain(indexes);
+            publish(new MarketplaceView(indexes, loadIndex("Bundle Management Marketplaces", indexes)));
         }
         else {
             debug("modified: indexes is unchanged!");
         }
 
-        for(String identity : config.preinstalled_behaviours()) {
+        MarketplaceView m = marketplace;
+        String[] preinstalled = config.preinstalled_behaviours();
+        startup.execute(() -> warmUp(m, preinstalled));
+    }
 
-        	Map<String, String> installed = installer.listInstalledFunctions();
+    /**
+     * Make a new view of the marketplace current, retiring the old one once
+     * its users have finished with it
+     */
+    private synchronized void publish(MarketplaceView view) {
+        MarketplaceView old = marketplace;
+        marketplace = view;
+        if (view.changes == null) {
+            unresolvable.clear();
+        } else {
+            // Only added behaviours can make an event type resolvable
+            unresolvable.added(view.changes.getAdded());
+        }
+        if (old != null) {
+            old.retire();
+        }
+    }
+
+    /**
+     * @return the current view of the marketplace, which must be released after use
+     */
+    private MarketplaceView acquireMarketplace() {
+        for (;;) {
+            MarketplaceView v = marketplace;
+            if (v == null) {
+                throw new IllegalStateException("The marketplace indexes are not configured");
+            }
+            if (v.acquire()) {
+                return v;
+            }
+            if (v == marketplace) {
+                throw new IllegalStateException("The Behaviour Management Service has stopped");
+            }
+            // retired and closed under us, the newer view is already published
+        }
+    }
+
+    /**
+     * Check the marketplace indexes for changes, and publish a new view if
+     * they have changed. Runs on the startup thread.
+     */
+    private void refreshIndexes() {
+        refreshQueued.set(false);
+        MarketplaceView current = marketplace;
+        if (current == null || readiness.state == ReadinessDTO.State.LOADING) {
+            return;
+        }
+
+        if (readiness.state == ReadinessDTO.State.FAILED) {
+            // Try the whole startup again, the indexes may be reachable now
+            try {
+                MarketplaceView retry = new MarketplaceView(current.indexes,
+                        loadIndex("Bundle Management Marketplaces", current.indexes, true));
+                synchronized (this) {
+                    if (marketplace != current) {
+                        retry.retire();
+                        return;
+                    }
+                    publish(retry);
+                }
+                warmUp(retry, config.preinstalled_behaviours());
+            } catch (Exception e) {
+                warn("Unable to reload the marketplace indexes: %s", e.getMessage());
+            }
+            return;
+        }
+
+        try {
+            if (!revalidator.changed(current.indexes, client)) {
+                return;
+            }
+        } catch (Exception e) {
+            warn("Unable to check the marketplace indexes for changes: %s", e.getMessage());
+            return;
+        }
 
+        long start = System.currentTimeMillis();
+        MarketplaceView next;
+        try {
+            next = new MarketplaceView(current.indexes,
+                    loadIndex("Bundle Management Marketplaces", current.indexes, true), current);
+            // Parse the indexes here, not on the first thread to use the view
+            saveSnapshot(next);
+        } catch (Exception e) {
+            warn("Unable to reload the changed marketplace indexes: %s", e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (marketplace != current) {
+                // The configuration changed while we were loading
+                next.retire();
+                return;
+            }
+            publish(next);
+        }
+        if (next.changes != null) {
+            info("Applied the marketplace index delta feeds in %d ms, %d resources added and %d removed",
+                    System.currentTimeMillis() - start, next.changes.getAdded().size(),
+                    next.changes.getRemoved().size());
+        } else {
+            info("Reloaded the changed marketplace indexes in %d ms, %d behaviours", System.currentTimeMillis() - start,
+                    snapshot.size());
+        }
+    }
+
+    private void saveSnapshot(MarketplaceView view) {
+        BehaviourSnapshot s = new BehaviourSnapshot(view.index.catalog().entries());
+        snapshot = s;
+        try {
+            s.save(snapshotFile);
+        } catch (IOException e) {
+            warn("Unable to save the behaviour snapshot: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Load the marketplace indexes, save a snapshot of the behaviours they
+     * hold, then install the preinstalled behaviours
+     */
+    private void warmUp(MarketplaceView m, String[] preinstalled) {
+        if (m != marketplace || !m.acquire()) {
+            // The configuration changed again, the next run will do the work
+            return;
+        }
+
+        readiness = readiness(ReadinessDTO.State.LOADING, "Loading the marketplace indexes");
+        long start = System.currentTimeMillis();
+        try {
+            saveSnapshot(m);
+            debug("Loaded %d behaviours from the marketplace in %d ms", snapshot.size(),
+                    System.currentTimeMillis() - start);
+            try {
+                // Remember the index validators, so that refreshes only reload changes
+                revalidator.changed(m.indexes, client);
+            } catch (Exception e) {
+                debug("Unable to read the marketplace index validators: %s", e.getMessage());
+            }
+        } catch (Exception e) {
+            error("Unable to load the marketplace indexes %s: %s", indexes, e.getMessage());
+            readiness = readiness(ReadinessDTO.State.FAILED, String.valueOf(e.getMessage()));
+            return;
+        } finally {
+            m.release();
+        }
+
+        readiness = readiness(ReadinessDTO.State.PREINSTALLING, "Installing the preinstalled behaviours");
+        List<FunctionDTO> functions = new ArrayList<>();
+        Map<String, String> installed = installer.listInstalledFunctions();
+        for (String identity : preinstalled) {
         	String[] id = identity.split(":", 2);
 
-        	if(installed.get(id[0]) == null) {
-        		installBehaviour(id[0], id[1], identity);
+        	if (installed.get(id[0]) == null) {
+        		try {
+        			functions.add(functionFor(id[0], id[1], identity));
+        		} catch (Exception e) {
+        			error("Unable to preinstall %s: %s", identity, e.getMessage());
+        		}
         	}
         }
+
+        if (!functions.isEmpty()) {
+            // One resolution and one parallel download for all of them
+            try {
+                installer.installFunctions(functions, client).getValue().forEach((symbolicName, response) -> {
+                    if (response.code == ResponseCode.SUCCESS) {
+                        info("Preinstalled %s", symbolicName);
+                    } else {
+                        error("Unable to preinstall %s: %s", symbolicName, response.messages);
+                    }
+                });
+            } catch (InvocationTargetException e) {
+                error("Unable to preinstall %s: %s", functions.stream().map(f -> f.symbolicName).collect(toList()),
+                        e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (m == marketplace) {
+            readiness = readiness(ReadinessDTO.State.READY, String.format("Loaded %d behaviours", snapshot.size()));
+            info("Ready after %d ms", System.currentTimeMillis() - start);
+        }
+    }
+
+    private static ReadinessDTO readiness(ReadinessDTO.State state, String message) {
+        ReadinessDTO dto = new ReadinessDTO();
+        dto.state = state;
+        dto.since = System.currentTimeMillis();
+        dto.message = message;
+        return dto;
     }
 
     private Promise<InstallResponseDTO> installBehaviour(String symbolicName, String version, String requestIdentity) {
 		Promise<InstallResponseDTO> p;
 		String identityRequirement = String.format(IDENTITY_FILTER, symbolicName, version);
 
-		Resource res = getResourceForRequirement(toRequirementList(identityRequirement), requestIdentity);
+		Resource res = getResourceForIdentity(symbolicName, version, requestIdentity);
 
 		List<URI> indexes = getRelevantIndex(res);
 
@@ -289,6 +665,86 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 		return p;
 	}
 
+    private FunctionDTO functionFor(String symbolicName, String version, String requestIdentity) {
+		String identityRequirement = String.format(IDENTITY_FILTER, symbolicName, version);
+
+		Resource res = getResourceForIdentity(symbolicName, version, requestIdentity);
+
+		FunctionDTO function = new FunctionDTO();
+		function.symbolicName = symbolicName;
+		function.version = version;
+		function.indexes = getRelevantIndex(res).stream().map(URI::toString).collect(toList());
+		function.requirements = singletonList(resolveRequirementsFor(res, identityRequirement));
+		return function;
+	}
+
+    /**
+     * Update the behaviour to a new version. The installer starts the new
+     * version before stopping the old one, and any last resort events for
+     * the event types the behaviour consumes are buffered until the swap
+     * completes, then replayed.
+     */
+    private Promise<InstallResponseDTO> updateBehaviour(String symbolicName, String version, String requestIdentity) {
+		String oldVersion = installer.listInstalledFunctions().get(symbolicName);
+		if (oldVersion == null || MarketplaceIndex.identityKey(symbolicName, oldVersion)
+				.equals(MarketplaceIndex.identityKey(symbolicName, version))) {
+			debug("Nothing to update for %s, installing version %s", symbolicName, version);
+			return installBehaviour(symbolicName, version, requestIdentity);
+		}
+
+		String identityRequirement = String.format(IDENTITY_FILTER, symbolicName, version);
+
+		Resource res = getResourceForIdentity(symbolicName, version, requestIdentity);
+
+		List<URI> indexes = getRelevantIndex(res);
+
+		String resolveRequirements = resolveRequirementsFor(res, identityRequirement);
+
+		List<InFlightRequest> held = holdForSwap(res, symbolicName, version);
+
+		long started = System.currentTimeMillis();
+		Promise<InstallResponseDTO> p = installer.updateFunction(symbolicName, oldVersion, symbolicName, version,
+				indexes.stream().map(URI::toString).collect(toList()),
+				singletonList(resolveRequirements), client);
+
+		return p.onResolve(() -> {
+			info("Update of %s from %s to %s took %d ms", symbolicName, oldVersion, version,
+					System.currentTimeMillis() - started);
+			releaseSwap(held);
+		});
+	}
+
+    /**
+     * Start buffering last resort events for the event types consumed by the
+     * behaviour. Event types which already have a request in flight are
+     * buffered by that request instead.
+     */
+    private List<InFlightRequest> holdForSwap(Resource res, String symbolicName, String version) {
+        List<InFlightRequest> held = new ArrayList<>();
+        for (String eventType : MarketplaceIndex.consumedBy(res)) {
+            InFlightRequest r = new InFlightRequest(LAST_RESORT_PREFIX + eventType, eventType,
+                    newEventBuffer(eventType), deadline(config.install_timeout()));
+            r.symbolicName = symbolicName;
+            r.version = version;
+            r.advance(Phase.BID, Phase.SWAP, deadline(config.install_timeout()));
+            if (registry.register(r) == null) {
+                held.add(r);
+            } else {
+                r.buffer.close();
+            }
+        }
+        return held;
+    }
+
+    private void releaseSwap(List<InFlightRequest> held) {
+        for (InFlightRequest r : held) {
+            if (r.installed()) {
+                debug("Resending %d last resort events(%s) held during update", r.buffer.size(), r.requestIdentity);
+                new Replay(r).start();
+            }
+        }
+    }
+
 	private List<URI> getRelevantIndex(Resource resource) {
 
 		List<Capability> capabilities = resource.getCapabilities(IDENTITY_NAMESPACE);
@@ -305,10 +761,29 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 				.map(URI::create)
 				.collect(toList());
 
-			return list.isEmpty() ? indexes : list;
+			return list.isEmpty() ? originFirst(resource) : list;
 		} else {
 			// This is not a smart behaviour, just use the indexes we have
-			return indexes;
+			return originFirst(resource);
+		}
+	}
+
+	/**
+	 * @return the marketplace indexes, starting with the one the resource came from
+	 */
+	private List<URI> originFirst(Resource resource) {
+		MarketplaceView m = acquireMarketplace();
+		try {
+			URI origin = m.repository.originOf(resource);
+			if (origin == null) {
+				return m.indexes;
+			}
+			List<URI> list = new ArrayList<>(m.indexes.size());
+			list.add(origin);
+			m.indexes.stream().filter(i -> !i.equals(origin)).forEach(list::add);
+			return list;
+		} finally {
+			m.release();
 		}
 	}
 
@@ -332,30 +807,16 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 		}
 	}
 
-	private OSGiRepository loadIndex(String name, List<URI> indexes) throws Exception {
-
-		OSGiRepository repo = new OSGiRepository();
-		repo.setReporter(processor);
-		repo.setRegistry(processor);
-
-		Map<String, String> props = new HashMap<>();
-		props.put("name", name);
-		props.put("locations", indexes.stream().map(URI::toString).collect(Collectors.joining(",")));
-		props.put("cache", httpCacheDir.getAbsolutePath());
-
-		repo.setProperties(props);
-
-		return repo;
+	private FederatedRepository loadIndex(String name, List<URI> indexes) throws Exception {
+		return loadIndex(name, indexes, false);
 	}
 
-	private void shutdownOldRepo() {
-		if(repository != null) {
-			try {
-				repository.close();
-			} catch (Exception e) {
-				// Nothing to see here
-			}
-		}
+	/**
+	 * @param revalidate <code>true</code> if cached copies of the indexes are
+	 *        known to be stale and must be checked with the server
+	 */
+	private FederatedRepository loadIndex(String name, List<URI> indexes, boolean revalidate) throws Exception {
+		return federation.repository(name, indexes, revalidate);
 	}
 
 	@Deactivate
@@ -374,6 +835,13 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
         this.thread = null;
 
         sched.shutdownNow();
+        bidWorkers.shutdownNow();
+        startup.shutdownNow();
+        indexLoaders.shutdownNow();
+
+        for (Rollout r : activeRollouts) {
+            r.abort("The Behaviour Management Service stopped");
+        }
 
         running.set(false);
         thread.interrupt();
@@ -382,56 +850,67 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
             thread.join(2000);
         } catch (InterruptedException e) {
         }
-        shutdownOldRepo();
+        MarketplaceView m = marketplace;
+        if (m != null) {
+            m.retire();
+        }
+
+        registry.clear().forEach(r -> r.buffer.close());
 
         client.close();
     }
 
     @Override
     public Collection<BehaviourDTO> findBehaviours(String ldapFilter) throws Exception {
+        return currentCatalog().find(ldapFilter);
+    }
 
-    	Requirement req = repository.newRequirementBuilder(SMART_BEHAVIOUR_NAMESPACE)
-    				.addDirective("filter", ldapFilter)
-    				.build();
-		return repository.findProviders(Collections.singleton(req)).entrySet().stream()
-			.flatMap(e -> e.getValue().stream())
-			.map(this::newBehaviour)
-			.collect(toList());
+    @Override
+    public BehaviourPageDTO findBehaviours(String ldapFilter, int limit, String continuation) throws Exception {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("The page limit must be positive: " + limit);
+        }
+        return currentCatalog().page(ldapFilter, limit, continuation);
     }
 
-    private BehaviourDTO newBehaviour(Capability cap) {
-        BehaviourDTO dto = new BehaviourDTO();
-        Resource resource = cap.getResource();
-		Capability idCap = resource.getCapabilities(IDENTITY_NAMESPACE).get(0);
+    @Override
+    public PushStream<BehaviourDTO> streamBehaviours(String ldapFilter) throws Exception {
+        return pushStreams.streamOf(currentCatalog().stream(ldapFilter));
+    }
 
-        dto.bundle = ResourceUtils.getIdentity(idCap);
-        dto.version = ResourceUtils.getIdentityVersion(resource);
+    /**
+     * @return the behaviours to search, from the snapshot if the indexes are
+     *         not yet loaded
+     */
+    private BehaviourCatalog currentCatalog() {
+        ReadinessDTO.State state = readiness.state;
+        BehaviourSnapshot s = snapshot;
+        if ((state == ReadinessDTO.State.LOADING || state == ReadinessDTO.State.FAILED) && s != null) {
+            // Answer from the last known marketplace rather than wait for the indexes
+            return s.catalog();
+        }
 
-        cap.getAttributes().forEach((k, v) -> {
-            switch (k) {
-                case "name":
-                    dto.name = String.valueOf(v);
-                    break;
-                case "description":
-                    dto.description = String.valueOf(v);
-                    break;
-                case "author":
-                    dto.author = String.valueOf(v);
-                    break;
-                case "consumed":
-                    dto.consumed = String.valueOf(v);
-                    break;
-            }
-        });
-        return dto;
+        MarketplaceView m = acquireMarketplace();
+        try {
+            return m.index.catalog();
+        } finally {
+            m.release();
+        }
     }
 
     @Override
     public void installBehaviour(BehaviourDTO behaviour, String targetNode) {
         ManagementInstallRequestDTO request = new ManagementInstallRequestDTO();
 
+        if (targetNode == null) {
+            targetNode = placements.healthyNode(behaviour.bundle, behaviour.version);
+            if (targetNode == null) {
+                targetNode = myNode;
+            }
+        }
+
         request.targetNode = targetNode;
-        request.requestIdentity = "install:" + behaviour.bundle + ":" + behaviour.version;
+        request.requestIdentity = "install:" + behaviour.bundle + ":" + behaviour.version + ":" + UUID.randomUUID();
         request.action = ManagementInstallAction.INSTALL;
         request.symbolicName = behaviour.bundle;
         request.version = behaviour.version;
@@ -439,6 +918,47 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
         eventBus.deliver(request);
     }
 
+    @Override
+    public void updateBehaviour(BehaviourDTO behaviour, String targetNode) {
+        ManagementInstallRequestDTO request = new ManagementInstallRequestDTO();
+
+        request.targetNode = targetNode == null ? myNode : targetNode;
+        request.requestIdentity = "update:" + behaviour.bundle + ":" + behaviour.version + ":" + UUID.randomUUID();
+        request.action = ManagementInstallAction.UPDATE;
+        request.symbolicName = behaviour.bundle;
+        request.version = behaviour.version;
+
+        eventBus.deliver(request);
+    }
+
+    @Override
+    public Promise<RolloutResultDTO> rolloutBehaviour(BehaviourDTO behaviour, RolloutRequestDTO rollout) {
+        ManagementInstallAction action = rollout.action == null ? ManagementInstallAction.INSTALL : rollout.action;
+        if (action != ManagementInstallAction.INSTALL && action != ManagementInstallAction.UPDATE) {
+            return Promises.failed(new IllegalArgumentException("A rollout can not " + action));
+        }
+        List<String> targets = rollout.nodes == null ? Collections.emptyList() : rollout.nodes;
+
+        Rollout r = new Rollout(behaviour.bundle, behaviour.version, targets, rollout.concurrency,
+                rollout.waveSize, rollout.failureThreshold, TimeUnit.SECONDS.toMillis(config.install_timeout()),
+                node -> {
+                    ManagementInstallRequestDTO request = new ManagementInstallRequestDTO();
+                    request.targetNode = node;
+                    request.requestIdentity = action.name().toLowerCase() + ":" + behaviour.bundle + ":"
+                            + behaviour.version + ":" + UUID.randomUUID();
+                    request.action = action;
+                    request.symbolicName = behaviour.bundle;
+                    request.version = behaviour.version;
+
+                    eventBus.deliver(request);
+                    return request.requestIdentity;
+                });
+
+        info("Rolling out %s at version %s to %d nodes", behaviour.bundle, behaviour.version, targets.size());
+        activeRollouts.add(r);
+        return r.start().onResolve(() -> activeRollouts.remove(r));
+    }
+
     @Override
     public void uninstallBehaviour(BehaviourDTO behaviour, String targetNode) {
     	ManagementInstallRequestDTO request = new ManagementInstallRequestDTO();
@@ -465,6 +985,7 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 
     @Override
     public void notify(ManagementBidRequestDTO request) {
+        nodes.seen(request.sourceNode, System.currentTimeMillis());
         queue.add(request);
     }
 
@@ -472,47 +993,150 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
     	blacklist.clear();
     }
 
+    @Override
+    public Collection<BlacklistEntryDTO> getBlacklist() {
+        return blacklist.toDTOs();
+    }
+
     void notify(ManagementInstallRequestDTO request) {
         queue.add(request);
     }
 
     void notify(ManagementResponseDTO response) {
+        nodes.seen(response.sourceNode, System.currentTimeMillis());
         String requestIdentity = response.requestIdentity;
+        if (response.code != BID) {
+            recordInstallTiming(response);
+            for (Rollout r : activeRollouts) {
+                if (r.completed(requestIdentity, response.code != ManagementResponseDTO.ResponseCode.FAIL,
+                        response.message)) {
+                    break;
+                }
+            }
+        }
         switch (response.code) {
             case FAIL:
+                if (response.action == ManagementInstallAction.INSTALL && response.symbolicName != null) {
+                    placements.failed(response.symbolicName, response.version, response.sourceNode);
+                }
+                InFlightRequest failed = registry.get(requestIdentity);
+                // Only a failure from the node we chose matters, bidders may fail to resolve
+                if (failed != null && failed.phase() == Phase.INSTALL
+                        && String.valueOf(response.sourceNode).equals(failed.awardedNode())
+                        && registry.remove(failed)) {
+                    failed.buffer.close();
+                    installFailed(failed, String.format("Node %s failed to install %s at version %s: %s",
+                            response.sourceNode, failed.symbolicName, failed.version, response.message));
+                }
                 break;
 
             case BID:
-                Set<ManagementResponseDTO> bids = bidResponses.get(requestIdentity);
-                if (bids != null) {
-                    bids.add(response);
+                InFlightRequest bidding = registry.get(requestIdentity);
+                if (bidding != null) {
+                    Phase phase = bidding.phase();
+                    if (phase == Phase.BID || phase == Phase.AWARD) {
+                        long latency = System.currentTimeMillis() - bidding.roundStarted;
+                        bidLatencies.record(response.sourceNode, latency);
+                        metrics.record("bid.response", latency);
+                        bidding.bids.add(response);
+                        if (bidding.advance(Phase.BID, Phase.AWARD, deadline(config.award_timeout()))) {
+                            long remaining = Math.max(0, bidding.bidWindow - latency);
+                            try {
+                                sched.schedule(() -> award(bidding), remaining, TimeUnit.MILLISECONDS);
+                            } catch (RejectedExecutionException ree) {
+                                // We are shutting down
+                            }
+                        }
+                        award(bidding);
+                    }
                 }
                 break;
 
             case ALREADY_INSTALLED:
                 warn("consumer for <%s> is already installed on node <%s>", requestIdentity, response.sourceNode);
-                bidResponses.remove(requestIdentity);
-                inProgress.remove(requestIdentity);
+                InFlightRequest discarded = registry.remove(requestIdentity);
+                if (discarded != null) {
+                    discarded.buffer.close();
+                }
                 break;
 
             case INSTALL_OK:
+                updatePlacements(response);
                 if (requestIdentity.startsWith(LAST_RESORT_PREFIX)) {
-                    blacklist.put(requestIdentity, 0L);   // flag last_resort install ok
+                    // flag last_resort install ok
+                    blacklist.installed(eventTypeOf(requestIdentity), String.format("Installed on node %s",
+                    		response.sourceNode));
                 }
-                List<UntypedEvent> events = inProgress.remove(requestIdentity);
+                InFlightRequest installed = registry.get(requestIdentity);
 
-                if (events != null) {
-                    info("Resending %d last resort events(%s)", events.size(), requestIdentity);
-                    for (UntypedEvent event : events) {
-                        eventBus.deliver(event.eventType, event.eventData);
+                if (installed != null && installed.installed()) {
+                    if (installed.symbolicName != null) {
+                        bundle2lastresort.put(installed.symbolicName + "_" + installed.version, requestIdentity);
                     }
+                    // The request stays in flight until the replay finishes,
+                    // so that new events queue behind the buffered ones
+                    info("Resending %d last resort events(%s)", installed.buffer.size(), requestIdentity);
+                    new Replay(installed).start();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Record the timing reported by an installing node, so that the metrics
+     * of this node cover the installs it requested across the fleet. Every
+     * node sees every response, so responses to other nodes are ignored.
+     */
+    private void recordInstallTiming(ManagementResponseDTO response) {
+        InstallTimingDTO timing = response.timing;
+        if (timing == null || !myNode.equals(response.targetNode)
+                || (response.action != ManagementInstallAction.INSTALL
+                        && response.action != ManagementInstallAction.UPDATE)) {
+            return;
+        }
+        metrics.record("install.queue", timing.queueMillis);
+        metrics.record("install.index_load", timing.indexLoadMillis);
+        metrics.record("install.resolve", timing.resolveMillis);
+        metrics.record("install.download", timing.downloadMillis);
+        metrics.record("install.install", timing.installMillis);
+        metrics.record("install.start", timing.startMillis);
+        metrics.record("install.total", timing.totalMillis);
+        metrics.add("install.bundles.resolved", timing.bundlesResolved);
+        metrics.add("install.bundles.downloaded", timing.bundlesDownloaded);
+        metrics.add("install.bytes", timing.bytesFetched);
+        metrics.add("install.index.cache.hits", timing.indexCacheHits);
+    }
+
+    private void updatePlacements(ManagementResponseDTO response) {
+        if (response.action == null || response.sourceNode == null) {
+            return;
+        }
+        switch (response.action) {
+            case INSTALL:
+                if (response.symbolicName != null) {
+                    placements.installed(response.symbolicName, response.version, response.sourceNode,
+                            response.timestamp == null ? System.currentTimeMillis() : response.timestamp.toEpochMilli());
+                }
+                break;
+            case UPDATE:
+                if (response.symbolicName != null) {
+                    placements.updated(response.symbolicName, response.version, response.sourceNode,
+                            response.timestamp == null ? System.currentTimeMillis() : response.timestamp.toEpochMilli());
                 }
                 break;
+            case UNINSTALL:
+                if (response.symbolicName != null) {
+                    placements.uninstalled(response.symbolicName, response.version, response.sourceNode);
+                }
+                break;
+            case RESET:
+                placements.reset(response.sourceNode);
+                break;
         }
     }
 
     void installComplete(ManagementInstallRequestDTO request, InstallResponseDTO response) {
-        String target = pendingInstall.remove(request.requestIdentity);
+        String target = registry.completeInstall(request.requestIdentity);
         if (target == null) {
             debug("Ignore InstallResponse that we did not initiate: %s", request.requestIdentity);
             return;
@@ -521,6 +1145,10 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
         ManagementResponseDTO mr = new ManagementResponseDTO();
         mr.targetNode = target;
         mr.requestIdentity = request.requestIdentity;
+        mr.action = request.action;
+        mr.symbolicName = request.symbolicName;
+        mr.version = request.version;
+        mr.timing = response.timing;
 
         if (response.code.equals(ResponseCode.SUCCESS)) {
             mr.code = ManagementResponseDTO.ResponseCode.INSTALL_OK;
@@ -530,8 +1158,9 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 
             if (request.action == ManagementInstallAction.UNINSTALL) {
                 ManagementBlacklistDTO mbl = new ManagementBlacklistDTO();
+                mbl.requestIdentity = request.requestIdentity;
                 mbl.uninstalled = response.messages;
-                eventBus.deliver(mr);
+                eventBus.deliver(mbl);
             }
 
         } else {
@@ -548,45 +1177,483 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
     void notifyLastResort(String eventType, Map<String, ?> properties) {
 
     	String identity = LAST_RESORT_PREFIX + eventType;
-        List<UntypedEvent> pendingEvents = inProgress.get(identity);
+        InFlightRequest pending = registry.get(identity);
 
-        UntypedEvent event = new UntypedEvent();
-        event.eventType = eventType;
-        event.eventData = new HashMap<String, Object>(properties);
+        // The properties are copied only if the event is buffered, most
+        // ignored events are dropped without it
+        if (pending != null && bufferEvent(pending.buffer, eventType, properties)) {
+            return;
+        }
+
+        Reason reason = blacklist.check(eventType);
+        if (reason == Reason.INSTALLED) {
+            long ttl = blacklist.suppress(eventType, Reason.CONSUMER_NOT_CONFIGURED,
+                    "Still not consumed after installing behaviour");
+            warn("Event(%s) still not consumed after installing behaviour, ignoring it for %d ms", eventType, ttl);
+        } else if (reason != null) {
+            debug("Ignore event(%s) we've already handled: %s", identity, reason);
+        } else if (isUnresolvable(eventType)) {
+            debug("Ignore event(%s) with no consumer in the marketplace", eventType);
+        } else {
+            List<Resource> consumers = consumersOf(eventType);
+            if (consumers.isEmpty()) {
+                consumerNotFound(eventType, properties);
+                return;
+            }
+
+            Resource resource = selectResource(consumers, identity);
+
+            pending = new InFlightRequest(identity, eventType, newEventBuffer(eventType),
+                    deadline(config.bid_timeout()));
+            pending.symbolicName = getSymbolicName(resource, identity);
+            pending.version = getVersion(resource);
+
+            InFlightRequest existing = registry.register(pending);
+            if (existing != null) {
+                // Another thread started the round for this event type
+                pending.buffer.close();
+                if (!bufferEvent(existing.buffer, eventType, properties)) {
+                    // ... and it has already finished
+                    notifyLastResort(eventType, properties);
+                }
+                return;
+            }
+            pending.buffer.add(untyped(eventType, properties));
 
-        if (pendingEvents != null) {
-            info("Queue Last_Resort event(%s) pending install", eventType);
-            pendingEvents.add(event);
-        } else if (blacklist.containsKey(identity)) {
-            if (blacklist.get(identity) == 0) {
-                warn("Event(%s) still not consumed after installing behaviour", eventType);
-                blacklist.put(identity, System.currentTimeMillis());
+            String owner = nodes.owner(eventType);
+            if (owner.equals(myNode)) {
+                startRound(pending);
             } else {
-                debug("Ignore event(%s) we've already handled", identity);
+                // Ask the owner to run the round, and buffer until it completes
+                debug("Event(%s) is owned by node %s, requesting it runs the bid round", eventType, owner);
+                pending.follow(owner, System.currentTimeMillis() + leaseMillis());
+                sendClaim(ClaimAction.REQUEST, pending, owner);
             }
-        } else {
-            pendingEvents = new ArrayList<>();
+        }
+    }
 
-            inProgress.put(identity, pendingEvents);
-            pendingEvents.add(event);
+    private void startRound(InFlightRequest r) {
+        sendClaim(ClaimAction.CLAIM, r, null);
+
+        String known = placements.healthyNode(r.symbolicName, r.version);
+        if (known != null && r.advance(Phase.BID, Phase.AWARD, deadline(config.award_timeout()))
+                && r.award(known, deadline(config.install_timeout()))) {
+            // The behaviour is known to be installed there, so skip the bid round
+            info("Event(%s) has a known placement on node %s, requesting install without bidding",
+                    r.eventType, known);
+            ManagementInstallRequestDTO request = new ManagementInstallRequestDTO();
+            request.action = ManagementInstallAction.INSTALL;
+            request.targetNode = known;
+            request.requestIdentity = r.requestIdentity;
+            request.symbolicName = r.symbolicName;
+            request.version = r.version;
+            eventBus.deliver(request);
+            return;
+        }
 
-            // prepare for bid responses
-            bidResponses.put(identity, new HashSet<>());
+        if (config.bid_batch_window_ms() <= 0) {
+            sendBidRequests(singletonList(r));
+            return;
+        }
+
+        // Coalesce with other rounds starting at about the same time,
+        // e.g. the events of a device that has just come online
+        List<InFlightRequest> full = null;
+        synchronized (pendingBids) {
+            pendingBids.add(r);
+            if (pendingBids.size() >= config.bid_batch_size()) {
+                full = new ArrayList<>(pendingBids);
+                pendingBids.clear();
+            } else if (pendingBids.size() == 1) {
+                try {
+                    sched.schedule(this::flushBidRequests, config.bid_batch_window_ms(), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    // We are shutting down
+                }
+            }
+        }
+        if (full != null) {
+            sendBidRequests(full);
+        }
+    }
 
+    private void flushBidRequests() {
+        List<InFlightRequest> batch;
+        synchronized (pendingBids) {
+            batch = new ArrayList<>(pendingBids);
+            pendingBids.clear();
+        }
+        if (!batch.isEmpty()) {
+            sendBidRequests(batch);
+        }
+    }
+
+    private void sendBidRequests(List<InFlightRequest> rounds) {
+        long window = bidLatencies.window(config.bid_window_percentile(),
+                config.bid_window_min_ms(), config.bid_window_max_ms());
+
+        List<ManagementBidRequestDTO> requests = new ArrayList<>(rounds.size());
+        for (InFlightRequest r : rounds) {
             ManagementBidRequestDTO request = new ManagementBidRequestDTO();
-			request.requestIdentity = identity;
+            request.requestIdentity = r.requestIdentity;
+            request.symbolicName = r.symbolicName;
+            request.version = r.version;
+            requests.add(request);
+        }
 
-			Resource resource = getResourceForRequirement(toRequirementList(format(SMART_BEHAVIOUR_FILTER, eventType)), identity);
+        ManagementBidRequestDTO request;
+        if (requests.size() == 1) {
+            request = requests.get(0);
+        } else {
+            ManagementBatchBidRequestDTO batch = new ManagementBatchBidRequestDTO();
+            batch.requestIdentity = "batch:" + UUID.randomUUID();
+            batch.requests = requests;
+            request = batch;
+            debug("Sending %d bid requests in batch %s", requests.size(), batch.requestIdentity);
+        }
 
-            request.symbolicName = getSymbolicName(resource, identity);
-            request.version = getVersion(resource);
-            eventBus.deliver(request);
+        long now = System.currentTimeMillis();
+        for (InFlightRequest r : rounds) {
+            r.roundStarted = now;
+            r.bidWindow = window;
+            r.batch = requests.size() == 1 ? null : request.requestIdentity;
+        }
+        eventBus.deliver(request);
+    }
+
+    private void sendClaim(ClaimAction action, InFlightRequest r, String targetNode) {
+        ManagementClaimDTO claim = new ManagementClaimDTO();
+        claim.action = action;
+        claim.targetNode = targetNode;
+        claim.requestIdentity = r.requestIdentity;
+        claim.eventType = r.eventType;
+        claim.symbolicName = r.symbolicName;
+        claim.version = r.version;
+        claim.lease = leaseMillis();
+        eventBus.deliver(claim);
+    }
+
+    private void releaseClaim(String eventType, Reason reason, String message) {
+        ManagementClaimDTO claim = new ManagementClaimDTO();
+        claim.action = ClaimAction.RELEASE;
+        claim.requestIdentity = LAST_RESORT_PREFIX + eventType;
+        claim.eventType = eventType;
+        claim.reason = reason;
+        claim.message = message;
+        eventBus.deliver(claim);
+    }
+
+    private long leaseMillis() {
+        return TimeUnit.SECONDS.toMillis(config.claim_lease());
+    }
+
+    void notify(ManagementClaimDTO claim) {
+        long now = System.currentTimeMillis();
+        nodes.seen(claim.sourceNode, now);
+
+        if (claim.sourceNode == null || claim.sourceNode.equals(myNode) || claim.eventType == null) {
+            return;
+        }
+
+        InFlightRequest r = registry.get(claim.requestIdentity);
+
+        switch (claim.action) {
+            case REQUEST:
+                if (!myNode.equals(claim.targetNode)) {
+                    break;
+                }
+                if (r == null) {
+                    claimRequested(claim);
+                } else if (r.phase() != Phase.FOLLOW) {
+                    // Already running the round, remind the requester
+                    sendClaim(ClaimAction.CLAIM, r, null);
+                }
+                break;
+
+            case CLAIM:
+                if (r == null) {
+                    break;
+                }
+                long leaseEnd = now + claim.lease;
+                switch (r.phase()) {
+                    case FOLLOW:
+                        if (!r.renew(claim.sourceNode, leaseEnd)
+                                && KnownNodes.outranks(claim.sourceNode, r.owner(), claim.eventType)) {
+                            r.follow(claim.sourceNode, leaseEnd);
+                        }
+                        break;
+                    case BID:
+                    case AWARD:
+                        // Two nodes have claimed the same round, the higher ranked one keeps it.
+                        // The other node learns of our claim when we next renew it.
+                        if (KnownNodes.outranks(claim.sourceNode, myNode, claim.eventType)
+                                && r.follow(claim.sourceNode, leaseEnd)) {
+                            info("Yielding the bid round for event(%s) to node %s", claim.eventType, claim.sourceNode);
+                        }
+                        break;
+                    default:
+                        // Too late to give up our round
+                        break;
+                }
+                break;
+
+            case RELEASE:
+                if (r != null && r.phase() == Phase.FOLLOW && claim.sourceNode.equals(r.owner())
+                        && registry.remove(r)) {
+                    int discarded = r.buffer.size();
+                    r.buffer.close();
+                    Reason reason = claim.reason == null ? Reason.NO_HOSTS : claim.reason;
+                    long ttl = blacklist.suppress(claim.eventType, reason, claim.message);
+                    info("Node %s gave up the bid round for event(%s), discarding %d events and ignoring it for %d ms",
+                            claim.sourceNode, claim.eventType, discarded, ttl);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Another node asked us to run the round for an event type we own
+     */
+    private void claimRequested(ManagementClaimDTO claim) {
+        String eventType = claim.eventType;
+        Reason reason = blacklist.check(eventType);
+        if (reason != null && reason != Reason.INSTALLED) {
+            releaseClaim(eventType, reason, "The event type is blacklisted on the owning node");
+            return;
+        }
+
+        List<Resource> consumers = consumersOf(eventType);
+        if (consumers.isEmpty()) {
+            releaseClaim(eventType, Reason.NO_HOSTS, "No smart behaviour in the marketplace consumes " + eventType);
+            return;
+        }
+
+        Resource resource = selectResource(consumers, claim.requestIdentity);
+        InFlightRequest r = new InFlightRequest(claim.requestIdentity, eventType, newEventBuffer(eventType),
+                deadline(config.bid_timeout()));
+        r.symbolicName = getSymbolicName(resource, claim.requestIdentity);
+        r.version = getVersion(resource);
+
+        if (registry.register(r) == null) {
+            info("Running the bid round for event(%s) on behalf of node %s", eventType, claim.sourceNode);
+            startRound(r);
+        } else {
+            r.buffer.close();
+        }
+    }
+
+    private void renewClaims() {
+        for (InFlightRequest r : registry.requests()) {
+            Phase phase = r.phase();
+            if (phase == Phase.BID || phase == Phase.AWARD || phase == Phase.INSTALL) {
+                sendClaim(ClaimAction.CLAIM, r, null);
+            }
+        }
+    }
+
+    /**
+     * Publish the bid round latencies, last resort buffer sizes and cache
+     * hit rates. Not a {@link BehaviourManagement} method, so that they are
+     * not exported to other nodes.
+     */
+    private void registerMetrics(BundleContext context) {
+        metrics.gauge("requests.in_flight", () -> registry.requests().size());
+        metrics.gauge("nodes.known", () -> nodes.size());
+        metrics.gauge("bid.queue.depth", () -> bidWorkers == null ? 0 : bidWorkers.getQueue().size());
+        metrics.gauge("buffer.buffered", () -> getEventBuffers().stream().mapToInt(b -> b.buffered).sum());
+        metrics.gauge("buffer.spilled", () -> getEventBuffers().stream().mapToInt(b -> b.spilled).sum());
+        metrics.ratio("unresolvable.cache.hit_ratio", "unresolvable.cache.hits", "unresolvable.cache.misses");
+
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put(MetricsProvider.SOURCE, "management");
+        registrations.add(context.registerService(MetricsProvider.class, metrics::snapshot, props));
+    }
+
+    private EventBuffer newEventBuffer(String eventType) {
+        File spillFile = new File(spillDir, String.format("%08x-%d.seg", eventType.hashCode(), spillCount.incrementAndGet()));
+        return new EventBuffer(eventType, config.last_resort_buffer_size(),
+                config.last_resort_overflow_policy(), spillFile, config.last_resort_spill_size(),
+                message -> warn("%s", message));
+    }
+
+    /**
+     * @return <code>false</code> if the buffer has been closed and the event was not added
+     */
+    private boolean bufferEvent(EventBuffer buffer, String eventType, Map<String, ?> properties) {
+        Offer offer = buffer.add(untyped(eventType, properties));
+        switch (offer) {
+            case BUFFERED:
+                metrics.increment("buffer.events");
+                info("Queue Last_Resort event(%s) pending install", eventType);
+                break;
+            case DROPPED:
+                metrics.increment("buffer.dropped");
+                warn("The Last_Resort buffer for event(%s) is full, an event was dropped", eventType);
+                break;
+            case CLOSED:
+                return false;
+        }
+        return true;
+    }
+
+    private static UntypedEvent untyped(String eventType, Map<String, ?> properties) {
+        UntypedEvent event = new UntypedEvent();
+        event.eventType = eventType;
+        event.eventData = new HashMap<String, Object>(properties);
+        return event;
+    }
+
+    @Override
+    public Collection<EventBufferDTO> getEventBuffers() {
+        return registry.requests().stream()
+                .map(r -> r.buffer.toDTO())
+                .collect(toList());
+    }
+
+    @Override
+    public ReadinessDTO getReadiness() {
+        return readiness;
+    }
 
-            String installstr = request.symbolicName + "_" + request.version;
-            bundle2lastresort.put(installstr, identity);
+    @Override
+    public Collection<IndexHealthDTO> getIndexHealth() {
+        long now = System.currentTimeMillis();
+        List<IndexHealthDTO> dtos = new ArrayList<>();
+        for (IndexHealth h : federation.getHealth()) {
+            IndexHealthDTO dto = new IndexHealthDTO();
+            dto.index = h.getIndex().toString();
+            dto.state = IndexHealthDTO.State.valueOf(h.getState(now).name());
+            dto.failures = h.getFailures();
+            dto.lastSuccess = h.getLastSuccess();
+            dto.lastFailure = h.getLastFailure();
+            dto.latency = h.getLatency();
+            dto.resources = h.getResources();
+            dto.message = h.getMessage();
+            dtos.add(dto);
+        }
+        return dtos;
+    }
+
+    @Override
+    public Collection<PlacementDTO> getPlacements() {
+        return placements.toDTOs();
+    }
+
+    @Override
+    public ManagementMetricsDTO getMetrics() {
+        ManagementMetricsDTO dto = registry.toDTO();
+        dto.knownNodes = nodes.size();
+        dto.bidWindow = lastBidWindow;
+        dto.lastRoundLatency = lastRoundLatency;
+        dto.bidLatencies = bidLatencies.toMap(config.bid_window_percentile());
+        return dto;
+    }
+
+    private static String eventTypeOf(String requestIdentity) {
+        return requestIdentity.substring(LAST_RESORT_PREFIX.length());
+    }
+
+    private static long deadline(long seconds) {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    private void expireInFlight() {
+        long now = System.currentTimeMillis();
+        for (Rollout r : activeRollouts) {
+            for (String requestIdentity : r.expire(now)) {
+                warn("No response to rollout request(%s) in time", requestIdentity);
+            }
+        }
+        nodes.prune(now - TimeUnit.SECONDS.toMillis(config.node_timeout()));
+
+        for (InFlightRequest r : registry.expire(now)) {
+            if (r.phase() == Phase.FOLLOW) {
+                String owner = r.owner();
+                if (r.takeOver(now, deadline(config.bid_timeout()))) {
+                    warn("The claim of node %s on event(%s) lapsed, running the bid round here",
+                            owner, r.eventType);
+                    nodes.forget(owner);
+                    bidLatencies.forget(owner);
+                    placements.nodeLost(owner);
+                    startRound(r);
+                }
+                continue;
+            }
+
+            int discarded = r.buffer.size();
+            r.buffer.close();
+
+            switch (r.phase()) {
+                case BID:
+                case AWARD:
+                    long ttl = blacklist.suppress(r.eventType, Reason.NO_HOSTS,
+                            String.format("No node offered to install %s at version %s", r.symbolicName, r.version));
+                    warn("No node installed a consumer for event(%s) in time, discarding %d events and ignoring it for %d ms",
+                            r.eventType, discarded, ttl);
+                    releaseClaim(r.eventType, Reason.NO_HOSTS, "No node offered to install a consumer");
+                    ManagementAlertDTO alert = new ManagementAlertDTO();
+                    alert.alert = ManagementAlertDTO.AlertType.NO_HOSTS;
+                    alert.eventType = r.eventType;
+                    alert.messages = singletonList(String.format(
+                            "No node offered to install %s at version %s to consume %s, %d events were discarded",
+                            r.symbolicName, r.version, r.eventType, discarded));
+                    eventBus.deliver(alert);
+                    break;
+                case INSTALL:
+                    placements.failed(r.symbolicName, r.version, r.awardedNode());
+                    installFailed(r, String.format("Node %s did not install %s at version %s in time, %d events were discarded",
+                            r.awardedNode(), r.symbolicName, r.version, discarded));
+                    break;
+                case SWAP:
+                    warn("Update of %s to version %s did not complete in time, discarding %d events(%s)",
+                            r.symbolicName, r.version, discarded, r.eventType);
+                    break;
+                default:
+                    break;
+            }
         }
     }
 
+    private void installFailed(InFlightRequest r, String message) {
+        long ttl = blacklist.suppress(r.eventType, Reason.INSTALL_FAILED, message);
+        warn("Failed to install a consumer for event(%s), ignoring it for %d ms: %s", r.eventType, ttl, message);
+        releaseClaim(r.eventType, Reason.INSTALL_FAILED, message);
+        ManagementAlertDTO alert = new ManagementAlertDTO();
+        alert.alert = ManagementAlertDTO.AlertType.INSTALL_FAILED;
+        alert.eventType = r.eventType;
+        alert.messages = singletonList(message);
+        eventBus.deliver(alert);
+    }
+
+    private boolean isUnresolvable(String eventType) {
+        boolean hit = unresolvable.contains(eventType, System.currentTimeMillis());
+        metrics.increment(hit ? "unresolvable.cache.hits" : "unresolvable.cache.misses");
+        return hit;
+    }
+
+    private void consumerNotFound(String eventType, Map<String, ?> properties) {
+        long ttl = TimeUnit.SECONDS.toMillis(config.consumer_not_found_ttl());
+        if (!unresolvable.add(eventType, System.currentTimeMillis(), ttl)) {
+            // Another thread found no consumer first and has raised the alert
+            return;
+        }
+
+        warn("No consumer for event(%s) in the marketplace, ignoring it for %d ms", eventType, ttl);
+
+        ManagementAlertDTO alert = new ManagementAlertDTO();
+        alert.alert = ManagementAlertDTO.AlertType.CONSUMER_NOT_FOUND;
+        alert.eventType = eventType;
+        alert.properties = new HashMap<>(properties);
+        alert.messages = singletonList(String.format(
+                "No smart behaviour in the marketplace consumes %s, further events of this type are ignored for %d ms",
+                eventType, ttl));
+        eventBus.deliver(alert);
+    }
+
+    private void purgeUnresolvable() {
+        unresolvable.purge(System.currentTimeMillis());
+    }
+
     private List<Requirement> toRequirementList(String requirements) {
 		try {
 			return getRequirementsFrom(new Parameters(requirements));
@@ -596,14 +1663,42 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 		}
 	}
 
-	private Resource getResourceForRequirement(List<Requirement> requirements, String request) {
+	private List<Resource> consumersOf(String eventType) {
+		MarketplaceView m = acquireMarketplace();
+		try {
+			return m.index.consumersOf(eventType);
+		} finally {
+			m.release();
+		}
+	}
+
+	private Resource getResourceForIdentity(String symbolicName, String version, String request) {
+		MarketplaceView m = acquireMarketplace();
+		try {
+			Resource res = m.index.resourceFor(symbolicName, version);
+			if(res == null) {
+				// Not a plain identity match, fall back to the repository's filter semantics
+				res = getResourceForRequirement(m, toRequirementList(
+						String.format(IDENTITY_FILTER, symbolicName, version)), request);
+			}
+			return res;
+		} finally {
+			m.release();
+		}
+	}
+
+	private Resource getResourceForRequirement(MarketplaceView m, List<Requirement> requirements, String request) {
 
-		List<Resource> found = repository.findProviders(requirements).values().stream()
+		List<Resource> found = m.repository.findProviders(requirements).values().stream()
 				.flatMap(Collection::stream)
 				.map(Capability::getResource)
 				.distinct()
 				.collect(toList());
 
+		return selectResource(found, request);
+	}
+
+	private Resource selectResource(List<Resource> found, String request) {
 		if(found.isEmpty()) {
 			// TODO alert no matching resource
 			throw new RuntimeException("No resource suitable for " + request);
@@ -636,29 +1731,159 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 	class BidTracker implements Runnable {
         @Override
         public void run() {
-            for (String requestIdentity : bidResponses.keySet()) {
-                Set<ManagementResponseDTO> bids = bidResponses.get(requestIdentity);
-                if (bids == null) continue;
-                if (bids.size() == 0) continue;
+            for (InFlightRequest r : registry.requests()) {
+                award(r);
+            }
+        }
+    }
 
-                List<ManagementResponseDTO> lbids = new ArrayList<>(bids);
-                Collections.sort(lbids, (a, b) -> b.bid - a.bid);
-                ManagementResponseDTO bestBid = lbids.get(0);
+    /**
+     * Choose between equal best bids so that the behaviours of a batch are
+     * installed on the same node where possible, sharing their bundles.
+     * Prefer a node already awarded another request of the batch, then a
+     * node that bid for every request of the batch.
+     *
+     * @param bids the bids, best first
+     */
+    private ManagementResponseDTO coLocate(InFlightRequest r, List<ManagementResponseDTO> bids) {
+        String batch = r.batch;
+        if (batch == null) {
+            return bids.get(0);
+        }
 
-                long millis = System.currentTimeMillis() - bestBid.timestamp.toEpochMilli();
+        int best = bids.get(0).bid;
+        List<ManagementResponseDTO> candidates = bids.stream()
+                .filter(b -> b.bid == best)
+                .sorted((a, b) -> String.valueOf(a.sourceNode).compareTo(String.valueOf(b.sourceNode)))
+                .collect(toList());
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
 
-                if (bestBid.bid > 0 || millis > 1000) {
-                    bidResponses.remove(requestIdentity); // ignore further bids
-                    ManagementInstallRequestDTO request = new ManagementInstallRequestDTO();
-                    request.action = ManagementInstallAction.INSTALL;
-                    request.targetNode = bestBid.sourceNode;
-                    request.requestIdentity = bestBid.requestIdentity;
-                    request.symbolicName = bestBid.symbolicName;
-                    request.version = bestBid.version;
-                    eventBus.deliver(request);
+        List<InFlightRequest> peers = registry.requests().stream()
+                .filter(p -> p != r && batch.equals(p.batch))
+                .collect(toList());
+
+        for (ManagementResponseDTO b : candidates) {
+            if (peers.stream().anyMatch(p -> b.sourceNode.equals(p.awardedNode()))) {
+                return b;
+            }
+        }
+        for (ManagementResponseDTO b : candidates) {
+            if (peers.stream().allMatch(p -> p.bids.stream().anyMatch(x -> b.sourceNode.equals(x.sourceNode)))) {
+                return b;
+            }
+        }
+        return candidates.get(0);
+    }
+
+    /**
+     * Award the install to the best bidder once the bid window has passed,
+     * a positive bid arrives, or all the expected responders have bid
+     */
+    private void award(InFlightRequest r) {
+        if (r.phase() != Phase.AWARD) return;
+        if (r.bids.size() == 0) return;
+
+        List<ManagementResponseDTO> lbids = new ArrayList<>(r.bids);
+        Collections.sort(lbids, (a, b) -> b.bid - a.bid);
+        ManagementResponseDTO bestBid = coLocate(r, lbids);
+
+        long millis = System.currentTimeMillis() - r.roundStarted;
+        int expected = config.bid_expected_responders() > 0 ? config.bid_expected_responders() : nodes.size();
+
+        if ((bestBid.bid > 0 || millis >= r.bidWindow || lbids.size() >= expected)
+                && r.award(bestBid.sourceNode, deadline(config.install_timeout()))) { // ignore further bids
+            lastBidWindow = r.bidWindow;
+            lastRoundLatency = millis;
+            metrics.record("bid.round", millis);
+            debug("Awarding event(%s) to node %s after %d ms with %d bids (window %d ms)",
+                    r.eventType, bestBid.sourceNode, millis, lbids.size(), r.bidWindow);
+
+            ManagementInstallRequestDTO request = new ManagementInstallRequestDTO();
+            request.action = ManagementInstallAction.INSTALL;
+            request.targetNode = bestBid.sourceNode;
+            request.requestIdentity = bestBid.requestIdentity;
+            request.symbolicName = bestBid.symbolicName;
+            request.version = bestBid.version;
+            eventBus.deliver(request);
+        }
+    }
+
+    /**
+     * Redelivers the events buffered for a last resort request in batches,
+     * oldest first. Events which come back unhandled during the replay are
+     * appended to the buffer, so they are retried until the replay times out.
+     */
+    class Replay implements Runnable {
+        private final InFlightRequest request;
+        private final String requestIdentity;
+        private final EventBuffer buffer;
+        private final int batchSize;
+        private final long deadline;
+        private volatile ScheduledFuture<?> future;
+
+        Replay(InFlightRequest request) {
+            this.request = request;
+            this.requestIdentity = request.requestIdentity;
+            this.buffer = request.buffer;
+            this.batchSize = Math.max(1, config.replay_batch_size());
+            this.deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.replay_timeout());
+        }
+
+        void start() {
+            long interval = Math.max(1, config.replay_interval_ms());
+            try {
+                future = sched.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                // We are shutting down
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (System.currentTimeMillis() > deadline) {
+                    timedOut();
+                    return;
                 }
+
+                for (UntypedEvent event : buffer.poll(batchSize)) {
+                    eventBus.deliver(event.eventType, event.eventData);
+                }
+
+                if (buffer.closeIfEmpty()) {
+                    registry.remove(request);
+                    debug("Finished resending last resort events(%s)", requestIdentity);
+                    future.cancel(false);
+                }
+            } catch (RuntimeException e) {
+                error("Failed to resend last resort events(%s): %s", requestIdentity, e.getMessage());
             }
         }
+
+        private void timedOut() {
+            int remaining = buffer.size();
+            buffer.close();
+            registry.remove(request);
+            future.cancel(false);
+
+            // Don't start another install round for this event type for a while
+            blacklist.suppress(request.eventType, Reason.CONSUMER_NOT_CONFIGURED,
+                    String.format("%d events still unhandled after installing behaviour", remaining));
+
+            String eventType = request.eventType;
+            warn("Event(%s) still not consumed after installing behaviour, discarding %d events",
+                    eventType, remaining);
+
+            ManagementAlertDTO alert = new ManagementAlertDTO();
+            alert.alert = ManagementAlertDTO.AlertType.CONSUMER_NOT_CONFIGURED;
+            alert.eventType = eventType;
+            alert.messages = singletonList(String.format(
+                    "Events of type %s were still unhandled %d seconds after installing a consumer, %d events were discarded",
+                    eventType, config.replay_timeout(), remaining));
+            eventBus.deliver(alert);
+        }
     }
 
     class QueueProcessor implements Runnable {
@@ -673,7 +1898,7 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 
                     if(request instanceof ManagementInstallRequestDTO) {
                     	ManagementInstallRequestDTO installDTO = (ManagementInstallRequestDTO) request;
-                    	pendingInstall.put(requestIdentity, request.sourceNode);
+                    	registry.beginInstall(requestIdentity, request.sourceNode, deadline(config.install_timeout()));
                     	Promise<InstallResponseDTO> p;
                     	switch(installDTO.action) {
 							case INSTALL:
@@ -686,8 +1911,7 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
 								p = installer.uninstallFunction(request.symbolicName, request.version);
 								break;
 							case UPDATE:
-								// Not yet implemented
-								p = Promises.failed(new UnsupportedOperationException("No support for update yet"));
+								p = updateBehaviour(request.symbolicName, request.version, requestIdentity);
 								break;
 							default:
 								p = Promises.failed(new UnsupportedOperationException("No support for an action " + installDTO.action + " yet"));
@@ -704,32 +1928,19 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
                             String bundlever = bundlestr.replaceFirst(" .*", "");
                             String lastresort = bundle2lastresort.remove(bundlever);
                             if (lastresort != null) {
-                                if (blacklist.remove(lastresort) != null) {
+                                if (blacklist.remove(eventTypeOf(lastresort))) {
                                     info("Blacklist clear: %s", lastresort);
                                 }
                             }
                         }
+                    } else if (request instanceof ManagementBatchBidRequestDTO) {
+                    	ManagementBatchBidRequestDTO batchRequest = (ManagementBatchBidRequestDTO) request;
+                    	bidExecutor.execute(requestIdentity, () -> processBatchBid(batchRequest),
+                    			ree -> bidRejected(batchRequest, ree));
                     } else if (request instanceof ManagementBidRequestDTO) {
-
-                    	String identityRequirement = String.format(IDENTITY_FILTER, request.symbolicName, request.version);
-
-						Resource res = getResourceForRequirement(toRequirementList(identityRequirement), requestIdentity);
-
-	                    List<URI> indexes = getRelevantIndex(res);
-
-                    	String resolveRequirements = resolveRequirementsFor(res, identityRequirement);
-
-                    	Map<Resource, String> resolve = resolver.resolve(requestIdentity,
-                        		singletonList(loadIndex("Resolving " + requestIdentity, indexes)),
-                        		toRequirementList(resolveRequirements));
-                    	ManagementResponseDTO response = new ManagementResponseDTO();
-                        response.code = resolve.size() == 0 ? ALREADY_INSTALLED : BID;
-                        response.bid = 0;
-                        response.requestIdentity = requestIdentity;
-                        response.targetNode = request.sourceNode;
-                        response.symbolicName = request.symbolicName;
-                        response.version = request.version;
-                        eventBus.deliver(response);
+                    	ManagementBidRequestDTO bidRequest = (ManagementBidRequestDTO) request;
+                    	bidExecutor.execute(requestIdentity, () -> processBid(bidRequest),
+                    			ree -> bidRejected(bidRequest, ree));
                     } else {
                         throw new Exception("unknown request: " + request);
                     }
@@ -745,21 +1956,116 @@ public class BehaviourManagementImpl implements SmartBehaviour<ManagementBidRequ
                 }
             }
         }
+    }
 
-		private void failedAction(ManagementDTO request, Throwable t) {
-			if(request.requestIdentity != null) {
-				pendingInstall.remove(request.requestIdentity, request.sourceNode);
-			}
-        	warn("Failed to process action(%s) event(%s): %s", request.getClass().getSimpleName(),
-        			request.requestIdentity, t.getMessage(), t);
-        	ManagementResponseDTO response = new ManagementResponseDTO();
-            response.code = ManagementResponseDTO.ResponseCode.FAIL;
-            response.requestIdentity = request.requestIdentity;
-            response.targetNode = request.sourceNode;
-            response.message = String.format("Failed request of type %s for %s at version %s because: %s",
-            		request.getClass().getSimpleName(), request.symbolicName, request.version, t.getMessage());
-            eventBus.deliver(response);
-        }
+    private void processBid(ManagementBidRequestDTO request) {
+    	try {
+    		Map<Resource, String> resolve = resolveBid(request.requestIdentity, singletonList(request),
+    				new HashMap<>());
+    		sendBid(request, !resolve.isEmpty());
+    	} catch (Exception e) {
+    		if (running.get()) {
+    			try {
+    				failedAction(request, e);
+    			} catch (Exception e2) {
+    				error("An error occurred notifying of an error", e2);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Answer every request in a batch from a single resolution of all of
+     * them, falling back to resolving each request on its own if that fails.
+     * Each request bids only if its own share of the resolution is not empty.
+     */
+    private void processBatchBid(ManagementBatchBidRequestDTO batch) {
+    	List<ManagementBidRequestDTO> requests = batch.requests == null ?
+    			Collections.emptyList() : batch.requests;
+    	for (ManagementBidRequestDTO request : requests) {
+    		request.sourceNode = batch.sourceNode;
+    	}
+
+    	Map<String, List<Requirement>> roots = new LinkedHashMap<>();
+    	Map<Resource, String> resolve;
+    	try {
+    		resolve = resolveBid(batch.requestIdentity, requests, roots);
+    	} catch (Exception e) {
+    		debug("Unable to resolve batch %s together, resolving each request: %s",
+    				batch.requestIdentity, e.getMessage());
+    		requests.forEach(this::processBid);
+    		return;
+    	}
+
+    	Map<String, Set<Resource>> shares = ResolutionShares.shares(resolve.keySet(), roots);
+    	for (ManagementBidRequestDTO request : requests) {
+    		sendBid(request, !shares.get(request.requestIdentity).isEmpty());
+    	}
+    }
+
+    /**
+     * @param roots receives the root requirements of each request, by request identity
+     */
+    private Map<Resource, String> resolveBid(String name, List<ManagementBidRequestDTO> requests,
+    		Map<String, List<Requirement>> roots) throws Exception {
+    	Set<URI> indexes = new LinkedHashSet<>();
+    	List<Requirement> requirements = new ArrayList<>();
+    	for (ManagementBidRequestDTO request : requests) {
+    		String identityRequirement = String.format(IDENTITY_FILTER, request.symbolicName, request.version);
+
+    		Resource res = getResourceForIdentity(request.symbolicName, request.version, request.requestIdentity);
+
+    		indexes.addAll(getRelevantIndex(res));
+
+    		List<Requirement> requestRequirements = toRequirementList(resolveRequirementsFor(res, identityRequirement));
+    		roots.computeIfAbsent(request.requestIdentity, k -> new ArrayList<>()).addAll(requestRequirements);
+    		requirements.addAll(requestRequirements);
+    	}
+
+    	FederatedRepository resolveRepo = loadIndex("Resolving " + name, new ArrayList<>(indexes));
+    	try {
+    		return resolver.resolve(name, singletonList(resolveRepo), requirements);
+    	} finally {
+    		resolveRepo.close();
+    	}
+    }
+
+    /**
+     * @param needed <code>true</code> if the request needs resources installed
+     */
+    private void sendBid(ManagementBidRequestDTO request, boolean needed) {
+    	ManagementResponseDTO response = new ManagementResponseDTO();
+    	response.code = needed ? BID : ALREADY_INSTALLED;
+    	response.bid = 0;
+    	response.requestIdentity = request.requestIdentity;
+    	response.targetNode = request.sourceNode;
+    	response.symbolicName = request.symbolicName;
+    	response.version = request.version;
+    	eventBus.deliver(response);
+    }
+
+    private void bidRejected(ManagementDTO request, RejectedExecutionException ree) {
+    	failedAction(request, new Exception("Too many bid requests are waiting to be resolved", ree));
+    }
+
+    private void failedAction(ManagementDTO request, Throwable t) {
+    	if(request.requestIdentity != null) {
+    		registry.abandonInstall(request.requestIdentity, request.sourceNode);
+    	}
+    	warn("Failed to process action(%s) event(%s): %s", request.getClass().getSimpleName(),
+    			request.requestIdentity, t.getMessage(), t);
+    	ManagementResponseDTO response = new ManagementResponseDTO();
+    	response.code = ManagementResponseDTO.ResponseCode.FAIL;
+    	response.requestIdentity = request.requestIdentity;
+    	response.targetNode = request.sourceNode;
+    	response.symbolicName = request.symbolicName;
+    	response.version = request.version;
+    	if (request instanceof ManagementInstallRequestDTO) {
+    		response.action = ((ManagementInstallRequestDTO) request).action;
+    	}
+    	response.message = String.format("Failed request of type %s for %s at version %s because: %s",
+    			request.getClass().getSimpleName(), request.symbolicName, request.version, t.getMessage());
+    	eventBus.deliver(response);
     }
 
 
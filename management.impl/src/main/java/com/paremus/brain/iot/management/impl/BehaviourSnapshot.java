@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+
+import eu.brain.iot.installer.api.BehaviourDTO;
+
+/**
+ * The smart behaviours of the marketplace, with the attributes of their
+ * smart behaviour capabilities, saved so that behaviour searches can be
+ * answered from the last known marketplace while the indexes are loading.
+ */
+class BehaviourSnapshot {
+
+    private static final int MAGIC = 0x42534e31; // BSN1
+
+    static class Entry {
+        final BehaviourDTO behaviour;
+        final Map<String, Object> attributes;
+
+        Entry(BehaviourDTO behaviour, Map<String, Object> attributes) {
+            this.behaviour = behaviour;
+            this.attributes = attributes;
+        }
+    }
+
+    private final List<Entry> entries;
+    private final BehaviourCatalog catalog;
+
+    BehaviourSnapshot(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.catalog = new BehaviourCatalog(this.entries);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param ldapFilter a filter over the smart behaviour capability attributes
+     * @return copies of the matching behaviours
+     */
+    List<BehaviourDTO> find(String ldapFilter) throws InvalidSyntaxException {
+        return catalog.find(ldapFilter);
+    }
+
+    BehaviourCatalog catalog() {
+        return catalog;
+    }
+
+    /**
+     * Write the snapshot, replacing any previous one atomically
+     */
+    void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                BehaviourDTO b = e.behaviour;
+                writeString(out, b.bundle);
+                writeString(out, b.version);
+                writeString(out, b.name);
+                writeString(out, b.description);
+                writeString(out, b.author);
+                writeString(out, b.consumed);
+                out.writeInt(e.attributes.size());
+                for (Map.Entry<String, Object> a : e.attributes.entrySet()) {
+                    out.writeUTF(a.getKey());
+                    writeValue(out, a.getValue());
+                }
+            }
+        } catch (IOException ioe) {
+            tmp.delete();
+            throw ioe;
+        }
+        Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the saved snapshot, or <code>null</code> if there is none
+     */
+    static BehaviourSnapshot load(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a behaviour snapshot: " + file);
+            }
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                BehaviourDTO b = new BehaviourDTO();
+                b.bundle = readString(in);
+                b.version = readString(in);
+                b.name = readString(in);
+                b.description = readString(in);
+                b.author = readString(in);
+                b.consumed = readString(in);
+                int attrs = in.readInt();
+                Map<String, Object> attributes = new LinkedHashMap<>();
+                for (int j = 0; j < attrs; j++) {
+                    String key = in.readUTF();
+                    attributes.put(key, readValue(in));
+                }
+                entries.add(new Entry(b, attributes));
+            }
+            return new BehaviourSnapshot(entries);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v instanceof Collection) {
+            Collection<?> c = (Collection<?>) v;
+            out.writeByte('l');
+            out.writeInt(c.size());
+            for (Object o : c) {
+                writeValue(out, o);
+            }
+        } else if (v instanceof Long || v instanceof Integer) {
+            out.writeByte('L');
+            out.writeLong(((Number) v).longValue());
+        } else if (v instanceof Double || v instanceof Float) {
+            out.writeByte('D');
+            out.writeDouble(((Number) v).doubleValue());
+        } else if (v instanceof Boolean) {
+            out.writeByte('B');
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Version) {
+            out.writeByte('V');
+            out.writeUTF(v.toString());
+        } else {
+            out.writeByte('S');
+            out.writeUTF(String.valueOf(v));
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case 'l':
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case 'L':
+                return in.readLong();
+            case 'D':
+                return in.readDouble();
+            case 'B':
+                return in.readBoolean();
+            case 'V':
+                return Version.parseVersion(in.readUTF());
+            case 'S':
+                return in.readUTF();
+            default:
+                throw new IOException("Unknown attribute type " + tag);
+        }
+    }
+
+    static BehaviourDTO copy(BehaviourDTO b) {
+        BehaviourDTO c = new BehaviourDTO();
+        c.bundle = b.bundle;
+        c.version = b.version;
+        c.name = b.name;
+        c.description = b.description;
+        c.author = b.author;
+        c.consumed = b.consumed;
+        return c;
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A rolling window of bid response latencies for each responding node,
+ * used to size the time a bid round waits for bids.
+ */
+class BidLatencies {
+
+    private static class Samples {
+        final long[] values;
+        int count;
+        int next;
+
+        Samples(int size) {
+            values = new long[size];
+        }
+
+        void add(long value) {
+            values[next] = value;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+
+        long percentile(int percentile) {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+
+    private final int size;
+
+    // Guarded by this
+    private final Map<String, Samples> samples = new HashMap<>();
+
+    /**
+     * @param size the number of recent samples kept per node
+     */
+    BidLatencies(int size) {
+        this.size = Math.max(1, size);
+    }
+
+    synchronized void record(String node, long latency) {
+        samples.computeIfAbsent(node, k -> new Samples(size)).add(Math.max(0, latency));
+    }
+
+    synchronized void forget(String node) {
+        samples.remove(node);
+    }
+
+    /**
+     * The time to wait for bids: long enough for the slowest known responder
+     * to answer at the given percentile, clamped to the bounds. With no
+     * samples the maximum is used.
+     *
+     * @param percentile the percentile of each responder's latencies, 1 to 100
+     * @param min the minimum window in milliseconds
+     * @param max the maximum window in milliseconds
+     * @return the window in milliseconds
+     */
+    synchronized long window(int percentile, long min, long max) {
+        if (samples.isEmpty()) {
+            return Math.max(min, max);
+        }
+        long window = 0;
+        for (Samples s : samples.values()) {
+            window = Math.max(window, s.percentile(percentile));
+        }
+        return Math.max(min, Math.min(max, window));
+    }
+
+    /**
+     * @return each responder's latency at the given percentile
+     */
+    synchronized Map<String, Long> toMap(int percentile) {
+        Map<String, Long> result = new HashMap<>();
+        samples.forEach((node, s) -> result.put(node, s.percentile(percentile)));
+        return result;
+    }
+}
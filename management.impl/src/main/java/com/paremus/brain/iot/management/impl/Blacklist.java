@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static java.util.stream.Collectors.toList;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import com.paremus.brain.iot.management.api.BlacklistEntryDTO;
+import com.paremus.brain.iot.management.api.BlacklistEntryDTO.Reason;
+import com.paremus.brain.iot.management.impl.TimingWheel.Timeout;
+
+/**
+ * The event types whose unhandled events are ignored by the consumer of last
+ * resort.
+ * <p>
+ * Each time an event type is suppressed its time to live doubles, up to a
+ * maximum. Once an entry expires the event type is retried, but its strikes
+ * are remembered for a probation period of the maximum time to live, so that
+ * an event type which keeps failing backs off exponentially. Expiry is driven
+ * by a {@link TimingWheel}.
+ */
+class Blacklist {
+
+    private class Entry {
+        final String eventType;
+        final Reason reason;
+        final String message;
+        final int strikes;
+        final long since;
+        final long expires;
+        final boolean active;
+        Timeout timeout;
+
+        Entry(String eventType, Reason reason, String message, int strikes, long since, long expires,
+                boolean active) {
+            this.eventType = eventType;
+            this.reason = reason;
+            this.message = message;
+            this.strikes = strikes;
+            this.since = since;
+            this.expires = expires;
+            this.active = active;
+        }
+
+        BlacklistEntryDTO toDTO() {
+            BlacklistEntryDTO dto = new BlacklistEntryDTO();
+            dto.eventType = eventType;
+            dto.reason = reason;
+            dto.message = message;
+            dto.strikes = strikes;
+            dto.since = since;
+            dto.expires = expires;
+            return dto;
+        }
+    }
+
+    private final TimingWheel wheel;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile long ttl;
+    private volatile long maxTtl;
+
+    Blacklist(TimingWheel wheel, LongSupplier clock, long ttl, long maxTtl) {
+        this.wheel = wheel;
+        this.clock = clock;
+        configure(ttl, maxTtl);
+    }
+
+    /**
+     * @param ttl the time to live in milliseconds of the first strike
+     * @param maxTtl the maximum time to live, and the probation period, in milliseconds
+     */
+    void configure(long ttl, long maxTtl) {
+        this.ttl = Math.max(1, ttl);
+        this.maxTtl = Math.max(this.ttl, maxTtl);
+    }
+
+    /**
+     * @param eventType the event type
+     * @return the reason the event type is blacklisted, or <code>null</code> if it is not
+     */
+    Reason check(String eventType) {
+        Entry e = entries.get(eventType);
+        return e != null && e.active ? e.reason : null;
+    }
+
+    /**
+     * Record that a consumer has been installed. The entry lasts until the
+     * consumer is uninstalled, and does not add a strike.
+     */
+    synchronized void installed(String eventType, String message) {
+        Entry old = entries.get(eventType);
+        replace(new Entry(eventType, Reason.INSTALLED, message, old == null ? 0 : old.strikes,
+                clock.getAsLong(), Long.MAX_VALUE, true), old);
+    }
+
+    /**
+     * Add a strike and ignore the event type for a time that doubles with each strike
+     *
+     * @return the time to live of the entry in milliseconds
+     */
+    synchronized long suppress(String eventType, Reason reason, String message) {
+        Entry old = entries.get(eventType);
+        int strikes = old == null ? 1 : old.strikes + 1;
+
+        long entryTtl = strikes > 62 ? maxTtl : Math.min(maxTtl, ttl << Math.min(62, strikes - 1));
+        if (entryTtl <= 0) {
+            // overflow
+            entryTtl = maxTtl;
+        }
+
+        long now = clock.getAsLong();
+        Entry e = new Entry(eventType, reason, message, strikes, now, now + entryTtl, true);
+        replace(e, old);
+        e.timeout = wheel.schedule(() -> expired(e), e.expires);
+        return entryTtl;
+    }
+
+    /**
+     * Forget an event type, including its strikes
+     *
+     * @return <code>true</code> if the event type was blacklisted
+     */
+    synchronized boolean remove(String eventType) {
+        Entry e = entries.remove(eventType);
+        if (e != null && e.timeout != null) {
+            e.timeout.cancel();
+        }
+        return e != null && e.active;
+    }
+
+    synchronized void clear() {
+        for (Entry e : entries.values()) {
+            if (e.timeout != null) {
+                e.timeout.cancel();
+            }
+        }
+        entries.clear();
+    }
+
+    /**
+     * @return the active entries
+     */
+    Collection<BlacklistEntryDTO> toDTOs() {
+        return entries.values().stream()
+                .filter(e -> e.active)
+                .map(Entry::toDTO)
+                .collect(toList());
+    }
+
+    private void replace(Entry e, Entry old) {
+        if (old != null && old.timeout != null) {
+            old.timeout.cancel();
+        }
+        entries.put(e.eventType, e);
+    }
+
+    private synchronized void expired(Entry e) {
+        if (entries.get(e.eventType) != e) {
+            // Replaced in the meantime
+            return;
+        }
+
+        if (e.active) {
+            // Retry the event type, but remember the strikes for a while
+            long now = clock.getAsLong();
+            Entry probation = new Entry(e.eventType, e.reason, e.message, e.strikes, e.since, now + maxTtl, false);
+            entries.put(e.eventType, probation);
+            probation.timeout = wheel.schedule(() -> expired(probation), probation.expires);
+        } else {
+            entries.remove(e.eventType);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.paremus.brain.iot.management.api.EventBufferDTO;
+import com.paremus.brain.iot.management.impl.BehaviourManagementImpl.UntypedEvent;
+
+/**
+ * A bounded, thread safe FIFO of last resort events for one event type.
+ * <p>
+ * Events are held in a fixed size ring. When the ring is full the
+ * {@link OverflowPolicy} decides whether to discard the oldest event, the
+ * newest event, or to append the event to a memory-mapped segment file. Once
+ * events have been spilled all new events are spilled too, so that the
+ * original ordering is kept when the buffer is drained. The segment is
+ * circular, so the space of spilled events already read back is reused.
+ */
+class EventBuffer {
+
+    /**
+     * What to do with an event that arrives when the buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest buffered event to make room
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the new event
+         */
+        DROP_NEWEST,
+
+        /**
+         * Write the new event to a segment file in the bundle data area
+         */
+        SPILL;
+    }
+
+    /**
+     * The outcome of adding an event
+     */
+    enum Offer {
+        /**
+         * The event was buffered without loss
+         */
+        BUFFERED,
+
+        /**
+         * The buffer was full and an event was discarded
+         */
+        DROPPED,
+
+        /**
+         * The buffer has been closed, the event was not added
+         */
+        CLOSED;
+    }
+
+    // marks the end of the records before the segment wraps to the start
+    private static final int WRAP = -1;
+
+    private final String eventType;
+    private final UntypedEvent[] ring;
+    private final OverflowPolicy policy;
+    private final File spillFile;
+    private final int spillSize;
+    private final Consumer<String> warn;
+
+    private int head;
+    private int count;
+    private long dropped;
+    private boolean closed;
+    private boolean unreadableReported;
+
+    private FileChannel spillChannel;
+    private MappedByteBuffer spill;
+    private int spillRead;
+    private int spillWrite;
+    private int spilled;
+
+    /**
+     * @param eventType the event type being buffered
+     * @param capacity the number of events held in memory
+     * @param policy the overflow policy
+     * @param spillFile the segment file to use if the policy is {@link OverflowPolicy#SPILL}
+     * @param spillSize the size of the segment file in bytes
+     * @param warn told, once, if spilled events can't be read back
+     */
+    EventBuffer(String eventType, int capacity, OverflowPolicy policy, File spillFile, int spillSize,
+            Consumer<String> warn) {
+        this.eventType = eventType;
+        this.ring = new UntypedEvent[Math.max(1, capacity)];
+        this.policy = policy;
+        this.spillFile = spillFile;
+        this.spillSize = spillSize;
+        this.warn = warn;
+    }
+
+    /**
+     * Add an event, applying the overflow policy if the buffer is full
+     *
+     * @param event the event to add
+     * @return whether the event was buffered
+     */
+    synchronized Offer add(UntypedEvent event) {
+        if (closed) {
+            return Offer.CLOSED;
+        }
+
+        if (spilled == 0 && count < ring.length) {
+            ring[(head + count++) % ring.length] = event;
+            return Offer.BUFFERED;
+        }
+
+        switch (policy) {
+            case DROP_OLDEST:
+                ring[head] = event;
+                head = (head + 1) % ring.length;
+                dropped++;
+                return Offer.DROPPED;
+            case SPILL:
+                if (spill(event)) {
+                    return Offer.BUFFERED;
+                }
+                // The segment is full, or the event can't be written, so drop it
+                dropped++;
+                return Offer.DROPPED;
+            case DROP_NEWEST:
+            default:
+                dropped++;
+                return Offer.DROPPED;
+        }
+    }
+
+    /**
+     * Remove up to <code>max</code> events, oldest first
+     *
+     * @param max the maximum number of events to remove
+     * @return the removed events
+     */
+    synchronized List<UntypedEvent> poll(int max) {
+        List<UntypedEvent> events = new ArrayList<>(Math.min(max, count + spilled));
+        while (events.size() < max) {
+            if (count == 0 && !refill()) {
+                break;
+            }
+            events.add(ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+        }
+        return events;
+    }
+
+    /**
+     * Remove all of the events, oldest first
+     *
+     * @return the removed events
+     */
+    List<UntypedEvent> drain() {
+        return poll(Integer.MAX_VALUE);
+    }
+
+    synchronized int size() {
+        return count + spilled;
+    }
+
+    synchronized boolean isEmpty() {
+        return count + spilled == 0;
+    }
+
+    /**
+     * Close the buffer if it holds no events, so that no more can be added
+     *
+     * @return <code>true</code> if the buffer is now closed
+     */
+    synchronized boolean closeIfEmpty() {
+        if (count + spilled == 0) {
+            close();
+        }
+        return closed;
+    }
+
+    /**
+     * Discard all buffered events and release the segment file
+     */
+    synchronized void close() {
+        closed = true;
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = null;
+        }
+        count = 0;
+        spilled = 0;
+        spillRead = spillWrite = 0;
+        // Release the mapping and the channel before the file is deleted
+        spill = null;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+                // Nothing more can be done
+            }
+            spillChannel = null;
+            if (!spillFile.delete() && spillFile.exists()) {
+                // Some platforms keep a mapped file until the mapping is
+                // garbage collected
+                spillFile.deleteOnExit();
+            }
+        }
+    }
+
+    synchronized EventBufferDTO toDTO() {
+        EventBufferDTO dto = new EventBufferDTO();
+        dto.eventType = eventType;
+        dto.buffered = count;
+        dto.spilled = spilled;
+        dto.capacity = ring.length;
+        dto.dropped = dropped;
+        return dto;
+    }
+
+    private boolean spill(UntypedEvent event) {
+        byte[] bytes;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(event.eventData);
+            }
+            bytes = baos.toByteArray();
+        } catch (IOException e) {
+            // The event data is not serializable
+            return false;
+        }
+
+        try {
+            if (spill == null) {
+                spillFile.getParentFile().mkdirs();
+                spillChannel = FileChannel.open(spillFile.toPath(), CREATE, READ, WRITE, TRUNCATE_EXISTING);
+                spill = spillChannel.map(MapMode.READ_WRITE, 0, spillSize);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        // The segment is circular, records are written up to the unread
+        // ones, wrapping to the start once those there have been read
+        int needed = bytes.length + 4;
+        if (spilled > 0 && spillWrite <= spillRead) {
+            if (spillRead - spillWrite < needed) {
+                return false;
+            }
+        } else if (spillSize - spillWrite < needed) {
+            if (spillRead < needed) {
+                return false;
+            }
+            if (spillSize - spillWrite >= 4) {
+                spill.putInt(spillWrite, WRAP);
+            }
+            spillWrite = 0;
+        }
+
+        spill.putInt(spillWrite, bytes.length);
+        spill.position(spillWrite + 4);
+        spill.put(bytes);
+        spillWrite += bytes.length + 4;
+        spilled++;
+        return true;
+    }
+
+    /**
+     * Move spilled events back into the (empty) ring
+     *
+     * @return <code>true</code> if any events were moved
+     */
+    @SuppressWarnings("unchecked")
+    private boolean refill() {
+        while (spilled > 0 && count < ring.length) {
+            if (spillSize - spillRead < 4 || spill.getInt(spillRead) == WRAP) {
+                spillRead = 0;
+            }
+            int length = spill.getInt(spillRead);
+            byte[] bytes = new byte[length];
+            spill.position(spillRead + 4);
+            spill.get(bytes);
+            spillRead += length + 4;
+            spilled--;
+
+            UntypedEvent event = new UntypedEvent();
+            event.eventType = eventType;
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                event.eventData = (Map<String, Object>) ois.readObject();
+            } catch (IOException | ClassNotFoundException e) {
+                dropped++;
+                if (!unreadableReported) {
+                    unreadableReported = true;
+                    warn.accept(String.format("Unable to read back a spilled event(%s), it was dropped: %s",
+                            eventType, e));
+                }
+                continue;
+            }
+            ring[(head + count++) % ring.length] = event;
+        }
+
+        if (spilled == 0) {
+            // Reuse the segment from the start
+            spillRead = spillWrite = 0;
+        }
+        return count > 0;
+    }
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.paremus.brain.iot.management.api.ManagementMetricsDTO;
+import com.paremus.brain.iot.management.api.ManagementResponseDTO;
+
+/**
+ * The state of every management request in flight on this node.
+ * <p>
+ * Each last resort request moves through the {@link Phase}s in order, and
+ * every phase has a deadline. {@link #expire(long)} removes the requests
+ * whose deadline has passed so that their buffered events can be released.
+ * A request following another node's claim is not removed when its lease
+ * expires, so that this node can take the bid round over.
+ * Install requests received from other nodes are tracked separately, as the
+ * same request identity may be in flight in both roles.
+ */
+class InFlightRegistry {
+
+    enum Phase {
+        /**
+         * Another node has claimed the bid round, events are buffered until it completes
+         */
+        FOLLOW,
+
+        /**
+         * The bid request has been sent, no bid has been received
+         */
+        BID,
+
+        /**
+         * Bids have been received, waiting to award the install
+         */
+        AWARD,
+
+        /**
+         * The install request has been sent to the winning bidder
+         */
+        INSTALL,
+
+        /**
+         * A consumer of the event type is being updated on this node, events
+         * are buffered until the new version is active
+         */
+        SWAP,
+
+        /**
+         * The behaviour is installed, buffered events are being resent
+         */
+        REPLAY;
+    }
+
+    static class InFlightRequest {
+        final String requestIdentity;
+        final String eventType;
+        final EventBuffer buffer;
+        final Set<ManagementResponseDTO> bids = ConcurrentHashMap.newKeySet();
+
+        String symbolicName;
+        String version;
+
+        // when the bid request was sent, and how long to wait for bids
+        volatile long roundStarted;
+        volatile long bidWindow;
+        // the identity of the batched bid request this was sent in, if any
+        volatile String batch;
+
+        private Phase phase = Phase.BID;
+        private long deadline;
+        private String awardedNode;
+        private String owner;
+
+        InFlightRequest(String requestIdentity, String eventType, EventBuffer buffer, long deadline) {
+            this.requestIdentity = requestIdentity;
+            this.eventType = eventType;
+            this.buffer = buffer;
+            this.deadline = deadline;
+        }
+
+        synchronized Phase phase() {
+            return phase;
+        }
+
+        synchronized String awardedNode() {
+            return awardedNode;
+        }
+
+        /**
+         * Move to a new phase if the request is currently in the expected phase
+         *
+         * @return <code>true</code> if the phase changed
+         */
+        synchronized boolean advance(Phase from, Phase to, long deadline) {
+            if (phase != from) {
+                return false;
+            }
+            this.phase = to;
+            this.deadline = deadline;
+            return true;
+        }
+
+        synchronized String owner() {
+            return owner;
+        }
+
+        /**
+         * Follow the claim of another node, giving up any bid round of our own
+         *
+         * @return <code>true</code> if the request is now following the owner
+         */
+        synchronized boolean follow(String owner, long deadline) {
+            if (phase == Phase.BID || phase == Phase.AWARD || phase == Phase.FOLLOW) {
+                this.phase = Phase.FOLLOW;
+                this.owner = owner;
+                this.deadline = deadline;
+                bids.clear();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Extend the lease of the claim being followed
+         */
+        synchronized boolean renew(String owner, long deadline) {
+            if (phase == Phase.FOLLOW && owner.equals(this.owner)) {
+                this.deadline = deadline;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Start our own bid round if the lease of the claim being followed has expired
+         *
+         * @return <code>true</code> if the request moved to {@link Phase#BID}
+         */
+        synchronized boolean takeOver(long now, long deadline) {
+            if (phase == Phase.FOLLOW && now > this.deadline) {
+                this.phase = Phase.BID;
+                this.owner = null;
+                this.deadline = deadline;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean award(String node, long deadline) {
+            if (advance(Phase.AWARD, Phase.INSTALL, deadline)) {
+                awardedNode = node;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Move to the {@link Phase#REPLAY} phase from any earlier phase
+         *
+         * @return <code>true</code> if the phase changed
+         */
+        synchronized boolean installed() {
+            if (phase == Phase.REPLAY) {
+                return false;
+            }
+            phase = Phase.REPLAY;
+            deadline = Long.MAX_VALUE;
+            return true;
+        }
+
+        synchronized boolean expired(long now) {
+            return now > deadline;
+        }
+    }
+
+    private static class PendingInstall {
+        final String sourceNode;
+        final long deadline;
+
+        PendingInstall(String sourceNode, long deadline) {
+            this.sourceNode = sourceNode;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Map<String, InFlightRequest> requests = new ConcurrentHashMap<>();
+    private final Map<String, PendingInstall> installs = new ConcurrentHashMap<>();
+
+    private final Map<Phase, AtomicLong> expired = new EnumMap<>(Phase.class);
+    private final AtomicLong expiredInstalls = new AtomicLong();
+
+    InFlightRegistry() {
+        for (Phase p : Phase.values()) {
+            expired.put(p, new AtomicLong());
+        }
+    }
+
+    /**
+     * @return the existing request for the identity, or <code>null</code> if
+     *         the new request was registered
+     */
+    InFlightRequest register(InFlightRequest request) {
+        return requests.putIfAbsent(request.requestIdentity, request);
+    }
+
+    InFlightRequest get(String requestIdentity) {
+        return requests.get(requestIdentity);
+    }
+
+    InFlightRequest remove(String requestIdentity) {
+        return requests.remove(requestIdentity);
+    }
+
+    boolean remove(InFlightRequest request) {
+        return requests.remove(request.requestIdentity, request);
+    }
+
+    Collection<InFlightRequest> requests() {
+        return requests.values();
+    }
+
+    void beginInstall(String requestIdentity, String sourceNode, long deadline) {
+        installs.put(requestIdentity, new PendingInstall(sourceNode, deadline));
+    }
+
+    /**
+     * @return the node which requested the install, or <code>null</code> if
+     *         the install was not requested from this node
+     */
+    String completeInstall(String requestIdentity) {
+        PendingInstall pi = installs.remove(requestIdentity);
+        return pi == null ? null : pi.sourceNode;
+    }
+
+    void abandonInstall(String requestIdentity, String sourceNode) {
+        installs.computeIfPresent(requestIdentity, (k, v) -> v.sourceNode.equals(sourceNode) ? null : v);
+    }
+
+    /**
+     * Remove the requests and installs whose deadline has passed
+     *
+     * @param now the current time in milliseconds
+     * @return the expired requests, including those following a lapsed claim
+     */
+    List<InFlightRequest> expire(long now) {
+        List<InFlightRequest> result = new ArrayList<>();
+        for (Iterator<InFlightRequest> it = requests.values().iterator(); it.hasNext();) {
+            InFlightRequest r = it.next();
+            if (r.expired(now)) {
+                Phase phase = r.phase();
+                if (phase != Phase.FOLLOW) {
+                    it.remove();
+                }
+                expired.get(phase).incrementAndGet();
+                result.add(r);
+            }
+        }
+
+        for (Iterator<PendingInstall> it = installs.values().iterator(); it.hasNext();) {
+            if (now > it.next().deadline) {
+                it.remove();
+                expiredInstalls.incrementAndGet();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove everything, without counting it as expired
+     *
+     * @return the requests that were in flight
+     */
+    List<InFlightRequest> clear() {
+        List<InFlightRequest> result = new ArrayList<>(requests.values());
+        requests.clear();
+        installs.clear();
+        return result;
+    }
+
+    ManagementMetricsDTO toDTO() {
+        ManagementMetricsDTO dto = new ManagementMetricsDTO();
+        Map<String, Integer> byPhase = new LinkedHashMap<>();
+        for (Phase p : Phase.values()) {
+            byPhase.put(p.name(), 0);
+        }
+        for (InFlightRequest r : requests.values()) {
+            byPhase.merge(r.phase().name(), 1, Integer::sum);
+        }
+
+        Map<String, Long> expiredByPhase = new LinkedHashMap<>();
+        expired.forEach((p, count) -> expiredByPhase.put(p.name(), count.get()));
+
+        dto.inFlight = byPhase.values().stream().mapToInt(Integer::intValue).sum();
+        dto.inFlightByPhase = byPhase;
+        dto.expired = expiredByPhase;
+        dto.pendingInstalls = installs.size();
+        dto.expiredInstalls = expiredInstalls.get();
+        return dto;
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.io.File;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.paremus.brain.iot.resolver.index.CompactRepository;
+
+import aQute.bnd.http.HttpClient;
+import aQute.bnd.http.HttpRequest;
+import aQute.bnd.service.url.TaggedData;
+
+/**
+ * Remembers the validators (ETag and Last-Modified) of the marketplace
+ * indexes, and asks the server whether an index has changed since, using
+ * a conditional HEAD request. Local indexes are checked by their
+ * modification time and size. The delta feed next to each index is checked
+ * in the same way, a feed that does not exist being recorded as absent.
+ */
+class IndexRevalidator {
+
+    private static class Validator {
+        final String tag;
+        final long modified;
+
+        Validator(String tag, long modified) {
+            this.tag = tag;
+            this.modified = modified;
+        }
+
+        boolean sameAs(Validator other) {
+            return Objects.equals(tag, other.tag) && modified == other.modified;
+        }
+    }
+
+    private static final Validator ABSENT = new Validator(null, -1);
+
+    private final Map<URI, Validator> validators = new ConcurrentHashMap<>();
+
+    /**
+     * Check each index, recording its current validators. An index seen for
+     * the first time is not reported as changed.
+     *
+     * @return <code>true</code> if any previously seen index, or its delta feed, has changed
+     */
+    boolean changed(List<URI> indexes, HttpClient client) throws Exception {
+        boolean changed = false;
+        for (URI index : indexes) {
+            changed |= changed(index, client, false);
+            changed |= changed(CompactRepository.deltaFeedFor(index), client, true);
+        }
+        return changed;
+    }
+
+    private boolean changed(URI index, HttpClient client, boolean optional) throws Exception {
+        Validator previous = validators.get(index);
+        Validator current;
+        if ("file".equals(index.getScheme())) {
+            File f = new File(index);
+            current = new Validator(String.valueOf(f.length()), f.lastModified());
+        } else {
+            current = fetch(index, previous, client, optional);
+            if (current == null) {
+                // not modified
+                return false;
+            }
+        }
+        validators.put(index, current);
+        return previous != null && !previous.sameAs(current);
+    }
+
+    void clear() {
+        validators.clear();
+    }
+
+    private Validator fetch(URI index, Validator previous, HttpClient client, boolean optional) throws Exception {
+        HttpRequest<TaggedData> request = client.build().head().asTag();
+        if (previous != null) {
+            if (previous.tag != null) {
+                request = request.ifNoneMatch(previous.tag);
+            }
+            if (previous.modified > 0) {
+                request = request.ifModifiedSince(previous.modified);
+            }
+        }
+        try (TaggedData data = request.go(index)) {
+            if (data.isNotModified()) {
+                return null;
+            }
+            if (optional && data.getResponseCode() == 404) {
+                return ABSENT;
+            }
+            if (!data.isOk()) {
+                throw new Exception("Unable to check " + index + ": HTTP " + data.getResponseCode());
+            }
+            return new Validator(data.getTag(), data.getModified());
+        }
+    }
+}
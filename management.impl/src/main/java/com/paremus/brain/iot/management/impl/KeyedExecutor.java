@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Runs tasks on a shared {@link Executor} while guaranteeing that tasks
+ * submitted with the same key run one at a time, in submission order.
+ * Tasks with different keys run concurrently.
+ * <p>
+ * The executor's own queue bound limits the number of keys waiting for a
+ * thread, and the lane length limits the tasks waiting behind each key.
+ * A task that can't be queued is handed to its rejection handler.
+ */
+class KeyedExecutor {
+
+    private volatile Executor executor;
+    private volatile int maxLaneLength;
+
+    private static final class Task {
+        final Runnable task;
+        final Consumer<RejectedExecutionException> rejected;
+
+        Task(Runnable task, Consumer<RejectedExecutionException> rejected) {
+            this.task = task;
+            this.rejected = rejected;
+        }
+    }
+
+    // Guarded by itself. A key is present only while its lane has work.
+    private final Map<String, Deque<Task>> lanes = new HashMap<>();
+
+    /**
+     * @param executor the executor to run the tasks on
+     * @param maxLaneLength the maximum number of tasks queued or running for one key
+     */
+    KeyedExecutor(Executor executor, int maxLaneLength) {
+        configure(executor, maxLaneLength);
+    }
+
+    /**
+     * Run lanes started from now on with a new executor and lane length.
+     * Lanes already started finish on the executor they started on.
+     */
+    void configure(Executor executor, int maxLaneLength) {
+        this.executor = executor;
+        this.maxLaneLength = Math.max(1, maxLaneLength);
+    }
+
+    /**
+     * Queue a task behind any other task for the same key
+     *
+     * @param key the ordering key
+     * @param task the task to run
+     * @param rejected called instead of running the task if the key's lane
+     *        is full or the underlying executor is saturated
+     */
+    void execute(String key, Runnable task, Consumer<RejectedExecutionException> rejected) {
+        boolean start = false;
+        boolean full = false;
+        synchronized (lanes) {
+            Deque<Task> lane = lanes.get(key);
+            if (lane == null) {
+                start = true;
+                lane = new ArrayDeque<>();
+                lanes.put(key, lane);
+            }
+            if (lane.size() < maxLaneLength) {
+                lane.add(new Task(task, rejected));
+            } else {
+                full = true;
+            }
+        }
+
+        if (full) {
+            rejected.accept(new RejectedExecutionException(
+                    "Too many tasks are waiting for " + key));
+            return;
+        } else if (!start) {
+            // The lane's drain task will pick this one up
+            return;
+        }
+
+        try {
+            executor.execute(() -> drain(key));
+        } catch (RejectedExecutionException ree) {
+            // No drain is running for the lane, so nothing else will run the
+            // tasks queued on it, including any added since this one
+            List<Task> stranded;
+            synchronized (lanes) {
+                stranded = new ArrayList<>(lanes.remove(key));
+            }
+            for (Task s : stranded) {
+                s.rejected.accept(ree);
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys with queued or running tasks
+     */
+    int activeKeys() {
+        synchronized (lanes) {
+            return lanes.size();
+        }
+    }
+
+    private void drain(String key) {
+        for (;;) {
+            Task next;
+            synchronized (lanes) {
+                next = lanes.get(key).peek();
+            }
+
+            try {
+                next.task.run();
+            } catch (RuntimeException e) {
+                // Tasks report their own failures, don't let one stall the lane
+            }
+
+            synchronized (lanes) {
+                Deque<Task> lane = lanes.get(key);
+                lane.poll();
+                if (lane.isEmpty()) {
+                    lanes.remove(key);
+                    return;
+                }
+            }
+        }
+    }
+}
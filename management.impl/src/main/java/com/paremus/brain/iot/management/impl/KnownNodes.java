@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Behaviour Management Service nodes this node has heard from.
+ * <p>
+ * Each event type is owned by one node, chosen by rendezvous hashing over
+ * the known nodes. Nodes with the same view agree on the owner, and when a
+ * node leaves only the event types it owned move.
+ */
+class KnownNodes {
+
+    private final String myNode;
+
+    // node -> time last heard from
+    private final Map<String, Long> nodes = new ConcurrentHashMap<>();
+
+    KnownNodes(String myNode) {
+        this.myNode = myNode;
+    }
+
+    void seen(String node, long now) {
+        if (node != null && !node.equals(myNode)) {
+            nodes.put(node, now);
+        }
+    }
+
+    void forget(String node) {
+        nodes.remove(node);
+    }
+
+    /**
+     * Forget nodes that have not been heard from since a given time
+     */
+    void prune(long before) {
+        nodes.values().removeIf(t -> t < before);
+    }
+
+    int size() {
+        return nodes.size() + 1;
+    }
+
+    /**
+     * @param key the event type
+     * @return the node owning the key, which may be this node
+     */
+    String owner(String key) {
+        String owner = myNode;
+        for (String node : nodes.keySet()) {
+            if (outranks(node, owner, key)) {
+                owner = node;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * @return <code>true</code> if node <code>a</code> ranks above node
+     *         <code>b</code> for the key
+     */
+    static boolean outranks(String a, String b, String key) {
+        long sa = score(a, key);
+        long sb = score(b, key);
+        return sa > sb || (sa == sb && a.compareTo(b) < 0);
+    }
+
+    static long score(String node, String key) {
+        // The finalizer of MurmurHash3, to spread the combined hash codes
+        long h = ((long) node.hashCode() << 32) ^ (key.hashCode() & 0xFFFFFFFFL);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
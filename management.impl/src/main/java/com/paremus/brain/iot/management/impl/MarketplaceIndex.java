@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static eu.brain.iot.behaviour.namespace.SmartBehaviourNamespace.SMART_BEHAVIOUR_NAMESPACE;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+import static org.osgi.framework.namespace.IdentityNamespace.IDENTITY_NAMESPACE;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.repository.Repository;
+
+import com.paremus.brain.iot.resolver.index.ResourceChanges;
+
+import aQute.bnd.osgi.resource.CapReqBuilder;
+
+/**
+ * Hash lookups over the smart behaviours in the marketplace repository.
+ * <p>
+ * The lookup tables are built the first time they are needed, by reading
+ * every identity and smart behaviour capability from the repository once.
+ * A new instance must be created whenever the repository changes. If the
+ * new repository was derived from the old one by delta feeds, the new
+ * tables are copied from the old ones and only the changed resources are
+ * read.
+ */
+class MarketplaceIndex {
+
+    private final Repository repository;
+
+    // the index this one is derived from, until the tables are built
+    private MarketplaceIndex previous;
+    private ResourceChanges changes;
+
+    private volatile Tables tables;
+
+    private static class Tables {
+        final Map<String, List<Resource>> consumers = new HashMap<>();
+        final Map<String, Resource> identities = new HashMap<>();
+        BehaviourCatalog catalog;
+        // the resource of each catalog entry
+        final List<Resource> owners = new ArrayList<>();
+    }
+
+    MarketplaceIndex(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @param repository the repository
+     * @param previous the index over the repository the changes were made to
+     * @param changes the changes, or <code>null</code> if they are not known
+     */
+    MarketplaceIndex(Repository repository, MarketplaceIndex previous, ResourceChanges changes) {
+        this.repository = repository;
+        this.previous = previous;
+        this.changes = changes;
+    }
+
+    /**
+     * @param eventType the event type
+     * @return the resources declaring that they consume the event type, in repository order
+     */
+    List<Resource> consumersOf(String eventType) {
+        return tables().consumers.getOrDefault(eventType, emptyList());
+    }
+
+    /**
+     * @return the smart behaviours of the marketplace, projected and indexed for searching
+     */
+    BehaviourCatalog catalog() {
+        return tables().catalog;
+    }
+
+    /**
+     * @param symbolicName the identity of the resource
+     * @param version the version of the resource
+     * @return the matching resource, or <code>null</code> if it is not in the index
+     */
+    Resource resourceFor(String symbolicName, String version) {
+        return tables().identities.get(identityKey(symbolicName, version));
+    }
+
+    private Tables tables() {
+        Tables t = tables;
+        if (t == null) {
+            synchronized (this) {
+                t = tables;
+                if (t == null) {
+                    Tables old = previous == null ? null : previous.tables;
+                    t = old != null && changes != null ? derive(old, changes) : build();
+                    tables = t;
+                    previous = null;
+                    changes = null;
+                }
+            }
+        }
+        return t;
+    }
+
+    private Tables build() {
+        Tables t = new Tables();
+
+        for (Capability cap : allCapabilities(IDENTITY_NAMESPACE)) {
+            addIdentity(t, cap);
+        }
+
+        List<BehaviourSnapshot.Entry> entries = new ArrayList<>();
+        for (Capability cap : allCapabilities(SMART_BEHAVIOUR_NAMESPACE)) {
+            addBehaviour(t, entries, cap);
+        }
+        t.catalog = new BehaviourCatalog(entries);
+
+        return t;
+    }
+
+    /**
+     * Copy the tables of the previous index, dropping the removed resources
+     * and reading only the added ones
+     */
+    private static Tables derive(Tables old, ResourceChanges changes) {
+        Set<Resource> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.addAll(changes.getRemoved());
+
+        Tables t = new Tables();
+        old.identities.forEach((k, v) -> {
+            if (!removed.contains(v)) {
+                t.identities.put(k, v);
+            }
+        });
+        old.consumers.forEach((k, v) -> {
+            List<Resource> list = new ArrayList<>(v);
+            list.removeIf(removed::contains);
+            if (!list.isEmpty()) {
+                t.consumers.put(k, list);
+            }
+        });
+
+        List<BehaviourSnapshot.Entry> entries = new ArrayList<>();
+        List<BehaviourSnapshot.Entry> oldEntries = old.catalog.entries();
+        for (int i = 0; i < oldEntries.size(); i++) {
+            Resource owner = old.owners.get(i);
+            if (!removed.contains(owner)) {
+                entries.add(oldEntries.get(i));
+                t.owners.add(owner);
+            }
+        }
+
+        for (Resource resource : changes.getAdded()) {
+            for (Capability cap : resource.getCapabilities(IDENTITY_NAMESPACE)) {
+                addIdentity(t, cap);
+            }
+            for (Capability cap : resource.getCapabilities(SMART_BEHAVIOUR_NAMESPACE)) {
+                addBehaviour(t, entries, cap);
+            }
+        }
+        t.catalog = new BehaviourCatalog(entries);
+
+        return t;
+    }
+
+    private static void addIdentity(Tables t, Capability cap) {
+        Map<String, Object> attrs = cap.getAttributes();
+        t.identities.putIfAbsent(identityKey(String.valueOf(attrs.get(IDENTITY_NAMESPACE)),
+                String.valueOf(attrs.get(CAPABILITY_VERSION_ATTRIBUTE))), cap.getResource());
+    }
+
+    private static void addBehaviour(Tables t, List<BehaviourSnapshot.Entry> entries, Capability cap) {
+        entries.add(new BehaviourSnapshot.Entry(BehaviourCatalog.project(cap), cap.getAttributes()));
+        t.owners.add(cap.getResource());
+        for (String eventType : consumed(cap)) {
+            addConsumer(t, eventType, cap.getResource());
+        }
+    }
+
+    /**
+     * @param resource a smart behaviour resource
+     * @return the event types the resource declares that it consumes
+     */
+    static Set<String> consumedBy(Resource resource) {
+        Set<String> eventTypes = new LinkedHashSet<>();
+        for (Capability cap : resource.getCapabilities(SMART_BEHAVIOUR_NAMESPACE)) {
+            eventTypes.addAll(consumed(cap));
+        }
+        return eventTypes;
+    }
+
+    private static List<String> consumed(Capability cap) {
+        Object consumed = cap.getAttributes().get("consumed");
+        if (consumed instanceof Collection) {
+            List<String> list = new ArrayList<>();
+            for (Object o : (Collection<?>) consumed) {
+                list.add(String.valueOf(o));
+            }
+            return list;
+        } else if (consumed != null) {
+            return singletonList(String.valueOf(consumed));
+        }
+        return emptyList();
+    }
+
+    private static void addConsumer(Tables t, String eventType, Resource resource) {
+        List<Resource> list = t.consumers.computeIfAbsent(eventType, k -> new ArrayList<>(1));
+        if (!list.contains(resource)) {
+            list.add(resource);
+        }
+    }
+
+    private Collection<Capability> allCapabilities(String namespace) {
+        Requirement req = new CapReqBuilder(namespace).buildSyntheticRequirement();
+        Collection<Capability> caps = repository.findProviders(singleton(req)).get(req);
+        return caps == null ? emptyList() : caps;
+    }
+
+    static String identityKey(String symbolicName, String version) {
+        try {
+            version = Version.parseVersion(version).toString();
+        } catch (IllegalArgumentException iae) {
+            // Not a valid OSGi version, use the raw value
+        }
+        return symbolicName + ":" + version;
+    }
+}
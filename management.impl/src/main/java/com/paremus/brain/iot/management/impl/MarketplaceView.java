@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.paremus.brain.iot.resolver.index.FederatedRepository;
+import com.paremus.brain.iot.resolver.index.ResourceChanges;
+
+/**
+ * An immutable view of the marketplace indexes: the repository loaded from
+ * them and the lookup tables built over it.
+ * <p>
+ * A view is published by the service, which holds one reference to it.
+ * Users {@link #acquire()} the view for the duration of their work and
+ * {@link #release()} it afterwards. When a newer view is published the old
+ * one is {@link #retire() retired}, and its repository is closed once the
+ * last user has released it.
+ */
+class MarketplaceView {
+
+    final List<URI> indexes;
+    final FederatedRepository repository;
+    final MarketplaceIndex index;
+    // the changes since the view this one replaces, or null if not known
+    final ResourceChanges changes;
+
+    // starts with the publisher's reference
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    MarketplaceView(List<URI> indexes, FederatedRepository repository) {
+        this.indexes = indexes;
+        this.repository = repository;
+        this.index = new MarketplaceIndex(repository);
+        this.changes = null;
+    }
+
+    /**
+     * A view which replaces <code>previous</code>. If the repository was
+     * derived from the previous one by delta feeds, the lookup tables are
+     * derived from the previous ones too. This loads the repository.
+     */
+    MarketplaceView(List<URI> indexes, FederatedRepository repository, MarketplaceView previous) {
+        ResourceChanges c;
+        try {
+            c = repository.changesSince(previous.repository);
+        } catch (IllegalStateException e) {
+            // The previous view is closed
+            c = null;
+        }
+        this.indexes = indexes;
+        this.repository = repository;
+        this.index = c == null ? new MarketplaceIndex(repository) : new MarketplaceIndex(repository, previous.index, c);
+        this.changes = c;
+    }
+
+    /**
+     * @return <code>false</code> if the view has been retired and closed
+     */
+    boolean acquire() {
+        for (;;) {
+            int current = refs.get();
+            if (current == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            repository.close();
+        }
+    }
+
+    /**
+     * Drop the publisher's reference
+     */
+    void retire() {
+        release();
+    }
+
+    boolean isClosed() {
+        return refs.get() == 0;
+    }
+}
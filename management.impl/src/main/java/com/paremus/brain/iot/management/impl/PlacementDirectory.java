@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.paremus.brain.iot.management.api.PlacementDTO;
+
+/**
+ * The nodes on which behaviours are installed.
+ * <p>
+ * Every Behaviour Management Service sees the install responses of all nodes,
+ * so each keeps its own replica of the directory. The directory is written to
+ * the bundle data area on every change so that it survives a restart.
+ */
+class PlacementDirectory {
+
+    private final File file;
+
+    // identity key -> node -> placement
+    private final Map<String, Map<String, PlacementDTO>> placements = new HashMap<>();
+
+    PlacementDirectory(File file) {
+        this.file = file;
+    }
+
+    synchronized void installed(String symbolicName, String version, String node, long time) {
+        PlacementDTO p = new PlacementDTO();
+        p.symbolicName = symbolicName;
+        p.version = version;
+        p.node = node;
+        p.installed = time;
+        p.healthy = true;
+        placements.computeIfAbsent(MarketplaceIndex.identityKey(symbolicName, version), k -> new LinkedHashMap<>())
+            .put(node, p);
+        save();
+    }
+
+    /**
+     * Record that the node now runs the given version of the behaviour in
+     * place of any other version
+     */
+    synchronized void updated(String symbolicName, String version, String node, long time) {
+        String key = MarketplaceIndex.identityKey(symbolicName, version);
+        for (Iterator<Entry<String, Map<String, PlacementDTO>>> it = placements.entrySet().iterator(); it.hasNext();) {
+            Entry<String, Map<String, PlacementDTO>> e = it.next();
+            PlacementDTO p = e.getValue().get(node);
+            if (p != null && symbolicName.equals(p.symbolicName) && !key.equals(e.getKey())) {
+                e.getValue().remove(node);
+                if (e.getValue().isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        installed(symbolicName, version, node, time);
+    }
+
+    synchronized void uninstalled(String symbolicName, String version, String node) {
+        String key = MarketplaceIndex.identityKey(symbolicName, version);
+        Map<String, PlacementDTO> nodes = placements.get(key);
+        if (nodes != null && nodes.remove(node) != null) {
+            if (nodes.isEmpty()) {
+                placements.remove(key);
+            }
+            save();
+        }
+    }
+
+    /**
+     * Forget everything installed on a node
+     */
+    synchronized void reset(String node) {
+        boolean changed = false;
+        for (Map<String, PlacementDTO> nodes : placements.values()) {
+            changed |= nodes.remove(node) != null;
+        }
+        if (changed) {
+            placements.values().removeIf(Map::isEmpty);
+            save();
+        }
+    }
+
+    /**
+     * Record that an install of the behaviour on the node failed
+     */
+    synchronized void failed(String symbolicName, String version, String node) {
+        Map<String, PlacementDTO> nodes = placements.get(MarketplaceIndex.identityKey(symbolicName, version));
+        PlacementDTO p = nodes == null ? null : nodes.get(node);
+        if (p != null && p.healthy) {
+            p.healthy = false;
+            save();
+        }
+    }
+
+    /**
+     * Record that a node has stopped responding
+     */
+    synchronized void nodeLost(String node) {
+        boolean changed = false;
+        for (Map<String, PlacementDTO> nodes : placements.values()) {
+            PlacementDTO p = nodes.get(node);
+            if (p != null && p.healthy) {
+                p.healthy = false;
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * @return the healthy node with the most recent install of the
+     *         behaviour, or <code>null</code> if there is none
+     */
+    synchronized String healthyNode(String symbolicName, String version) {
+        Map<String, PlacementDTO> nodes = placements.get(MarketplaceIndex.identityKey(symbolicName, version));
+        if (nodes == null) {
+            return null;
+        }
+        PlacementDTO best = null;
+        for (PlacementDTO p : nodes.values()) {
+            if (p.healthy && (best == null || p.installed > best.installed)) {
+                best = p;
+            }
+        }
+        return best == null ? null : best.node;
+    }
+
+    synchronized Collection<PlacementDTO> toDTOs() {
+        List<PlacementDTO> result = new ArrayList<>();
+        for (Map<String, PlacementDTO> nodes : placements.values()) {
+            for (PlacementDTO p : nodes.values()) {
+                result.add(copy(p));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read the directory saved by a previous run, if any
+     */
+    synchronized void load() throws IOException {
+        placements.clear();
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    continue;
+                }
+                PlacementDTO p = new PlacementDTO();
+                p.node = fields[0];
+                p.symbolicName = fields[1];
+                p.version = fields[2];
+                p.installed = Long.parseLong(fields[3]);
+                p.healthy = Boolean.parseBoolean(fields[4]);
+                placements.computeIfAbsent(MarketplaceIndex.identityKey(p.symbolicName, p.version),
+                        k -> new LinkedHashMap<>()).put(p.node, p);
+            }
+        }
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), UTF_8)) {
+                for (Map<String, PlacementDTO> nodes : placements.values()) {
+                    for (PlacementDTO p : nodes.values()) {
+                        writer.write(String.join("\t", p.node, p.symbolicName, p.version,
+                                String.valueOf(p.installed), String.valueOf(p.healthy)));
+                        writer.newLine();
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The directory is rebuilt from install responses, so this is not fatal
+            tmp.delete();
+        }
+    }
+
+    private static PlacementDTO copy(PlacementDTO p) {
+        PlacementDTO c = new PlacementDTO();
+        c.symbolicName = p.symbolicName;
+        c.version = p.version;
+        c.node = p.node;
+        c.installed = p.installed;
+        c.healthy = p.healthy;
+        return c;
+    }
+}
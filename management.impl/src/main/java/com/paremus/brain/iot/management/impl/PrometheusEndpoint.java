@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.log.FormatterLogger;
+import org.osgi.service.log.LoggerFactory;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import eu.brain.iot.installer.api.MetricsDTO;
+import eu.brain.iot.installer.api.MetricsProvider;
+import eu.brain.iot.installer.api.TimerDTO;
+
+/**
+ * Serves the metrics of every {@link MetricsProvider} in the Prometheus
+ * text exposition format, from a small HTTP server bound to a local address.
+ * <p>
+ * The endpoint only runs when it is configured. It answers one scrape at a
+ * time, which is all a Prometheus server needs.
+ */
+@Component(configurationPid = PrometheusEndpoint.PID,
+        configurationPolicy = ConfigurationPolicy.REQUIRE,
+        immediate = true)
+@Designate(ocd = PrometheusEndpoint.Config.class)
+public class PrometheusEndpoint {
+
+    static final String PID = "eu.brain.iot.MetricsEndpoint";
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @ObjectClassDefinition(
+        name = "Metrics Endpoint",
+        description = "Serves the installer, resolver and management metrics for Prometheus"
+    )
+    public @interface Config {
+        @AttributeDefinition(description="The address to listen on, local only by default")
+        String host() default "127.0.0.1";
+        @AttributeDefinition(description="The port to listen on, 0 for any free port")
+        int port() default 9404;
+        @AttributeDefinition(description="The path the metrics are served from")
+        String path() default "/metrics";
+    }
+
+    @Reference(service = LoggerFactory.class, cardinality = ReferenceCardinality.OPTIONAL)
+    private FormatterLogger log;
+
+    private final List<MetricsProvider> providers = new CopyOnWriteArrayList<>();
+
+    private String path;
+    private ServerSocket server;
+    private Thread thread;
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    void addProvider(MetricsProvider provider) {
+        providers.add(provider);
+    }
+
+    void removeProvider(MetricsProvider provider) {
+        providers.remove(provider);
+    }
+
+    @Activate
+    void activate(Config config) throws IOException {
+        path = config.path();
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getByName(config.host()), config.port()));
+        thread = new Thread(this::serve, "BRAIN-IoT Metrics Endpoint");
+        thread.setDaemon(true);
+        thread.start();
+        info("Serving metrics at http://%s:%d%s", config.host(), getPort(), path);
+    }
+
+    @Deactivate
+    void deactivate() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the port the endpoint is listening on
+     */
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(5000);
+                respond(socket);
+            } catch (SocketException e) {
+                // The server socket was closed
+            } catch (Exception e) {
+                warn("Unable to serve a metrics request: %s", e.toString());
+            }
+        }
+    }
+
+    private void respond(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        String request = in.readLine();
+        // skip the headers
+        for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+        }
+
+        String[] parts = request == null ? new String[0] : request.split(" ");
+        String target = parts.length > 1 ? parts[1].replaceFirst("\\?.*", "") : "";
+
+        int status;
+        String body;
+        if (parts.length < 2 || !"GET".equals(parts[0])) {
+            status = 405;
+            body = "Method Not Allowed\n";
+        } else if (!path.equals(target)) {
+            status = 404;
+            body = "Not Found\n";
+        } else {
+            List<MetricsDTO> snapshots = new ArrayList<>();
+            for (MetricsProvider provider : providers) {
+                try {
+                    snapshots.add(provider.getMetrics());
+                } catch (Exception e) {
+                    warn("Unable to read the metrics of %s: %s", provider, e.toString());
+                }
+            }
+            status = 200;
+            body = format(snapshots);
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : "") + "\r\n"
+                + "Content-Type: " + CONTENT_TYPE + "\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Format metrics snapshots as Prometheus text. Each metric is named
+     * <code>brainiot_&lt;source&gt;_&lt;name&gt;</code>, counters end in
+     * <code>_total</code> and timers are summaries in milliseconds, with
+     * their maximum and most recent durations as gauges.
+     *
+     * @param snapshots the snapshots, at most one per source
+     * @return the exposition text
+     */
+    static String format(Collection<MetricsDTO> snapshots) {
+        StringBuilder sb = new StringBuilder();
+        for (MetricsDTO m : snapshots) {
+            String prefix = "brainiot_" + sanitize(m.source) + "_";
+            if (m.counters != null) {
+                for (Map.Entry<String, Long> e : m.counters.entrySet()) {
+                    String name = prefix + sanitize(e.getKey()) + "_total";
+                    type(sb, name, "counter").append(name).append(' ').append(e.getValue()).append('\n');
+                }
+            }
+            if (m.gauges != null) {
+                for (Map.Entry<String, Double> e : m.gauges.entrySet()) {
+                    String name = prefix + sanitize(e.getKey());
+                    type(sb, name, "gauge").append(name).append(' ').append(number(e.getValue())).append('\n');
+                }
+            }
+            if (m.timers != null) {
+                for (Map.Entry<String, TimerDTO> e : m.timers.entrySet()) {
+                    String name = prefix + sanitize(e.getKey()) + "_milliseconds";
+                    TimerDTO t = e.getValue();
+                    type(sb, name, "summary")
+                        .append(name).append("_count ").append(t.count).append('\n')
+                        .append(name).append("_sum ").append(t.totalMillis).append('\n');
+                    type(sb, name + "_max", "gauge").append(name).append("_max ").append(t.maxMillis).append('\n');
+                    type(sb, name + "_last", "gauge").append(name).append("_last ").append(t.lastMillis).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder type(StringBuilder sb, String name, String type) {
+        return sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @return the name with every character Prometheus does not allow replaced by <code>_</code>
+     */
+    static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+                    || (c >= '0' && c <= '9' && i > 0);
+            sb.append(allowed ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String number(Double value) {
+        if (value == null || value.isNaN()) {
+            return "NaN";
+        } else if (value.isInfinite()) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString(value.longValue())
+                : value.toString();
+    }
+
+    private void info(String format, Object... args) {
+        if (log != null) {
+            log.info(format, args);
+        } else {
+            System.err.printf("METRICS:INFO:" + format + "\n", args);
+        }
+    }
+
+    private void warn(String format, Object... args) {
+        if (log != null) {
+            log.warn(format, args);
+        } else {
+            System.err.printf("METRICS:WARN:" + format + "\n", args);
+        }
+    }
+}
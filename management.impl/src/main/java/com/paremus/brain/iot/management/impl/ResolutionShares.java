@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.osgi.resource.ResourceUtils;
+
+/**
+ * Splits a resolution of several bid requests into the share of each
+ * request, as the installer does when it installs a batch.
+ */
+class ResolutionShares {
+
+    private ResolutionShares() {
+    }
+
+    /**
+     * The share of a request is the resolved resources its root requirements
+     * match, and everything their requirements match in turn. A request whose
+     * share is empty needs nothing installed. Resources not reached from any
+     * request are not given to any of them.
+     *
+     * @param resolution the resources to install for all of the requests
+     * @param roots the root requirements of each request
+     * @return the share of each request, in resolution order
+     */
+    static Map<String, Set<Resource>> shares(Collection<Resource> resolution,
+            Map<String, List<Requirement>> roots) {
+        Map<String, Set<Resource>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Requirement>> e : roots.entrySet()) {
+            Set<Resource> closure = new LinkedHashSet<>();
+            Deque<Requirement> todo = new ArrayDeque<>(e.getValue());
+            while (!todo.isEmpty()) {
+                Requirement req = todo.poll();
+                for (Resource resource : resolution) {
+                    if (!closure.contains(resource) && ResourceUtils.matches(req, resource)) {
+                        closure.add(resource);
+                        todo.addAll(resource.getRequirements(null));
+                    }
+                }
+            }
+            result.put(e.getKey(), closure);
+        }
+        return result;
+    }
+}
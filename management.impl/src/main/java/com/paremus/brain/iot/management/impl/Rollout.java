@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.util.promise.Deferred;
+import org.osgi.util.promise.Promise;
+
+import com.paremus.brain.iot.management.api.RolloutResultDTO;
+
+/**
+ * Sends an install request to each node of a rollout, keeping at most
+ * <code>concurrency</code> requests outstanding and starting each wave of
+ * <code>waveSize</code> nodes only when the previous wave has completed.
+ * Once <code>failureThreshold</code> nodes have failed no further requests
+ * are sent, and the rollout completes when the outstanding ones do.
+ */
+class Rollout {
+
+    /**
+     * Sends the install request for one node
+     */
+    interface Sender {
+        /**
+         * @param node the node to install on
+         * @return the unique identity of the request sent
+         * @throws Exception if the request could not be sent
+         */
+        String send(String node) throws Exception;
+    }
+
+    private static class Outstanding {
+        final String node;
+        final long deadline;
+
+        Outstanding(String node, long deadline) {
+            this.node = node;
+            this.deadline = deadline;
+        }
+    }
+
+    private final RolloutResultDTO result = new RolloutResultDTO();
+    private final Deferred<RolloutResultDTO> deferred = new Deferred<>();
+    private final Deque<String> pending;
+    private final Map<String, Outstanding> outstanding = new LinkedHashMap<>();
+    private final int concurrency;
+    private final int waveSize;
+    private final int failureThreshold;
+    private final long timeout;
+    private final Sender sender;
+
+    private int waveRemaining;
+    private boolean done;
+
+    /**
+     * @param symbolicName the behaviour being rolled out
+     * @param version the version being rolled out
+     * @param nodes the nodes to install on, in order
+     * @param concurrency the maximum outstanding requests, or 0 for no limit
+     * @param waveSize the nodes per wave, or 0 for a single wave
+     * @param failureThreshold the failures which abort the rollout, or 0 to never abort
+     * @param timeout how long to wait for each node, in milliseconds
+     * @param sender sends the requests
+     */
+    Rollout(String symbolicName, String version, List<String> nodes, int concurrency, int waveSize,
+            int failureThreshold, long timeout, Sender sender) {
+        this.pending = new ArrayDeque<>(nodes);
+        this.concurrency = concurrency <= 0 ? Integer.MAX_VALUE : concurrency;
+        this.waveSize = waveSize <= 0 ? Integer.MAX_VALUE : waveSize;
+        this.failureThreshold = failureThreshold <= 0 ? Integer.MAX_VALUE : failureThreshold;
+        this.timeout = timeout;
+        this.sender = sender;
+        this.waveRemaining = this.waveSize;
+
+        result.symbolicName = symbolicName;
+        result.version = version;
+        result.succeeded = new ArrayList<>();
+        result.failed = new LinkedHashMap<>();
+        result.skipped = new ArrayList<>();
+    }
+
+    Promise<RolloutResultDTO> start() {
+        finish(pump());
+        return deferred.getPromise();
+    }
+
+    /**
+     * Record the response to one of the requests of this rollout
+     *
+     * @return <code>false</code> if the request is not outstanding
+     */
+    boolean completed(String requestIdentity, boolean ok, String message) {
+        boolean finished;
+        synchronized (this) {
+            Outstanding o = outstanding.remove(requestIdentity);
+            if (o == null) {
+                return false;
+            }
+            record(o.node, ok, message);
+            finished = pump();
+        }
+        finish(finished);
+        return true;
+    }
+
+    /**
+     * Fail the requests which have not completed in time
+     *
+     * @return the identities of the requests which timed out
+     */
+    List<String> expire(long now) {
+        List<String> expired = new ArrayList<>();
+        boolean finished;
+        synchronized (this) {
+            outstanding.entrySet().removeIf(e -> {
+                if (now > e.getValue().deadline) {
+                    expired.add(e.getKey());
+                    record(e.getValue().node, false, "No response within " + timeout + " ms");
+                    return true;
+                }
+                return false;
+            });
+            finished = !expired.isEmpty() && pump();
+        }
+        finish(finished);
+        return expired;
+    }
+
+    /**
+     * Stop the rollout now, failing the outstanding requests
+     *
+     * @return the identities of the requests which were outstanding
+     */
+    List<String> abort(String reason) {
+        List<String> aborted;
+        synchronized (this) {
+            aborted = new ArrayList<>(outstanding.keySet());
+            for (Outstanding o : outstanding.values()) {
+                result.failed.put(o.node, reason);
+            }
+            outstanding.clear();
+            result.aborted = true;
+        }
+        finish(pump());
+        return aborted;
+    }
+
+    private void record(String node, boolean ok, String message) {
+        if (ok) {
+            result.succeeded.add(node);
+        } else {
+            result.failed.put(node, message);
+            if (result.failed.size() >= failureThreshold) {
+                result.aborted = true;
+            }
+        }
+    }
+
+    /**
+     * Send as many requests as the limits allow
+     *
+     * @return <code>true</code> if the rollout has just finished
+     */
+    private synchronized boolean pump() {
+        if (done) {
+            return false;
+        }
+
+        while (!result.aborted && !pending.isEmpty()) {
+            if (waveRemaining == 0) {
+                if (!outstanding.isEmpty()) {
+                    break;
+                }
+                waveRemaining = waveSize;
+            }
+            if (outstanding.size() >= concurrency) {
+                break;
+            }
+
+            String node = pending.poll();
+            waveRemaining--;
+            try {
+                outstanding.put(sender.send(node), new Outstanding(node, System.currentTimeMillis() + timeout));
+            } catch (Exception e) {
+                record(node, false, String.valueOf(e.getMessage()));
+            }
+        }
+
+        if (outstanding.isEmpty() && (result.aborted || pending.isEmpty())) {
+            result.skipped.addAll(pending);
+            pending.clear();
+            done = true;
+        }
+        return done;
+    }
+
+    private void finish(boolean finished) {
+        if (finished) {
+            deferred.resolve(result);
+        }
+    }
+}
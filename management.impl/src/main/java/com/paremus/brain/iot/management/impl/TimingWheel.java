@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel. Tasks are hashed into a slot by their deadline tick,
+ * and each call to {@link #advance(long)} only visits the slots for the ticks
+ * that have passed, so the cost does not depend on how many tasks are waiting.
+ */
+class TimingWheel {
+
+    class Timeout {
+        final Runnable task;
+        final long tick;
+        private List<Timeout> slot;
+
+        Timeout(Runnable task, long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+
+        /**
+         * @return <code>true</code> if the task had not yet run and will not run
+         */
+        boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (slot == null) {
+                    return false;
+                }
+                slot.remove(this);
+                slot = null;
+                size--;
+                return true;
+            }
+        }
+    }
+
+    private final long tickMs;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+
+    private long tick;
+    private int size;
+
+    /**
+     * @param tickMs the duration of one tick in milliseconds
+     * @param slots the number of slots, rounded up to a power of two
+     * @param now the current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMs, int slots, long now) {
+        int n = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.tickMs = tickMs;
+        this.wheel = new List[n];
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new LinkedList<>();
+        }
+        this.mask = n - 1;
+        this.tick = now / tickMs;
+    }
+
+    /**
+     * Run a task once the wheel has advanced past a deadline
+     *
+     * @param task the task to run
+     * @param deadline the time in milliseconds
+     * @return a handle to cancel the task
+     */
+    synchronized Timeout schedule(Runnable task, long deadline) {
+        long target = Math.max(tick + 1, (deadline + tickMs - 1) / tickMs);
+        Timeout t = new Timeout(task, target);
+        t.slot = wheel[(int) (target & mask)];
+        t.slot.add(t);
+        size++;
+        return t;
+    }
+
+    /**
+     * Run the tasks whose deadline has passed. Tasks run on the calling thread.
+     *
+     * @param now the current time in milliseconds
+     */
+    void advance(long now) {
+        List<Timeout> due = new ArrayList<>();
+        synchronized (this) {
+            long target = now / tickMs;
+            long steps = Math.min(target - tick, wheel.length);
+            for (long i = 1; i <= steps; i++) {
+                List<Timeout> slot = wheel[(int) ((tick + i) & mask)];
+                slot.removeIf(t -> {
+                    if (t.tick <= target) {
+                        t.slot = null;
+                        due.add(t);
+                        return true;
+                    }
+                    return false;
+                });
+            }
+            tick = Math.max(tick, target);
+            size -= due.size();
+        }
+
+        for (Timeout t : due) {
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                // Tasks report their own failures, don't let one stop the others
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
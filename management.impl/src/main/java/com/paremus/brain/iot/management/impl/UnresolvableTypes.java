@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.management.impl;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.resource.Resource;
+
+/**
+ * The event types with no consumer in the marketplace, each remembered
+ * until a deadline so that repeated events of the type are ignored cheaply.
+ * Adding a type is atomic, so that only one of the threads delivering its
+ * events raises the alert for each window.
+ */
+class UnresolvableTypes {
+
+    // event type -> the time until which it is ignored
+    private final Map<String, Long> until = new ConcurrentHashMap<>();
+
+    /**
+     * @return <code>true</code> if the event type is still being ignored
+     */
+    boolean contains(String eventType, long now) {
+        Long deadline = until.get(eventType);
+        return deadline != null && deadline > now;
+    }
+
+    /**
+     * Ignore the event type for <code>ttl</code> milliseconds, unless it is
+     * already being ignored
+     *
+     * @return <code>true</code> if this call started a new window
+     */
+    boolean add(String eventType, long now, long ttl) {
+        boolean[] added = new boolean[1];
+        until.compute(eventType, (k, deadline) -> {
+            if (deadline != null && deadline > now) {
+                return deadline;
+            }
+            added[0] = true;
+            return now + ttl;
+        });
+        return added[0];
+    }
+
+    /**
+     * Forget the event types consumed by newly added behaviours
+     */
+    void added(Collection<Resource> behaviours) {
+        for (Resource added : behaviours) {
+            until.keySet().removeAll(MarketplaceIndex.consumedBy(added));
+        }
+    }
+
+    void clear() {
+        until.clear();
+    }
+
+    /**
+     * Forget the event types whose window has passed
+     */
+    void purge(long now) {
+        until.values().removeIf(deadline -> deadline <= now);
+    }
+
+    int size() {
+        return until.size();
+    }
+}
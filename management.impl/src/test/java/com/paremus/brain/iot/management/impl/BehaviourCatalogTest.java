@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+package com.paremus.brain.iot.management.impl;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.osgi.framework.FrameworkUtil;
+
+import com.paremus.brain.iot.management.api.BehaviourPageDTO;
+
+import eu.brain.iot.installer.api.BehaviourDTO;
+
+public class BehaviourCatalogTest {
+
+    private final BehaviourCatalog catalog = new BehaviourCatalog(Arrays.asList(
+            entry("com.example.light", "Light", "Acme", "com.example.LightCommand"),
+            entry("com.example.sensor", "Sensor", "Acme", "com.example.SensorReading"),
+            entry("com.example.door", "Door", "Other", "com.example.DoorCommand"),
+            entry("com.example.alarm", "Alarm", 42L, "com.example.SensorReading")));
+
+    @Test
+    public void testEqualityFiltersUseTheIndexes() throws Exception {
+        assertEquals(rows(0), catalog.candidates("(name=Light)"));
+        assertEquals(rows(1, 3), catalog.candidates("(consumed=com.example.SensorReading)"));
+        assertEquals(rows(1, 3), catalog.candidates("(&(author=Acme)(consumed=com.example.SensorReading))"));
+        assertEquals(rows(0, 2), catalog.candidates("(|(name=Light)(name = Door ))"));
+
+        // a non-string author can't be ruled out by the index, the filter decides
+        assertEquals(rows(0, 1, 3), catalog.candidates("(author=Acme)"));
+        assertEquals(bundles("com.example.light", "com.example.sensor"), bundles(catalog.find("(author=Acme)")));
+    }
+
+    @Test
+    public void testOtherFiltersNarrowOrScan() throws Exception {
+        // an unindexed term in an and doesn't stop the indexed one narrowing
+        assertEquals(rows(2), catalog.candidates("(&(name=Door)(version>=1.0.0))"));
+        assertNull(catalog.candidates("(|(name=Door)(version>=1.0.0))"));
+        assertNull(catalog.candidates("(name=L*)"));
+        assertNull(catalog.candidates("(!(name=Light))"));
+
+        assertEquals(bundles("com.example.light"), bundles(catalog.find("(name=L*)")));
+        assertEquals(3, catalog.find("(!(name=Light))").size());
+        assertEquals(4, catalog.find(null).size());
+    }
+
+    @Test
+    public void testIndexedAndScannedResultsAgree() throws Exception {
+        String[] filters = {
+            "(name=Light)",
+            "(&(author=Acme)(consumed=com.example.SensorReading))",
+            "(|(name=Door)(consumed=com.example.LightCommand))",
+            "(&(|(name=Door)(name=Alarm))(consumed=com.example.SensorReading))",
+            "(name=Light\\)s)",
+            "(name=Missing)"
+        };
+        for (String f : filters) {
+            List<String> expected = new ArrayList<>();
+            for (BehaviourSnapshot.Entry e : catalog.entries()) {
+                if (FrameworkUtil.createFilter(f).matches(e.attributes)) {
+                    expected.add(e.behaviour.bundle);
+                }
+            }
+            assertEquals(f, expected, bundles(catalog.find(f)));
+        }
+    }
+
+    @Test
+    public void testPagesInBundleOrderFromContinuation() throws Exception {
+        List<BehaviourDTO> all = catalog.stream(null).collect(toList());
+        assertEquals(bundles("com.example.alarm", "com.example.door", "com.example.light", "com.example.sensor"),
+                bundles(all));
+
+        BehaviourPageDTO first = catalog.page(null, 2, null);
+        assertEquals(bundles("com.example.alarm", "com.example.door"), bundles(first.behaviours));
+        BehaviourPageDTO second = catalog.page(null, 2, first.continuation);
+        assertEquals(bundles("com.example.light", "com.example.sensor"), bundles(second.behaviours));
+        assertNull(second.continuation);
+        assertEquals(bundles("com.example.sensor"),
+                bundles(catalog.page("(author=Acme)", 1, catalog.page("(author=Acme)", 1, null).continuation)
+                        .behaviours));
+
+        // versions order numerically, and a removed behaviour still positions the next page
+        BehaviourCatalog versions = new BehaviourCatalog(Arrays.asList(
+                entry("b", "10.0.0", "B", "Acme", "x"), entry("b", "9.0.0", "B", "Acme", "x"),
+                entry("a", "1.0.0", "A", "Acme", "x")));
+        assertEquals(Arrays.asList("1.0.0", "9.0.0", "10.0.0"),
+                versions.stream(null).map(b -> b.version).collect(toList()));
+        BehaviourDTO gone = new BehaviourDTO();
+        gone.bundle = "b";
+        gone.version = "9.5.0";
+        assertEquals(Arrays.asList("10.0.0"), versions.page(null, 5, BehaviourCatalog.token(gone, 0))
+                .behaviours.stream().map(b -> b.version).collect(toList()));
+    }
+
+    @Test
+    public void testBehavioursSharingABundleStraddleAPage() throws Exception {
+        // two behaviours in one bundle, and the same bundle from two indexes
+        BehaviourCatalog shared = new BehaviourCatalog(Arrays.asList(
+                entry("b", "Second", "Acme", "x"), entry("a", "A", "Acme", "x"),
+                entry("b", "First", "Acme", "x"), entry("c", "C", "Acme", "x"),
+                entry("c", "C", "Acme", "x")));
+
+        List<String> paged = new ArrayList<>();
+        String continuation = null;
+        do {
+            BehaviourPageDTO page = shared.page(null, 2, continuation);
+            page.behaviours.forEach(b -> paged.add(b.name));
+            continuation = page.continuation;
+        } while (continuation != null);
+        assertEquals(Arrays.asList("A", "First", "Second", "C", "C"), paged);
+
+        BehaviourPageDTO page = shared.page(null, 2, null);
+        assertEquals(Arrays.asList("Second", "C"), shared.page(null, 2, page.continuation)
+                .behaviours.stream().map(b -> b.name).collect(toList()));
+        assertEquals(Arrays.asList("C"), shared.page(null, 2, shared.page(null, 4, null).continuation)
+                .behaviours.stream().map(b -> b.name).collect(toList()));
+    }
+
+    private static BitSet rows(int... rows) {
+        BitSet set = new BitSet();
+        for (int r : rows) {
+            set.set(r);
+        }
+        return set;
+    }
+
+    private static List<String> bundles(String... bundles) {
+        return Arrays.asList(bundles);
+    }
+
+    private static List<String> bundles(List<BehaviourDTO> found) {
+        return found.stream().map(b -> b.bundle).collect(toList());
+    }
+
+    private static BehaviourSnapshot.Entry entry(String bsn, String name, Object author, String consumed) {
+        return entry(bsn, "1.0.0", name, author, consumed);
+    }
+
+    private static BehaviourSnapshot.Entry entry(String bsn, String version, String name, Object author,
+            String consumed) {
+        BehaviourDTO dto = new BehaviourDTO();
+        dto.bundle = bsn;
+        dto.version = version;
+        dto.name = name;
+        dto.author = String.valueOf(author);
+        dto.consumed = consumed;
+
+        Map<String, Object> attrs = new HashMap<>();
+        attrs.put("name", name);
+        attrs.put("author", author);
+        attrs.put("consumed", Arrays.asList(consumed, "com.example.Shared"));
+        return new BehaviourSnapshot.Entry(dto, attrs);
+    }
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Version;
+
+import eu.brain.iot.installer.api.BehaviourDTO;
+
+public class BehaviourSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = new File(folder.getRoot(), "behaviours");
+        assertNull(BehaviourSnapshot.load(file));
+
+        new BehaviourSnapshot(Arrays.asList(
+                entry("com.example.light", "1.0.0", "Light", "com.example.LightCommand"),
+                entry("com.example.sensor", "2.1.0", "Sensor", "com.example.SensorReading")))
+            .save(file);
+
+        BehaviourSnapshot loaded = BehaviourSnapshot.load(file);
+        assertEquals(2, loaded.size());
+
+        List<BehaviourDTO> found = loaded.find("(name=Light)");
+        assertEquals(1, found.size());
+        assertEquals("com.example.light", found.get(0).bundle);
+        assertEquals("1.0.0", found.get(0).version);
+        assertEquals("com.example.LightCommand", found.get(0).consumed);
+    }
+
+    @Test
+    public void testFilterTypes() throws Exception {
+        File file = new File(folder.getRoot(), "behaviours");
+        new BehaviourSnapshot(Arrays.asList(
+                entry("com.example.light", "1.0.0", "Light", "com.example.LightCommand"),
+                entry("com.example.sensor", "2.1.0", "Sensor", "com.example.SensorReading")))
+            .save(file);
+        BehaviourSnapshot loaded = BehaviourSnapshot.load(file);
+
+        // versions keep their type, and list attributes match any element
+        assertEquals(1, loaded.find("(version>=2.0.0)").size());
+        assertEquals(1, loaded.find("(consumed=com.example.SensorReading)").size());
+        assertEquals(2, loaded.find("(priority>=5)").size());
+        assertEquals(2, loaded.find(null).size());
+    }
+
+    private static BehaviourSnapshot.Entry entry(String bsn, String version, String name, String consumed) {
+        BehaviourDTO dto = new BehaviourDTO();
+        dto.bundle = bsn;
+        dto.version = version;
+        dto.name = name;
+        dto.consumed = consumed;
+
+        Map<String, Object> attrs = new HashMap<>();
+        attrs.put("name", name);
+        attrs.put("version", Version.parseVersion(version));
+        attrs.put("consumed", Arrays.asList(consumed, "com.example.Shared"));
+        attrs.put("priority", 10L);
+        return new BehaviourSnapshot.Entry(dto, attrs);
+    }
+}
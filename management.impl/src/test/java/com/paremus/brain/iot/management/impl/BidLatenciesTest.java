@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BidLatenciesTest {
+
+    @Test
+    public void testNoSamplesUsesMax() {
+        BidLatencies latencies = new BidLatencies(8);
+        assertEquals(1000, latencies.window(95, 50, 1000));
+    }
+
+    @Test
+    public void testSlowestResponderSetsWindow() {
+        BidLatencies latencies = new BidLatencies(8);
+        for (int i = 1; i <= 8; i++) {
+            latencies.record("fast", i);
+            latencies.record("slow", i * 30);
+        }
+
+        assertEquals(240, latencies.window(100, 50, 1000));
+        assertEquals(120, latencies.window(50, 50, 1000));
+        assertEquals(Long.valueOf(8), latencies.toMap(100).get("fast"));
+
+        latencies.forget("slow");
+        assertEquals(50, latencies.window(100, 50, 1000));
+    }
+
+    @Test
+    public void testWindowIsRollingAndClamped() {
+        BidLatencies latencies = new BidLatencies(4);
+        latencies.record("node", 5000);
+        assertEquals(1000, latencies.window(95, 50, 1000));
+
+        for (int i = 0; i < 4; i++) {
+            latencies.record("node", 100);
+        }
+        // the slow sample has rolled out
+        assertEquals(100, latencies.window(95, 50, 1000));
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.paremus.brain.iot.management.api.BlacklistEntryDTO;
+import com.paremus.brain.iot.management.api.BlacklistEntryDTO.Reason;
+
+public class BlacklistTest {
+
+    private static final String EVENT_TYPE = "test.Event";
+
+    private long now = 1_000_000;
+
+    private final TimingWheel wheel = new TimingWheel(100, 8, now);
+    private final Blacklist blacklist = new Blacklist(wheel, () -> now, 1000, 4000);
+
+    @Test
+    public void testExponentialBackoff() {
+        assertEquals(1000, blacklist.suppress(EVENT_TYPE, Reason.NO_HOSTS, "first"));
+        assertEquals(Reason.NO_HOSTS, blacklist.check(EVENT_TYPE));
+
+        advance(1000);
+        assertNull(blacklist.check(EVENT_TYPE));
+
+        // Still on probation, so the strike is remembered
+        assertEquals(2000, blacklist.suppress(EVENT_TYPE, Reason.NO_HOSTS, "second"));
+        advance(2000);
+        assertEquals(4000, blacklist.suppress(EVENT_TYPE, Reason.NO_HOSTS, "third"));
+        advance(4000);
+        assertEquals(4000, blacklist.suppress(EVENT_TYPE, Reason.NO_HOSTS, "capped"));
+        assertEquals(4, blacklist.toDTOs().iterator().next().strikes);
+    }
+
+    @Test
+    public void testProbationEnds() {
+        blacklist.suppress(EVENT_TYPE, Reason.INSTALL_FAILED, "first");
+        advance(1000);
+        advance(4000);
+
+        assertEquals(1000, blacklist.suppress(EVENT_TYPE, Reason.INSTALL_FAILED, "forgotten"));
+    }
+
+    @Test
+    public void testInstalledUntilRemoved() {
+        blacklist.installed(EVENT_TYPE, "installed");
+        advance(100_000);
+        assertEquals(Reason.INSTALLED, blacklist.check(EVENT_TYPE));
+
+        BlacklistEntryDTO dto = blacklist.toDTOs().iterator().next();
+        assertEquals(Long.MAX_VALUE, dto.expires);
+        assertEquals(0, dto.strikes);
+
+        assertTrue(blacklist.remove(EVENT_TYPE));
+        assertFalse(blacklist.remove(EVENT_TYPE));
+        assertNull(blacklist.check(EVENT_TYPE));
+    }
+
+    @Test
+    public void testClearCancelsTimeouts() {
+        blacklist.suppress(EVENT_TYPE, Reason.NO_HOSTS, "first");
+        blacklist.suppress("other.Event", Reason.NO_HOSTS, "first");
+        assertEquals(2, wheel.size());
+
+        blacklist.clear();
+        assertEquals(0, wheel.size());
+        assertTrue(blacklist.toDTOs().isEmpty());
+    }
+
+    @Test
+    public void testWheelWrapsAround() {
+        int[] fired = new int[1];
+        // 8 slots of 100ms, so this is several rotations away
+        wheel.schedule(() -> fired[0]++, now + 2550);
+
+        advance(2000);
+        assertEquals(0, fired[0]);
+        advance(600);
+        assertEquals(1, fired[0]);
+    }
+
+    private void advance(long millis) {
+        // step by tick, as the management scheduler does
+        for (long end = now + millis; now < end;) {
+            now = Math.min(end, now + 100);
+            wheel.advance(now);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static java.util.Collections.singletonMap;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.paremus.brain.iot.management.impl.BehaviourManagementImpl.UntypedEvent;
+import com.paremus.brain.iot.management.impl.EventBuffer.Offer;
+import com.paremus.brain.iot.management.impl.EventBuffer.OverflowPolicy;
+
+public class EventBufferTest {
+
+    private static final String EVENT_TYPE = "test.Event";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> warnings = new ArrayList<>();
+
+    @Test
+    public void testDropOldest() throws Exception {
+        EventBuffer buffer = newBuffer(3, OverflowPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 5; i++) {
+            buffer.add(event(i));
+        }
+
+        assertEquals(3, buffer.size());
+        assertEquals(2, buffer.toDTO().dropped);
+        assertEquals(Arrays.asList(2, 3, 4), values(buffer.drain()));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        EventBuffer buffer = newBuffer(3, OverflowPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i < 3 ? Offer.BUFFERED : Offer.DROPPED, buffer.add(event(i)));
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2), values(buffer.drain()));
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        File spillFile = new File(folder.getRoot(), "spill/test.seg");
+        EventBuffer buffer = new EventBuffer(EVENT_TYPE, 2, OverflowPolicy.SPILL, spillFile, 64 * 1024, warnings::add);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Offer.BUFFERED, buffer.add(event(i)));
+        }
+
+        assertEquals(2, buffer.toDTO().buffered);
+        assertEquals(3, buffer.toDTO().spilled);
+        assertTrue(spillFile.exists());
+
+        assertEquals(Arrays.asList(0, 1, 2), values(buffer.poll(3)));
+
+        // new events queue behind the spilled ones
+        buffer.add(event(5));
+        assertEquals(Arrays.asList(3, 4, 5), values(buffer.drain()));
+
+        buffer.close();
+        assertFalse(spillFile.exists());
+    }
+
+    @Test
+    public void testSpillSegmentFull() throws Exception {
+        File spillFile = new File(folder.getRoot(), "small.seg");
+        EventBuffer buffer = new EventBuffer(EVENT_TYPE, 1, OverflowPolicy.SPILL, spillFile, 16, warnings::add);
+
+        assertEquals(Offer.BUFFERED, buffer.add(event(0)));
+        assertEquals(Offer.DROPPED, buffer.add(event(1)));
+        assertEquals(1, buffer.toDTO().dropped);
+
+        buffer.close();
+    }
+
+    @Test
+    public void testSpillSegmentIsReused() throws Exception {
+        File spillFile = new File(folder.getRoot(), "circular.seg");
+        EventBuffer buffer = new EventBuffer(EVENT_TYPE, 1, OverflowPolicy.SPILL, spillFile, 1024, warnings::add);
+
+        // fill the segment
+        int next = 0;
+        while (buffer.add(event(next)) == Offer.BUFFERED) {
+            next++;
+        }
+        assertTrue(next > 3);
+
+        // only spilled events from here on
+        assertEquals(Arrays.asList(0), values(buffer.poll(1)));
+        int held = buffer.size();
+
+        // a partially drained burst keeps spilling into the space read back
+        List<Object> expected = new ArrayList<>();
+        for (int i = 1; i < next; i++) {
+            expected.add(i);
+        }
+        for (int round = 0; round < 10; round++) {
+            assertEquals(expected.subList(0, 2), values(buffer.poll(2)));
+            expected.subList(0, 2).clear();
+            for (int i = 0; i < 2; i++) {
+                assertEquals(Offer.BUFFERED, buffer.add(event(++next)));
+                expected.add(next);
+            }
+        }
+        assertEquals(held, buffer.size());
+        assertEquals(expected, values(buffer.drain()));
+        assertTrue(warnings.isEmpty());
+
+        buffer.close();
+    }
+
+    @Test
+    public void testUnreadableSpillIsReportedOnce() throws Exception {
+        File spillFile = new File(folder.getRoot(), "unreadable.seg");
+        EventBuffer buffer = new EventBuffer(EVENT_TYPE, 1, OverflowPolicy.SPILL, spillFile, 64 * 1024,
+                warnings::add);
+
+        buffer.add(event(0));
+        for (int i = 0; i < 2; i++) {
+            UntypedEvent event = new UntypedEvent();
+            event.eventType = EVENT_TYPE;
+            event.eventData = new HashMap<>(singletonMap("value", new Unreadable()));
+            assertEquals(Offer.BUFFERED, buffer.add(event));
+        }
+        buffer.add(event(3));
+
+        assertEquals(Arrays.asList(0, 3), values(buffer.drain()));
+        assertEquals(2, buffer.toDTO().dropped);
+        assertEquals(1, warnings.size());
+
+        buffer.close();
+    }
+
+    @Test
+    public void testClosedBufferRejectsEvents() throws Exception {
+        EventBuffer buffer = newBuffer(2, OverflowPolicy.DROP_NEWEST);
+
+        buffer.add(event(0));
+        assertFalse(buffer.closeIfEmpty());
+
+        buffer.drain();
+        assertTrue(buffer.closeIfEmpty());
+        assertEquals(Offer.CLOSED, buffer.add(event(1)));
+        assertTrue(buffer.isEmpty());
+    }
+
+    private EventBuffer newBuffer(int capacity, OverflowPolicy policy) {
+        return new EventBuffer(EVENT_TYPE, capacity, policy, new File(folder.getRoot(), "unused.seg"), 1024,
+                warnings::add);
+    }
+
+    private static UntypedEvent event(int value) {
+        UntypedEvent event = new UntypedEvent();
+        event.eventType = EVENT_TYPE;
+        event.eventData = new HashMap<>(singletonMap("value", value));
+        return event;
+    }
+
+    private static class Unreadable implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new InvalidObjectException("unreadable");
+        }
+    }
+
+    private static List<Object> values(List<UntypedEvent> events) {
+        return events.stream().map(e -> e.eventData.get("value")).collect(toList());
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.paremus.brain.iot.management.api.ManagementMetricsDTO;
+import com.paremus.brain.iot.management.impl.EventBuffer.OverflowPolicy;
+import com.paremus.brain.iot.management.impl.InFlightRegistry.InFlightRequest;
+import com.paremus.brain.iot.management.impl.InFlightRegistry.Phase;
+
+public class InFlightRegistryTest {
+
+    private final InFlightRegistry registry = new InFlightRegistry();
+
+    @Test
+    public void testRegisterOnce() {
+        InFlightRequest first = request("LastResort:a", 1000);
+        assertNull(registry.register(first));
+        assertSame(first, registry.register(request("LastResort:a", 1000)));
+        assertSame(first, registry.get("LastResort:a"));
+    }
+
+    @Test
+    public void testPhases() {
+        InFlightRequest r = request("LastResort:a", 1000);
+        registry.register(r);
+
+        assertFalse(r.award("node1", 2000));
+        assertTrue(r.advance(Phase.BID, Phase.AWARD, 2000));
+        assertFalse(r.advance(Phase.BID, Phase.AWARD, 2000));
+        assertTrue(r.award("node1", 3000));
+        assertEquals("node1", r.awardedNode());
+
+        assertTrue(r.installed());
+        assertFalse(r.installed());
+        assertEquals(Phase.REPLAY, r.phase());
+        assertTrue(registry.expire(Long.MAX_VALUE - 1).isEmpty());
+    }
+
+    @Test
+    public void testExpire() {
+        registry.register(request("LastResort:a", 1000));
+        InFlightRequest b = request("LastResort:b", 1000);
+        b.advance(Phase.BID, Phase.AWARD, 5000);
+        registry.register(b);
+        registry.beginInstall("LastResort:c", "node2", 1000);
+
+        List<InFlightRequest> expired = registry.expire(2000);
+        assertEquals(1, expired.size());
+        assertEquals("LastResort:a", expired.get(0).requestIdentity);
+        assertNull(registry.completeInstall("LastResort:c"));
+
+        ManagementMetricsDTO dto = registry.toDTO();
+        assertEquals(1, dto.inFlight);
+        assertEquals(Integer.valueOf(1), dto.inFlightByPhase.get("AWARD"));
+        assertEquals(Long.valueOf(1), dto.expired.get("BID"));
+        assertEquals(1, dto.expiredInstalls);
+    }
+
+    @Test
+    public void testAbandonInstallOnlyForSource() {
+        registry.beginInstall("install:x", "node1", Long.MAX_VALUE);
+        registry.abandonInstall("install:x", "node2");
+        assertEquals(1, registry.toDTO().pendingInstalls);
+        registry.abandonInstall("install:x", "node1");
+        assertNull(registry.completeInstall("install:x"));
+    }
+
+    private static InFlightRequest request(String identity, long deadline) {
+        return new InFlightRequest(identity, identity.substring(identity.indexOf(':') + 1),
+                new EventBuffer(identity, 10, OverflowPolicy.DROP_OLDEST, new File("unused.seg"), 0, m -> {}), deadline);
+    }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+public class KeyedExecutorTest {
+
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<String> ran = new ArrayList<>();
+    private final List<String> rejected = new ArrayList<>();
+    private boolean saturated;
+
+    private final KeyedExecutor executor = new KeyedExecutor(r -> {
+        if (saturated) {
+            throw new RejectedExecutionException("saturated");
+        }
+        scheduled.add(r);
+    }, 2);
+
+    private void submit(String key, String task) {
+        executor.execute(key, () -> ran.add(task), ree -> rejected.add(task));
+    }
+
+    @Test
+    public void testSameKeyRunsInOrder() {
+        submit("a", "a1");
+        submit("b", "b1");
+        submit("a", "a2");
+
+        assertEquals(2, scheduled.size());
+        scheduled.forEach(Runnable::run);
+
+        assertEquals(Arrays.asList("a1", "a2", "b1"), ran);
+        assertEquals(0, executor.activeKeys());
+    }
+
+    @Test
+    public void testFullLaneRejectsOnlyNewTask() {
+        submit("a", "a1");
+        submit("a", "a2");
+        submit("a", "a3");
+
+        assertEquals(Arrays.asList("a3"), rejected);
+        scheduled.forEach(Runnable::run);
+        assertEquals(Arrays.asList("a1", "a2"), ran);
+    }
+
+    @Test
+    public void testSaturatedExecutorRejectsOnlyNewLane() {
+        submit("a", "a1");
+        saturated = true;
+        submit("a", "a2");
+        submit("b", "b1");
+
+        assertEquals(Arrays.asList("b1"), rejected);
+        assertEquals(1, executor.activeKeys());
+
+        saturated = false;
+        scheduled.forEach(Runnable::run);
+        assertEquals(Arrays.asList("a1", "a2"), ran);
+
+        submit("b", "b2");
+        scheduled.get(1).run();
+        assertEquals(Arrays.asList("a1", "a2", "b2"), ran);
+    }
+
+    @Test
+    public void testReconfigureAppliesToNewLanes() {
+        submit("a", "a1");
+        List<Runnable> other = new ArrayList<>();
+        executor.configure(other::add, 1);
+
+        // the started lane stays on its executor, with the new length
+        submit("a", "a2");
+        submit("b", "b1");
+        submit("b", "b2");
+        assertEquals(Arrays.asList("a2", "b2"), rejected);
+        assertEquals(1, scheduled.size());
+        assertEquals(1, other.size());
+
+        scheduled.forEach(Runnable::run);
+        other.forEach(Runnable::run);
+        assertEquals(Arrays.asList("a1", "b1"), ran);
+    }
+}
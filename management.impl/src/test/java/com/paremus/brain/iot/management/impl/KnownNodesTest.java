@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class KnownNodesTest {
+
+    private static final String[] NODES = {"node-a", "node-b", "node-c", "node-d"};
+
+    @Test
+    public void testNodesAgreeOnOwner() {
+        KnownNodes[] views = new KnownNodes[NODES.length];
+        for (int i = 0; i < NODES.length; i++) {
+            views[i] = new KnownNodes(NODES[i]);
+            for (String node : NODES) {
+                views[i].seen(node, 0);
+            }
+        }
+
+        for (int e = 0; e < 100; e++) {
+            String eventType = "test.Event" + e;
+            String owner = views[0].owner(eventType);
+            for (KnownNodes view : views) {
+                assertEquals(owner, view.owner(eventType));
+            }
+        }
+    }
+
+    @Test
+    public void testOwnershipSpreads() {
+        KnownNodes view = new KnownNodes(NODES[0]);
+        for (String node : NODES) {
+            view.seen(node, 0);
+        }
+        assertEquals(NODES.length, view.size());
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int e = 0; e < 1000; e++) {
+            counts.merge(view.owner("test.Event" + e), 1, Integer::sum);
+        }
+        assertEquals(NODES.length, counts.size());
+        counts.values().forEach(c -> assertTrue(c > 100));
+    }
+
+    @Test
+    public void testOnlyOwnedKeysMoveWhenANodeLeaves() {
+        KnownNodes view = new KnownNodes(NODES[0]);
+        for (String node : NODES) {
+            view.seen(node, 0);
+        }
+
+        Map<String, String> before = new HashMap<>();
+        for (int e = 0; e < 200; e++) {
+            before.put("test.Event" + e, view.owner("test.Event" + e));
+        }
+
+        view.forget("node-c");
+        before.forEach((eventType, owner) -> {
+            if ("node-c".equals(owner)) {
+                assertNotEquals("node-c", view.owner(eventType));
+            } else {
+                assertEquals(owner, view.owner(eventType));
+            }
+        });
+    }
+
+    @Test
+    public void testPrune() {
+        KnownNodes view = new KnownNodes(NODES[0]);
+        view.seen("node-b", 100);
+        view.seen("node-c", 200);
+        view.prune(150);
+        assertEquals(2, view.size());
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.resource.Resource;
+
+import com.paremus.brain.iot.resolver.index.CompactRepository;
+import com.paremus.brain.iot.resolver.index.FederatedRepository;
+import com.paremus.brain.iot.resolver.index.IndexFederation;
+
+public class MarketplaceViewTest {
+
+    private static final String NS = "http://www.osgi.org/xmlns/repository/v1.0.0";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FederatedRepository repository = new IndexFederation(null, null, null, Runnable::run, 3, 0)
+            .repository("test", Collections.emptyList(), false);
+
+    @Test
+    public void testRetiredViewClosesAfterLastRelease() throws Exception {
+        MarketplaceView view = new MarketplaceView(Collections.emptyList(), repository);
+
+        assertTrue(view.acquire());
+        assertTrue(view.acquire());
+
+        view.retire();
+        assertTrue(isOpen());
+
+        view.release();
+        assertTrue(isOpen());
+
+        view.release();
+        assertFalse(isOpen());
+        assertTrue(view.isClosed());
+
+        // a closed view can't be used again
+        assertFalse(view.acquire());
+    }
+
+    @Test
+    public void testRevalidatorSeesLocalIndexChanges() throws Exception {
+        File index = folder.newFile("index.xml");
+        IndexRevalidator revalidator = new IndexRevalidator();
+
+        // the first check only records the validators
+        assertFalse(revalidator.changed(Collections.singletonList(index.toURI()), null));
+        assertFalse(revalidator.changed(Collections.singletonList(index.toURI()), null));
+
+        index.setLastModified(index.lastModified() - 10000);
+        assertTrue(revalidator.changed(Collections.singletonList(index.toURI()), null));
+        assertFalse(revalidator.changed(Collections.singletonList(index.toURI()), null));
+    }
+
+    @Test
+    public void testRevalidatorSeesDeltaFeed() throws Exception {
+        File index = folder.newFile("index.xml");
+        IndexRevalidator revalidator = new IndexRevalidator();
+        assertFalse(revalidator.changed(Collections.singletonList(index.toURI()), null));
+
+        write(new File(CompactRepository.deltaFeedFor(index.toURI())), "<delta/>");
+        assertTrue(revalidator.changed(Collections.singletonList(index.toURI()), null));
+    }
+
+    @Test
+    public void testDeltaUpdatesLookupTables() throws Exception {
+        File index = new File(folder.getRoot(), "index.xml");
+        write(index, "<repository xmlns='" + NS + "' increment='1'>" + behaviour("a", "test.A")
+                + behaviour("b", "test.B") + "</repository>");
+        File delta = new File(CompactRepository.deltaFeedFor(index.toURI()));
+        write(delta, "<delta xmlns='" + NS + "' base='1' increment='1'/>");
+
+        List<URI> indexes = Collections.singletonList(index.toURI());
+        IndexFederation federation = new IndexFederation(null, null, null, Runnable::run, 3, 0);
+        MarketplaceView first = new MarketplaceView(indexes, federation.repository("test", indexes, true));
+        assertEquals(2, first.index.catalog().size());
+        Resource b = first.index.resourceFor("b", "1.0.0");
+
+        write(delta, "<delta xmlns='" + NS + "' base='1' increment='3'>"
+                + "<remove increment='2' identity='a' version='1.0.0'/>"
+                + "<add increment='3'>" + behaviour("c", "test.A") + "</add></delta>");
+        MarketplaceView second = new MarketplaceView(indexes, federation.repository("test", indexes, true), first);
+
+        assertEquals(1, second.changes.getAdded().size());
+        assertEquals(1, second.changes.getRemoved().size());
+        assertNull(second.index.resourceFor("a", "1.0.0"));
+        assertSame(b, second.index.resourceFor("b", "1.0.0"));
+        assertEquals(Arrays.asList(second.index.resourceFor("c", "1.0.0")), second.index.consumersOf("test.A"));
+        assertEquals(2, second.index.catalog().size());
+
+        // the earlier view still sees the index as it was
+        assertEquals(Arrays.asList(first.index.resourceFor("a", "1.0.0")), first.index.consumersOf("test.A"));
+    }
+
+    private static String behaviour(String bsn, String consumed) {
+        return "<resource><capability namespace='osgi.identity'>"
+                + "<attribute name='osgi.identity' value='" + bsn + "'/>"
+                + "<attribute name='version' type='Version' value='1.0.0'/></capability>"
+                + "<capability namespace='eu.brain.iot.behaviour'>"
+                + "<attribute name='name' value='" + bsn + "'/>"
+                + "<attribute name='consumed' value='" + consumed + "'/></capability></resource>";
+    }
+
+    private static void write(File file, String content) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private boolean isOpen() {
+        try {
+            repository.getIndexes();
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.paremus.brain.iot.management.api.PlacementDTO;
+
+public class PlacementDirectoryTest {
+
+    private static final String BSN = "com.example.behaviour";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHealthyNode() throws Exception {
+        PlacementDirectory directory = new PlacementDirectory(folder.newFile());
+
+        assertNull(directory.healthyNode(BSN, "1.0.0"));
+
+        directory.installed(BSN, "1.0.0", "node-a", 100);
+        directory.installed(BSN, "1.0", "node-b", 200);
+        assertEquals("node-b", directory.healthyNode(BSN, "1.0.0"));
+
+        directory.failed(BSN, "1.0.0", "node-b");
+        assertEquals("node-a", directory.healthyNode(BSN, "1.0.0"));
+
+        directory.nodeLost("node-a");
+        assertNull(directory.healthyNode(BSN, "1.0.0"));
+        assertEquals(2, directory.toDTOs().size());
+    }
+
+    @Test
+    public void testUninstallAndReset() throws Exception {
+        PlacementDirectory directory = new PlacementDirectory(folder.newFile());
+
+        directory.installed(BSN, "1.0.0", "node-a", 100);
+        directory.installed(BSN, "2.0.0", "node-a", 100);
+        directory.installed(BSN, "2.0.0", "node-b", 100);
+
+        directory.uninstalled(BSN, "1.0.0", "node-a");
+        assertNull(directory.healthyNode(BSN, "1.0.0"));
+
+        directory.reset("node-a");
+        assertEquals("node-b", directory.healthyNode(BSN, "2.0.0"));
+        assertEquals(1, directory.toDTOs().size());
+    }
+
+    @Test
+    public void testUpdateReplacesOldVersion() throws Exception {
+        PlacementDirectory directory = new PlacementDirectory(folder.newFile());
+
+        directory.installed(BSN, "1.0.0", "node-a", 100);
+        directory.installed(BSN, "1.0.0", "node-b", 100);
+
+        directory.updated(BSN, "2.0.0", "node-a", 200);
+        assertEquals("node-b", directory.healthyNode(BSN, "1.0.0"));
+        assertEquals("node-a", directory.healthyNode(BSN, "2.0.0"));
+        assertEquals(2, directory.toDTOs().size());
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        File file = new File(folder.getRoot(), "placements");
+
+        PlacementDirectory directory = new PlacementDirectory(file);
+        directory.installed(BSN, "1.0.0", "node-a", 100);
+        directory.installed(BSN, "1.0.0", "node-b", 200);
+        directory.failed(BSN, "1.0.0", "node-b");
+
+        PlacementDirectory restarted = new PlacementDirectory(file);
+        restarted.load();
+        assertEquals("node-a", restarted.healthyNode(BSN, "1.0.0"));
+
+        for (PlacementDTO p : restarted.toDTOs()) {
+            assertEquals(BSN, p.symbolicName);
+            if ("node-b".equals(p.node)) {
+                assertFalse(p.healthy);
+                assertEquals(200, p.installed);
+            } else {
+                assertTrue(p.healthy);
+            }
+        }
+    }
+}
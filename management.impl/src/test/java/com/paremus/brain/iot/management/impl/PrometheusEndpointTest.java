@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.management.impl;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import eu.brain.iot.installer.api.MetricsDTO;
+import eu.brain.iot.installer.api.TimerDTO;
+
+public class PrometheusEndpointTest {
+
+    @Test
+    public void testFormat() {
+        String text = PrometheusEndpoint.format(singletonList(metrics()));
+
+        assertEquals("# TYPE brainiot_installer_requests_INSTALL_total counter\n"
+                + "brainiot_installer_requests_INSTALL_total 3\n"
+                + "# TYPE brainiot_installer_cache_hit_ratio gauge\n"
+                + "brainiot_installer_cache_hit_ratio 0.25\n"
+                + "# TYPE brainiot_installer_queue_depth gauge\n"
+                + "brainiot_installer_queue_depth 2\n"
+                + "# TYPE brainiot_installer_phase_resolve_milliseconds summary\n"
+                + "brainiot_installer_phase_resolve_milliseconds_count 3\n"
+                + "brainiot_installer_phase_resolve_milliseconds_sum 60\n"
+                + "# TYPE brainiot_installer_phase_resolve_milliseconds_max gauge\n"
+                + "brainiot_installer_phase_resolve_milliseconds_max 40\n"
+                + "# TYPE brainiot_installer_phase_resolve_milliseconds_last gauge\n"
+                + "brainiot_installer_phase_resolve_milliseconds_last 5\n", text);
+    }
+
+    @Test
+    public void testSanitize() {
+        assertEquals("index_cache_hits", PrometheusEndpoint.sanitize("index.cache.hits"));
+        assertEquals("_lives_x", PrometheusEndpoint.sanitize("9lives-x"));
+    }
+
+    @Test
+    public void testServesProviders() throws Exception {
+        PrometheusEndpoint endpoint = new PrometheusEndpoint();
+        endpoint.addProvider(PrometheusEndpointTest::metrics);
+        endpoint.activate(config("/metrics"));
+        try {
+            String ok = get(endpoint.getPort(), "/metrics?x=1");
+            assertTrue(ok, ok.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(ok, ok.contains("Content-Type: " + PrometheusEndpoint.CONTENT_TYPE));
+            assertTrue(ok, ok.endsWith("brainiot_installer_phase_resolve_milliseconds_last 5\n"));
+
+            String missing = get(endpoint.getPort(), "/other");
+            assertTrue(missing, missing.startsWith("HTTP/1.1 404"));
+        } finally {
+            endpoint.deactivate();
+        }
+    }
+
+    private static MetricsDTO metrics() {
+        MetricsDTO dto = new MetricsDTO();
+        dto.source = "installer";
+        dto.counters = new TreeMap<>();
+        dto.counters.put("requests.INSTALL", 3L);
+        dto.gauges = new TreeMap<>();
+        dto.gauges.put("queue.depth", 2.0);
+        dto.gauges.put("cache.hit_ratio", 0.25);
+        dto.timers = new TreeMap<>();
+        TimerDTO t = new TimerDTO();
+        t.count = 3;
+        t.totalMillis = 60;
+        t.maxMillis = 40;
+        t.lastMillis = 5;
+        dto.timers.put("phase.resolve", t);
+        return dto;
+    }
+
+    private static String get(int port, String path) throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static PrometheusEndpoint.Config config(String path) {
+        return new PrometheusEndpoint.Config() {
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return PrometheusEndpoint.Config.class;
+            }
+
+            @Override
+            public String host() {
+                return "127.0.0.1";
+            }
+
+            @Override
+            public int port() {
+                return 0;
+            }
+
+            @Override
+            public String path() {
+                return path;
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.management.impl;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.osgi.resource.CapReqBuilder;
+import aQute.bnd.osgi.resource.ResourceBuilder;
+
+public class ResolutionSharesTest {
+
+    @Test
+    public void testInstalledBehaviourHasEmptyShare() throws Exception {
+        // the installed behaviour and its library are not in the resolution,
+        // the new behaviour and the library it needs are
+        Resource fresh = resource("fresh", "(osgi.wiring.package=p)");
+        Resource lib = resource("lib", null, "p");
+        List<Resource> resolution = Arrays.asList(fresh, lib);
+
+        Map<String, List<Requirement>> roots = new LinkedHashMap<>();
+        roots.put("installed", singletonList(identity("installed")));
+        roots.put("new", singletonList(identity("fresh")));
+
+        Map<String, Set<Resource>> shares = ResolutionShares.shares(resolution, roots);
+
+        assertTrue(shares.get("installed").isEmpty());
+        assertEquals(new LinkedHashSet<>(resolution), shares.get("new"));
+    }
+
+    @Test
+    public void testSharedDependencyInEachShare() throws Exception {
+        Resource a = resource("a", "(osgi.wiring.package=p)");
+        Resource b = resource("b", "(osgi.wiring.package=p)");
+        Resource lib = resource("lib", null, "p");
+        Resource stray = resource("stray", null);
+        List<Resource> resolution = Arrays.asList(a, b, lib, stray);
+
+        Map<String, List<Requirement>> roots = new LinkedHashMap<>();
+        roots.put("a", singletonList(identity("a")));
+        roots.put("b", singletonList(identity("b")));
+
+        Map<String, Set<Resource>> shares = ResolutionShares.shares(resolution, roots);
+
+        // a resource that can't be traced to a request is in no share
+        assertEquals(new LinkedHashSet<>(Arrays.asList(a, lib)), shares.get("a"));
+        assertEquals(new LinkedHashSet<>(Arrays.asList(b, lib)), shares.get("b"));
+    }
+
+    private static Requirement identity(String name) throws Exception {
+        return new CapReqBuilder("osgi.identity")
+                .addDirective("filter", "(osgi.identity=" + name + ")")
+                .buildSyntheticRequirement();
+    }
+
+    private static Resource resource(String name, String requires, String... exports) throws Exception {
+        ResourceBuilder rb = new ResourceBuilder();
+        rb.addCapability(new CapReqBuilder("osgi.identity").addAttribute("osgi.identity", name));
+        for (String p : exports) {
+            rb.addCapability(new CapReqBuilder("osgi.wiring.package").addAttribute("osgi.wiring.package", p));
+        }
+        if (requires != null) {
+            rb.addRequirement(new CapReqBuilder("osgi.wiring.package").addDirective("filter", requires));
+        }
+        return rb.build();
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.osgi.util.promise.Promise;
+
+import com.paremus.brain.iot.management.api.RolloutResultDTO;
+
+public class RolloutTest {
+
+    private final List<String> sent = new ArrayList<>();
+
+    private final Rollout.Sender sender = node -> {
+        sent.add(node);
+        return "install:" + node;
+    };
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        Rollout rollout = new Rollout("bsn", "1.0.0", Arrays.asList("a", "b", "c"), 2, 0, 0, 60000, sender);
+        Promise<RolloutResultDTO> p = rollout.start();
+
+        assertEquals(Arrays.asList("a", "b"), sent);
+
+        rollout.completed("install:b", true, null);
+        assertEquals(Arrays.asList("a", "b", "c"), sent);
+        assertFalse(p.isDone());
+
+        rollout.completed("install:a", true, null);
+        rollout.completed("install:c", false, "broken");
+        assertFalse(rollout.completed("install:c", true, null));
+
+        RolloutResultDTO result = p.getValue();
+        assertEquals(Arrays.asList("b", "a"), result.succeeded);
+        assertEquals(Collections.singletonMap("c", "broken"), result.failed);
+        assertFalse(result.aborted);
+    }
+
+    @Test
+    public void testWaves() throws Exception {
+        Rollout rollout = new Rollout("bsn", "1.0.0", Arrays.asList("a", "b", "c", "d"), 0, 2, 0, 60000, sender);
+        Promise<RolloutResultDTO> p = rollout.start();
+
+        assertEquals(Arrays.asList("a", "b"), sent);
+
+        // the next wave waits for the whole of this one
+        rollout.completed("install:a", true, null);
+        assertEquals(2, sent.size());
+
+        rollout.completed("install:b", true, null);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), sent);
+
+        rollout.completed("install:c", true, null);
+        rollout.completed("install:d", true, null);
+        assertEquals(4, p.getValue().succeeded.size());
+    }
+
+    @Test
+    public void testFailureThresholdAborts() throws Exception {
+        Rollout rollout = new Rollout("bsn", "1.0.0", Arrays.asList("a", "b", "c", "d"), 2, 0, 1, 60000, sender);
+        Promise<RolloutResultDTO> p = rollout.start();
+
+        rollout.completed("install:a", false, "broken");
+        // b is still installing, c and d are never sent
+        assertFalse(p.isDone());
+        assertEquals(Arrays.asList("a", "b"), sent);
+
+        rollout.completed("install:b", true, null);
+
+        RolloutResultDTO result = p.getValue();
+        assertTrue(result.aborted);
+        assertEquals(Arrays.asList("b"), result.succeeded);
+        assertEquals(Arrays.asList("c", "d"), result.skipped);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        Rollout rollout = new Rollout("bsn", "1.0.0", Arrays.asList("a"), 1, 0, 0, 0, sender);
+        Promise<RolloutResultDTO> p = rollout.start();
+
+        assertEquals(Arrays.asList("install:a"), rollout.expire(Long.MAX_VALUE));
+        assertTrue(p.getValue().failed.containsKey("a"));
+    }
+}
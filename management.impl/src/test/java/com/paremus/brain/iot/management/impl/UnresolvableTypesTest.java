@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.management.impl;
+
+import static eu.brain.iot.behaviour.namespace.SmartBehaviourNamespace.SMART_BEHAVIOUR_NAMESPACE;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.osgi.resource.CapReqBuilder;
+import aQute.bnd.osgi.resource.ResourceBuilder;
+
+public class UnresolvableTypesTest {
+
+    private final UnresolvableTypes types = new UnresolvableTypes();
+
+    @Test
+    public void testIgnoredUntilTtlExpires() {
+        assertTrue(types.add("a", 1000, 500));
+        assertTrue(types.contains("a", 1499));
+        assertFalse(types.add("a", 1499, 500));
+
+        assertFalse(types.contains("a", 1500));
+        assertTrue(types.add("a", 1500, 500));
+        assertTrue(types.contains("a", 1999));
+
+        types.purge(2000);
+        assertEquals(0, types.size());
+    }
+
+    @Test
+    public void testAddedBehaviourForgetsConsumedTypes() throws Exception {
+        types.add("a", 1000, 500);
+        types.add("b", 1000, 500);
+        types.add("c", 1000, 500);
+
+        types.added(singletonList(behaviour("a", "c")));
+        assertFalse(types.contains("a", 1000));
+        assertTrue(types.contains("b", 1000));
+        assertFalse(types.contains("c", 1000));
+
+        types.clear();
+        assertFalse(types.contains("b", 1000));
+    }
+
+    @Test
+    public void testOnlyOneThreadStartsAWindow() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 100; round++) {
+                String eventType = "type" + round;
+                CountDownLatch start = new CountDownLatch(1);
+                AtomicInteger alerts = new AtomicInteger();
+                Future<?>[] futures = new Future<?>[threads];
+                for (int i = 0; i < threads; i++) {
+                    futures[i] = executor.submit(() -> {
+                        start.await();
+                        if (types.add(eventType, 1000, 500)) {
+                            alerts.incrementAndGet();
+                        }
+                        return null;
+                    });
+                }
+                start.countDown();
+                for (Future<?> f : futures) {
+                    f.get(5, TimeUnit.SECONDS);
+                }
+                assertEquals(eventType, 1, alerts.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Resource behaviour(String... consumed) throws Exception {
+        ResourceBuilder rb = new ResourceBuilder();
+        rb.addCapability(new CapReqBuilder("osgi.identity").addAttribute("osgi.identity", "behaviour"));
+        rb.addCapability(new CapReqBuilder(SMART_BEHAVIOUR_NAMESPACE).addAttribute("consumed", Arrays.asList(consumed)));
+        return rb.build();
+    }
+}
@@ -28,10 +28,17 @@ import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.repository.Repository;
 import org.osgi.service.resolver.Resolver;
 
+import com.paremus.brain.iot.resolver.index.CompactRepository;
+import com.paremus.brain.iot.resolver.metrics.MetricsRecorder;
+
 import eu.brain.iot.installer.api.InstallResolver;
+import eu.brain.iot.installer.api.MetricsDTO;
+import eu.brain.iot.installer.api.MetricsProvider;
+
+@Component(property = MetricsProvider.SOURCE + "=resolver")
+public class ResolverImpl implements InstallResolver, MetricsProvider {
 
-@Component
-public class ResolverImpl implements InstallResolver {
+    private final MetricsRecorder metrics = new MetricsRecorder("resolver");
 
     private BundleContext bundleContext;
 
@@ -61,7 +68,16 @@ public class ResolverImpl implements InstallResolver {
     public Map<Resource, String> resolve(String name, List<? extends Repository> repositories, Collection<Requirement> requirements, Map<Resource, Wiring> wiringMap) throws Exception {
     	ResolverContext context = new ResolverContext(bundleContext, name, repositories, 
     			new ArrayList<>(requirements), wiringMap);
-    	Map<Resource, List<Wire>> resolved = frameworkResolver.resolve(context);
+    	long start = System.nanoTime();
+    	Map<Resource, List<Wire>> resolved;
+    	try {
+    		resolved = frameworkResolver.resolve(context);
+    	} catch (Exception e) {
+    		metrics.increment("resolve.failures");
+    		throw e;
+    	} finally {
+    		metrics.stop("resolve", start);
+    	}
     	
     	final Map<Resource, String> result = new IdentityHashMap<>();
     	
@@ -72,6 +88,20 @@ public class ResolverImpl implements InstallResolver {
     			result.put(resource, context.getLocation(resource));
     		}
     	}
+    	metrics.add("resolve.resources", result.size());
     	return result;
     }
+
+    /**
+     * The resolve metrics, with the load and cache metrics of the indexes
+     */
+    @Override
+    public MetricsDTO getMetrics() {
+    	MetricsDTO dto = metrics.snapshot();
+    	MetricsDTO index = CompactRepository.getMetrics();
+    	dto.counters.putAll(index.counters);
+    	dto.gauges.putAll(index.gauges);
+    	dto.timers.putAll(index.timers);
+    	return dto;
+    }
 }
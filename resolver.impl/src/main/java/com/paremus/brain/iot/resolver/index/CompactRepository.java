@@ -0,0 +1,651 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+import static org.osgi.framework.namespace.IdentityNamespace.IDENTITY_NAMESPACE;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import com.paremus.brain.iot.resolver.metrics.MetricsRecorder;
+
+import aQute.bnd.http.HttpClient;
+import aQute.bnd.osgi.repository.BaseRepository;
+import eu.brain.iot.installer.api.MetricsDTO;
+
+/**
+ * A {@link org.osgi.service.repository.Repository} over one or more OSGi
+ * repository XML indexes, for use in place of bnd's <code>OSGiRepository</code>.
+ * <p>
+ * The indexes are fetched through the HTTP cache and stream parsed the first
+ * time the repository is queried. Their capabilities and requirements are
+ * held in columns by namespace, and the {@link org.osgi.resource.Resource}
+ * and {@link Capability} objects returned are lightweight views over them.
+ * Relative content URLs are made absolute against the index location.
+ * <p>
+ * If a snapshot directory is given, the parsed indexes are saved there as an
+ * {@link IndexSnapshot}, keyed by the index locations and the digest of their
+ * content, and later loads of the same content read the snapshot instead of
+ * the XML.
+ * <p>
+ * Repositories loading the same index content, such as the installer's and
+ * the management service's copies of the marketplace indexes, share one
+ * store for as long as any of them uses it. Values repeated across
+ * different indexes are shared through the {@link Interner}.
+ * <p>
+ * A repository over a single index also follows the {@link DeltaFeed} next
+ * to the index, if there is one. The feed is applied when the index is
+ * loaded, and {@link #update()} applies newer records as a new repository
+ * which shares the unchanged resources with this one.
+ */
+public class CompactRepository extends BaseRepository implements Closeable {
+
+    /**
+     * How long a cached copy of an index is used without checking with the server
+     */
+    public static final long DEFAULT_MAX_STALE = TimeUnit.DAYS.toMillis(365);
+
+    // the stores in use, by index locations and content digests
+    private static final Map<String, WeakReference<IndexStore>> LOADED = new HashMap<>();
+
+    // the load and cache metrics of every repository
+    private static final MetricsRecorder METRICS = new MetricsRecorder("index");
+
+    static {
+        METRICS.ratio("index.cache.hit_ratio", "index.cache.hits", "index.cache.misses");
+        METRICS.gauge("index.stores", () -> {
+            synchronized (LOADED) {
+                return LOADED.values().stream().filter(ref -> ref.get() != null).count();
+            }
+        });
+        METRICS.gauge("index.interned", Interner.SHARED::size);
+    }
+
+    private final String name;
+    private final List<URI> indexes;
+    private final HttpClient client;
+    private final File cache;
+    private final File snapshots;
+    private final long maxStale;
+
+    // the copy this one was derived from by a delta feed, and the changes made
+    private final WeakReference<CompactRepository> parent;
+    private final List<Resource> added;
+    private final List<Resource> removed;
+
+    private volatile State state;
+    private boolean closed;
+
+    /**
+     * The stores making up the repository: the indexes as loaded, then the
+     * resources added by each delta feed applied since
+     */
+    private static final class State {
+        final IndexStore[] segments;
+        // per segment, the resources which are not part of the repository
+        final BitSet[] masks;
+        // the increment reached, or -1 if delta feeds can't be followed
+        final long generation;
+        final boolean followed;
+
+        State(IndexStore[] segments, BitSet[] masks, long generation, boolean followed) {
+            this.segments = segments;
+            this.masks = masks;
+            this.generation = generation;
+            this.followed = followed;
+        }
+
+        int size() {
+            int size = 0;
+            for (int i = 0; i < segments.length; i++) {
+                size += segments[i].size() - masks[i].cardinality();
+            }
+            return size;
+        }
+
+        /**
+         * @return the state with the feed applied, or <code>null</code> if
+         *         the feed starts after this state's generation
+         */
+        State apply(DeltaFeed feed, List<Resource> added, List<Resource> removed) {
+            if (generation < 0 || feed.base > generation) {
+                return null;
+            }
+
+            int n = segments.length;
+            IndexStore[] segs = Arrays.copyOf(segments, n + 1);
+            segs[n] = feed.added;
+            BitSet[] next = new BitSet[n + 1];
+            for (int i = 0; i < n; i++) {
+                next[i] = (BitSet) masks[i].clone();
+            }
+            // the feed's resources join the repository as their records are applied
+            next[n] = new BitSet();
+            next[n].set(0, feed.added.size());
+
+            for (DeltaFeed.Record r : feed.records) {
+                if (r.increment <= generation) {
+                    continue;
+                }
+                if (r.resource < 0) {
+                    remove(segs, next, n, r.identity, r.version, added, removed);
+                    continue;
+                }
+                Resource resource = feed.added.resource(r.resource);
+                List<Capability> identity = resource.getCapabilities(IDENTITY_NAMESPACE);
+                if (!identity.isEmpty()) {
+                    // adding a resource again replaces it
+                    Map<String, Object> attrs = identity.get(0).getAttributes();
+                    Version version = IndexStore.toVersion(attrs.get(CAPABILITY_VERSION_ATTRIBUTE));
+                    if (version != null) {
+                        remove(segs, next, n, String.valueOf(attrs.get(IDENTITY_NAMESPACE)), version, added,
+                                removed);
+                    }
+                }
+                next[n].clear(r.resource);
+                added.add(resource);
+            }
+            return new State(segs, next, Math.max(generation, feed.increment), true);
+        }
+
+        private static void remove(IndexStore[] segs, BitSet[] masks, int latest, String symbolicName,
+                Version version, List<Resource> added, List<Resource> removed) {
+            for (int i = 0; i < segs.length; i++) {
+                BitSet hits = segs[i].withIdentity(symbolicName, version);
+                hits.andNot(masks[i]);
+                for (int res = hits.nextSetBit(0); res >= 0; res = hits.nextSetBit(res + 1)) {
+                    masks[i].set(res);
+                    Resource resource = segs[i].resource(res);
+                    if (i == latest) {
+                        // added and removed by the same feed
+                        added.remove(resource);
+                    } else {
+                        removed.add(resource);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name the name of the repository, for diagnostics
+     * @param indexes the index locations
+     * @param client the client used to fetch remote indexes
+     * @param cache the directory in which remote indexes are cached
+     * @param maxStale how long, in milliseconds, a cached index may be used
+     *        before it is revalidated with the server
+     */
+    public CompactRepository(String name, List<URI> indexes, HttpClient client, File cache, long maxStale) {
+        this(name, indexes, client, cache, null, maxStale);
+    }
+
+    /**
+     * @param name the name of the repository, for diagnostics
+     * @param indexes the index locations
+     * @param client the client used to fetch remote indexes
+     * @param cache the directory in which remote indexes are cached
+     * @param snapshots the directory in which parsed indexes are saved, or
+     *        <code>null</code> to always parse the XML
+     * @param maxStale how long, in milliseconds, a cached index may be used
+     *        before it is revalidated with the server
+     */
+    public CompactRepository(String name, List<URI> indexes, HttpClient client, File cache, File snapshots,
+            long maxStale) {
+        this.name = name;
+        this.indexes = new ArrayList<>(indexes);
+        this.client = client;
+        this.cache = cache;
+        this.snapshots = snapshots;
+        this.maxStale = maxStale;
+        this.parent = null;
+        this.added = Collections.emptyList();
+        this.removed = Collections.emptyList();
+    }
+
+    private CompactRepository(CompactRepository parent, State state, List<Resource> added, List<Resource> removed) {
+        this.name = parent.name;
+        this.indexes = parent.indexes;
+        this.client = parent.client;
+        this.cache = parent.cache;
+        this.snapshots = parent.snapshots;
+        this.maxStale = parent.maxStale;
+        this.parent = new WeakReference<>(parent);
+        this.added = added;
+        this.removed = removed;
+        this.state = state;
+    }
+
+    @Override
+    public Map<Requirement, Collection<Capability>> findProviders(Collection<? extends Requirement> requirements) {
+        State s = state();
+        Map<Requirement, Collection<Capability>> result = new HashMap<>();
+        for (Requirement req : requirements) {
+            if (s.segments.length == 1) {
+                result.put(req, s.segments[0].findProviders(req, s.masks[0]));
+                continue;
+            }
+            List<Capability> caps = new ArrayList<>();
+            for (int i = 0; i < s.segments.length; i++) {
+                caps.addAll(s.segments[i].findProviders(req, s.masks[i]));
+            }
+            result.put(req, caps);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of resources in the indexes, loading them if necessary
+     */
+    public int size() {
+        return state().size();
+    }
+
+    /**
+     * @return the stores the repository is reading, loading them if necessary
+     */
+    IndexStore[] segments() {
+        return state().segments.clone();
+    }
+
+    /**
+     * @param resource a resource
+     * @return <code>true</code> if the resource was found in this repository
+     */
+    public boolean provides(Resource resource) {
+        State s = state;
+        if (s != null) {
+            for (int i = 0; i < s.segments.length; i++) {
+                int res = s.segments[i].indexOf(resource);
+                if (res >= 0) {
+                    return !s.masks[i].get(res);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the <code>increment</code> of the index, including any delta
+     *         feed applied, or -1 if the index has none or the repository
+     *         holds several indexes
+     */
+    public long getGeneration() {
+        return state().generation;
+    }
+
+    /**
+     * @return <code>true</code> if the index had a delta feed when it was
+     *         loaded or last updated
+     */
+    public boolean hasDeltaFeed() {
+        return state().followed;
+    }
+
+    /**
+     * Bring the repository up to date with the delta feed of its index.
+     * <p>
+     * If the feed holds nothing newer, or there is no feed, this repository
+     * is returned. If the feed carries on from this repository's generation a
+     * new repository is returned, sharing everything the feed did not change.
+     * If the generation counter has jumped past this repository, or the feed
+     * has gone, the index is fetched again and loaded in full.
+     *
+     * @return the up to date repository, this one is not changed
+     * @throws IllegalStateException if the feed or index can't be read
+     */
+    public CompactRepository update() {
+        State s = state();
+        if (indexes.size() != 1) {
+            return this;
+        }
+
+        DeltaFeed feed;
+        try {
+            feed = readFeed();
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to read the delta feed of " + name + ": " + e.getMessage(), e);
+        }
+
+        if (feed == null) {
+            return s.followed ? reload() : this;
+        }
+        if (feed.increment <= s.generation && feed.base <= s.generation) {
+            return this;
+        }
+
+        List<Resource> add = new ArrayList<>();
+        List<Resource> remove = new ArrayList<>();
+        State next = s.apply(feed, add, remove);
+        if (next == null) {
+            return reload();
+        }
+        METRICS.increment("index.delta.applied");
+        return new CompactRepository(this, next, add, remove);
+    }
+
+    /**
+     * @param earlier an earlier copy of this repository
+     * @return the resources added and removed since the earlier copy, or
+     *         <code>null</code> if this repository was not derived from it
+     *         by delta feeds
+     */
+    public ResourceChanges changesSince(CompactRepository earlier) {
+        Deque<CompactRepository> steps = new ArrayDeque<>();
+        for (CompactRepository r = this; r != earlier; r = r.parent == null ? null : r.parent.get()) {
+            if (r == null) {
+                return null;
+            }
+            steps.push(r);
+        }
+
+        Set<Resource> add = new LinkedHashSet<>();
+        Set<Resource> remove = new LinkedHashSet<>();
+        for (CompactRepository step : steps) {
+            for (Resource r : step.removed) {
+                if (!add.remove(r)) {
+                    remove.add(r);
+                }
+            }
+            add.addAll(step.added);
+        }
+        return new ResourceChanges(new ArrayList<>(add), new ArrayList<>(remove));
+    }
+
+    /**
+     * The location of the delta feed of an index
+     *
+     * @param index the index location
+     * @return the location with <code>.delta</code> appended
+     */
+    public static URI deltaFeedFor(URI index) {
+        return URI.create(index.toString() + ".delta");
+    }
+
+    /**
+     * The metrics of every repository in this framework: how often a load
+     * was served from a store already in use or a saved snapshot rather
+     * than parsed, how long loads and parses took, and how many delta feeds
+     * were applied.
+     *
+     * @return a snapshot of the index metrics
+     */
+    public static MetricsDTO getMetrics() {
+        return METRICS.snapshot();
+    }
+
+    /**
+     * Release the parsed indexes, the repository can't be used afterwards
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        state = null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private State state() {
+        State s = state;
+        if (s == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The repository " + name + " is closed");
+                }
+                s = state;
+                if (s == null) {
+                    try {
+                        s = load();
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Unable to load " + name + ": " + e.getMessage(), e);
+                    }
+                    state = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    private CompactRepository reload() {
+        METRICS.increment("index.reloads");
+        CompactRepository repo = new CompactRepository(name, indexes, client, cache, snapshots, 0);
+        repo.state();
+        return repo;
+    }
+
+    private State load() throws Exception {
+        IndexStore store = loadStore(maxStale);
+        if (indexes.size() != 1) {
+            return new State(new IndexStore[] { store }, new BitSet[] { new BitSet() }, -1, false);
+        }
+
+        DeltaFeed feed;
+        try {
+            feed = readFeed();
+        } catch (Exception e) {
+            // The index on its own is an older but consistent copy, update will try again
+            feed = null;
+        }
+        if (feed != null && feed.base > store.generation && maxStale > 0) {
+            // The cached copy of the index is older than the feed
+            store = loadStore(0);
+        }
+
+        State s = new State(new IndexStore[] { store }, new BitSet[] { new BitSet() }, store.generation, feed != null);
+        if (feed != null) {
+            State applied = s.apply(feed, new ArrayList<>(), new ArrayList<>());
+            if (applied != null) {
+                return applied;
+            }
+        }
+        return s;
+    }
+
+    private IndexStore loadStore(long maxStale) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return readStore(maxStale);
+        } finally {
+            METRICS.stop("index.load", start);
+        }
+    }
+
+    private IndexStore readStore(long maxStale) throws Exception {
+        List<File> files = new ArrayList<>(indexes.size());
+        for (URI index : indexes) {
+            files.add(fetch(index, maxStale));
+        }
+
+        List<String> keys = new ArrayList<>(indexes.size());
+        StringBuilder locations = new StringBuilder();
+        for (int i = 0; i < indexes.size(); i++) {
+            keys.add(indexes.get(i) + "#" + hex(digest(files.get(i))));
+            locations.append(indexes.get(i)).append('\n');
+        }
+
+        String key = String.join("\n", keys);
+        IndexStore loaded = loaded(key);
+        if (loaded != null) {
+            METRICS.increment("index.store.hits");
+            METRICS.increment("index.cache.hits");
+            return loaded;
+        }
+
+        File snapshot = null;
+        if (snapshots != null) {
+            snapshot = new File(snapshots, "index-" + hex(digest(locations.toString())) + ".snapshot");
+
+            IndexStore saved = IndexSnapshot.read(snapshot, keys);
+            if (saved != null) {
+                METRICS.increment("index.snapshot.hits");
+                METRICS.increment("index.cache.hits");
+                return remember(key, saved);
+            }
+        }
+
+        METRICS.increment("index.cache.misses");
+        long parse = System.nanoTime();
+        IndexStore.Builder builder = new IndexStore.Builder();
+        IndexParser parser = new IndexParser(builder);
+        for (int i = 0; i < indexes.size(); i++) {
+            try (InputStream in = open(files.get(i))) {
+                parser.parse(in, indexes.get(i));
+            }
+        }
+        IndexStore store = builder.build();
+        METRICS.stop("index.parse", parse);
+
+        if (snapshot != null) {
+            try {
+                IndexSnapshot.write(store, keys, snapshot);
+            } catch (IOException e) {
+                // The indexes will be parsed again next time
+                snapshot.delete();
+            }
+        }
+        return remember(key, store);
+    }
+
+    /**
+     * Forget the stores in use, so that the next loads read the snapshot or the XML
+     */
+    static void forgetLoaded() {
+        synchronized (LOADED) {
+            LOADED.clear();
+        }
+    }
+
+    /**
+     * @return the store already loaded from the same index content, if it is still in use
+     */
+    private static IndexStore loaded(String key) {
+        synchronized (LOADED) {
+            WeakReference<IndexStore> ref = LOADED.get(key);
+            return ref == null ? null : ref.get();
+        }
+    }
+
+    private static IndexStore remember(String key, IndexStore store) {
+        synchronized (LOADED) {
+            LOADED.values().removeIf(ref -> ref.get() == null);
+            WeakReference<IndexStore> ref = LOADED.get(key);
+            IndexStore existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                // loaded concurrently
+                return existing;
+            }
+            LOADED.put(key, new WeakReference<>(store));
+            return store;
+        }
+    }
+
+    /**
+     * @return the delta feed of the index, always checked with the server,
+     *         or <code>null</code> if there is none
+     */
+    private DeltaFeed readFeed() throws Exception {
+        URI index = indexes.get(0);
+        URI location = deltaFeedFor(index);
+        File file;
+        if ("file".equals(location.getScheme())) {
+            file = new File(location);
+        } else {
+            cache.mkdirs();
+            file = client.build().useCache(new File(cache, "delta-" + hex(digest(location.toString())) + ".xml"), 0)
+                    .go(location);
+        }
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try (InputStream in = open(file)) {
+            return DeltaFeed.read(in, index);
+        }
+    }
+
+    private File fetch(URI index, long maxStale) throws Exception {
+        File file;
+        if ("file".equals(index.getScheme())) {
+            file = new File(index);
+        } else {
+            cache.mkdirs();
+            file = client.build().useCache(new File(cache, "index-" + hex(digest(index.toString())) + ".xml"), maxStale)
+                    .go(index);
+        }
+        if (file == null || !file.isFile()) {
+            throw new FileNotFoundException("No index at " + index);
+        }
+        return file;
+    }
+
+    private static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(in) : in;
+    }
+
+    private static byte[] digest(String s) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] digest(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), md)) {
+            byte[] buf = new byte[8192];
+            while (in.read(buf) >= 0) {
+                // just digesting
+            }
+        }
+        return md.digest();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
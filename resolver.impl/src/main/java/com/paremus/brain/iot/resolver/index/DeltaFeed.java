@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.index;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.osgi.framework.Version;
+
+/**
+ * The changes published for an index since one of its generations.
+ * <p>
+ * A delta feed sits next to its index, at the index location with
+ * <code>.delta</code> appended, and holds add and remove records:
+ *
+ * <pre>
+ * &lt;delta xmlns="http://www.osgi.org/xmlns/repository/v1.0.0" base="41" increment="43"&gt;
+ *   &lt;add increment="42"&gt;&lt;resource&gt;...&lt;/resource&gt;&lt;/add&gt;
+ *   &lt;remove increment="43" identity="com.example.foo" version="1.0.0"/&gt;
+ * &lt;/delta&gt;
+ * </pre>
+ *
+ * The records are applied in order, skipping those a copy of the index
+ * already holds. <code>base</code> is the <code>increment</code> of the
+ * index the feed starts from, so a copy older than that has missed changes
+ * and must be loaded again in full.
+ */
+final class DeltaFeed {
+
+    static final class Record {
+        final long increment;
+        // the added resource in the feed's store, or -1 for a removal
+        final int resource;
+        final String identity;
+        final Version version;
+
+        Record(long increment, int resource, String identity, Version version) {
+            this.increment = increment;
+            this.resource = resource;
+            this.identity = identity;
+            this.version = version;
+        }
+    }
+
+    long base = -1;
+    long increment = -1;
+    final List<Record> records = new ArrayList<>();
+    // the resources added by the records
+    IndexStore added;
+
+    private int resources;
+
+    /**
+     * @param in the feed content
+     * @param index the location of the index, against which relative content URLs are resolved
+     */
+    static DeltaFeed read(InputStream in, URI index) throws XMLStreamException {
+        DeltaFeed feed = new DeltaFeed();
+        IndexStore.Builder builder = new IndexStore.Builder();
+        new IndexParser(builder, feed).parse(in, index);
+        feed.added = builder.build();
+        return feed;
+    }
+
+    void start(long base, long increment) {
+        this.base = base;
+        this.increment = increment;
+    }
+
+    /**
+     * A resource was read from an add record
+     */
+    void added(long increment) {
+        records.add(new Record(increment < 0 ? this.increment : increment, resources++, null, null));
+    }
+
+    void removed(long increment, String identity, String version) {
+        if (identity != null) {
+            records.add(new Record(increment < 0 ? this.increment : increment, -1, identity,
+                    Version.parseVersion(version == null ? null : version.trim())));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.osgi.repository.BaseRepository;
+
+/**
+ * A {@link org.osgi.service.repository.Repository} over several indexes,
+ * each loaded separately by an {@link IndexFederation}.
+ * <p>
+ * The indexes are loaded concurrently the first time the repository is
+ * queried. Providers are returned in index order, and {@link #originOf(Resource)}
+ * tells which index a resource came from.
+ */
+public class FederatedRepository extends BaseRepository implements Closeable {
+
+    private final IndexFederation federation;
+    private final String name;
+    private final List<URI> indexes;
+    private final boolean revalidate;
+
+    // index -> the repository serving it, in index order
+    private Map<URI, CompactRepository> members;
+    private boolean closed;
+
+    FederatedRepository(IndexFederation federation, String name, List<URI> indexes, boolean revalidate) {
+        this.federation = federation;
+        this.name = name;
+        this.indexes = new ArrayList<>(indexes);
+        this.revalidate = revalidate;
+    }
+
+    @Override
+    public Map<Requirement, Collection<Capability>> findProviders(Collection<? extends Requirement> requirements) {
+        Collection<CompactRepository> repos = members().values();
+        Map<Requirement, Collection<Capability>> result = new LinkedHashMap<>();
+        for (Requirement req : requirements) {
+            List<Capability> caps = new ArrayList<>();
+            for (CompactRepository repo : repos) {
+                caps.addAll(repo.findProviders(Collections.singleton(req)).get(req));
+            }
+            result.put(req, caps);
+        }
+        return result;
+    }
+
+    /**
+     * @param resource a resource returned by this repository
+     * @return the index the resource came from, or <code>null</code> if it
+     *         did not come from this repository
+     */
+    public URI originOf(Resource resource) {
+        for (Map.Entry<URI, CompactRepository> e : members().entrySet()) {
+            if (e.getValue().provides(resource)) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param earlier an earlier repository over the same indexes, from the same federation
+     * @return the resources added and removed by delta feeds since the
+     *         earlier repository, or <code>null</code> if any index was
+     *         loaded again in full, or the earlier repository was never
+     *         loaded or has been closed
+     */
+    public ResourceChanges changesSince(FederatedRepository earlier) {
+        Map<URI, CompactRepository> before = earlier.loaded();
+        Map<URI, CompactRepository> now = members();
+        if (before == null || !new ArrayList<>(before.keySet()).equals(new ArrayList<>(now.keySet()))) {
+            return null;
+        }
+
+        List<Resource> added = new ArrayList<>();
+        List<Resource> removed = new ArrayList<>();
+        for (Map.Entry<URI, CompactRepository> e : now.entrySet()) {
+            ResourceChanges changes = e.getValue().changesSince(before.get(e.getKey()));
+            if (changes == null) {
+                return null;
+            }
+            added.addAll(changes.getAdded());
+            removed.addAll(changes.getRemoved());
+        }
+        return new ResourceChanges(added, removed);
+    }
+
+    /**
+     * @return the indexes being served, which leaves out any index that
+     *         could not be loaded and has no earlier copy
+     */
+    public List<URI> getIndexes() {
+        return new ArrayList<>(members().keySet());
+    }
+
+    /**
+     * The indexes themselves are shared with later repositories from the same
+     * federation, so closing only stops this repository from being used
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        members = null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private synchronized Map<URI, CompactRepository> loaded() {
+        return members;
+    }
+
+    private synchronized Map<URI, CompactRepository> members() {
+        if (closed) {
+            throw new IllegalStateException("The repository " + name + " is closed");
+        }
+        if (members == null) {
+            members = federation.load(name, indexes, revalidate);
+        }
+        return members;
+    }
+}
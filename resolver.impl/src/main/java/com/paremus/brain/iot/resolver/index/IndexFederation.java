@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.osgi.util.promise.Promise;
+import org.osgi.util.promise.PromiseFactory;
+
+import aQute.bnd.http.HttpClient;
+
+/**
+ * Loads indexes one {@link CompactRepository} per index, concurrently, and
+ * keeps the {@link IndexHealth} of each index across loads.
+ * <p>
+ * An index that fails to load is served from the last copy that loaded
+ * successfully. One that keeps failing has its circuit breaker opened, and
+ * is not fetched again until the retry interval has passed. An index that
+ * has already loaded is reused by later loads unless they ask for the
+ * indexes to be revalidated. Revalidating an index with a delta feed
+ * applies the feed to the loaded copy, and only loads the index again in
+ * full if the feed's generation counter has jumped past the copy.
+ */
+public class IndexFederation {
+
+    private final HttpClient client;
+    private final File cache;
+    private final File snapshots;
+    private final PromiseFactory promiseFactory;
+    private final int failureThreshold;
+    private final long retryInterval;
+    private final LongSupplier clock;
+
+    private final Map<URI, IndexHealth> health = new ConcurrentHashMap<>();
+
+    /**
+     * @param client the client used to fetch remote indexes
+     * @param cache the directory in which remote indexes are cached
+     * @param snapshots the directory in which parsed indexes are saved, or <code>null</code>
+     * @param executor the executor on which indexes are loaded
+     * @param failureThreshold the number of consecutive failures which open an index's circuit breaker
+     * @param retryInterval the time in milliseconds before an open circuit breaker lets a load through
+     */
+    public IndexFederation(HttpClient client, File cache, File snapshots, Executor executor,
+            int failureThreshold, long retryInterval) {
+        this(client, cache, snapshots, executor, failureThreshold, retryInterval, System::currentTimeMillis);
+    }
+
+    IndexFederation(HttpClient client, File cache, File snapshots, Executor executor,
+            int failureThreshold, long retryInterval, LongSupplier clock) {
+        this.client = client;
+        this.cache = cache;
+        this.snapshots = snapshots;
+        this.promiseFactory = new PromiseFactory(executor);
+        this.failureThreshold = failureThreshold;
+        this.retryInterval = retryInterval;
+        this.clock = clock;
+    }
+
+    /**
+     * @param name the name of the repository, for diagnostics
+     * @param indexes the index locations
+     * @param revalidate <code>true</code> if the indexes must be fetched
+     *        again and checked with the server, rather than reused
+     * @return a repository over the indexes, loaded when it is first queried
+     */
+    public FederatedRepository repository(String name, List<URI> indexes, boolean revalidate) {
+        return new FederatedRepository(this, name, indexes, revalidate);
+    }
+
+    /**
+     * @return the health of every index loaded so far
+     */
+    public List<IndexHealth> getHealth() {
+        return new ArrayList<>(health.values());
+    }
+
+    /**
+     * Forget the health and the loaded copies of indexes not in the list
+     */
+    public void retain(List<URI> indexes) {
+        health.keySet().retainAll(indexes);
+    }
+
+    Map<URI, CompactRepository> load(String name, List<URI> indexes, boolean revalidate) {
+        List<Promise<CompactRepository>> loads = new ArrayList<>(indexes.size());
+        for (URI index : indexes) {
+            loads.add(promiseFactory.submit(() -> load(name, index, revalidate)));
+        }
+
+        Map<URI, CompactRepository> members = new LinkedHashMap<>();
+        List<String> failures = new ArrayList<>();
+        for (int i = 0; i < indexes.size(); i++) {
+            URI index = indexes.get(i);
+            try {
+                CompactRepository repo = loads.get(i).getValue();
+                if (repo != null) {
+                    members.put(index, repo);
+                } else {
+                    failures.add(index + ": " + health(index).getMessage());
+                }
+            } catch (Exception e) {
+                failures.add(index + ": " + e.getMessage());
+            }
+        }
+
+        if (members.isEmpty() && !indexes.isEmpty()) {
+            throw new IllegalStateException("Unable to load any of the indexes for " + name + " " + failures);
+        }
+        return Collections.unmodifiableMap(members);
+    }
+
+    /**
+     * @return the repository to serve for the index, or <code>null</code> if there is none
+     */
+    private CompactRepository load(String name, URI index, boolean revalidate) {
+        IndexHealth h = health(index);
+        CompactRepository good = h.lastGood();
+
+        long now = clock.getAsLong();
+        if (!h.allowAttempt(now) || (good != null && !revalidate)) {
+            return good;
+        }
+
+        long start = System.nanoTime();
+        CompactRepository repo;
+        try {
+            if (good != null && good.hasDeltaFeed()) {
+                repo = good.update();
+            } else {
+                repo = new CompactRepository(name + " (" + index + ")", Collections.singletonList(index),
+                        client, cache, snapshots, revalidate ? 0 : CompactRepository.DEFAULT_MAX_STALE);
+                repo.size();
+            }
+        } catch (RuntimeException e) {
+            h.failed(e.getCause() == null ? e.getMessage() : e.getCause().toString(), clock.getAsLong());
+            return good;
+        }
+        h.succeeded(repo, clock.getAsLong(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return repo;
+    }
+
+    private IndexHealth health(URI index) {
+        return health.computeIfAbsent(index, i -> new IndexHealth(i, failureThreshold, retryInterval));
+    }
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import java.net.URI;
+
+/**
+ * The health of one index, with a circuit breaker over its loads.
+ * <p>
+ * After <code>failureThreshold</code> consecutive failed loads the breaker
+ * opens and the index is not fetched again until the retry interval has
+ * passed. Meanwhile the last copy that loaded successfully, if any, keeps
+ * being served.
+ */
+public final class IndexHealth {
+
+    public enum State {
+        /**
+         * the last load succeeded
+         */
+        HEALTHY,
+
+        /**
+         * recent loads failed, but fewer than the failure threshold
+         */
+        FAILING,
+
+        /**
+         * the failure threshold was reached, the index is not being fetched
+         */
+        OPEN;
+    }
+
+    private final URI index;
+    private final int failureThreshold;
+    private final long retryInterval;
+
+    private int failures;
+    private long openUntil;
+    private long lastSuccess;
+    private long lastFailure;
+    private long latency;
+    private String message;
+    private CompactRepository lastGood;
+
+    IndexHealth(URI index, int failureThreshold, long retryInterval) {
+        this.index = index;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.retryInterval = retryInterval;
+    }
+
+    public URI getIndex() {
+        return index;
+    }
+
+    public synchronized State getState(long now) {
+        if (failures == 0) {
+            return State.HEALTHY;
+        }
+        return failures >= failureThreshold && now < openUntil ? State.OPEN : State.FAILING;
+    }
+
+    /**
+     * @return the number of consecutive failed loads
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the time of the last successful load in milliseconds since the epoch, or 0
+     */
+    public synchronized long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    /**
+     * @return the time of the last failed load in milliseconds since the epoch, or 0
+     */
+    public synchronized long getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return the time the last successful load took, in milliseconds
+     */
+    public synchronized long getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the reason for the last failure, or <code>null</code>
+     */
+    public synchronized String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the number of resources in the copy being served, or -1 if there is none
+     */
+    public synchronized int getResources() {
+        return lastGood == null ? -1 : lastGood.size();
+    }
+
+    synchronized boolean allowAttempt(long now) {
+        return failures < failureThreshold || now >= openUntil;
+    }
+
+    synchronized CompactRepository lastGood() {
+        return lastGood;
+    }
+
+    synchronized void succeeded(CompactRepository repository, long now, long latency) {
+        failures = 0;
+        openUntil = 0;
+        lastSuccess = now;
+        this.latency = latency;
+        message = null;
+        lastGood = repository;
+    }
+
+    synchronized void failed(String reason, long now) {
+        failures++;
+        lastFailure = now;
+        message = reason;
+        if (failures >= failureThreshold) {
+            openUntil = now + retryInterval;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return index + " " + getState(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import static org.osgi.service.repository.ContentNamespace.CAPABILITY_URL_ATTRIBUTE;
+import static org.osgi.service.repository.ContentNamespace.CONTENT_NAMESPACE;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.osgi.framework.Version;
+
+/**
+ * Streams the elements of an OSGi repository XML index into an
+ * {@link IndexStore.Builder}, without building a document or any
+ * intermediate objects.
+ * <p>
+ * Attribute keys and values are interned, so that the package names,
+ * versions and namespaces repeated across resources are held once. The
+ * values which also repeat across indexes (namespaces, keys, directives,
+ * versions and lists) go through the shared {@link Interner} as well.
+ * Plain attribute values, mostly unique to their resource, are interned
+ * within the load only, where an entry costs nothing once the load ends.
+ * <p>
+ * The same parser reads {@link DeltaFeed delta feeds}, whose added
+ * resources go into the builder and whose records go into the feed.
+ */
+class IndexParser {
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newFactory();
+
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final IndexStore.Builder builder;
+    private final DeltaFeed feed;
+    private final Interner interner;
+    private final Map<Object, Object> interned = new HashMap<>();
+
+    IndexParser(IndexStore.Builder builder) {
+        this(builder, null, Interner.SHARED);
+    }
+
+    IndexParser(IndexStore.Builder builder, DeltaFeed feed) {
+        this(builder, feed, Interner.SHARED);
+    }
+
+    IndexParser(IndexStore.Builder builder, DeltaFeed feed, Interner interner) {
+        this.builder = builder;
+        this.feed = feed;
+        this.interner = interner;
+    }
+
+    /**
+     * @param in the index content
+     * @param base the location of the index, against which relative content URLs are resolved
+     */
+    void parse(InputStream in, URI base) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            String namespace = null;
+            long added = -1;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamReader.START_ELEMENT:
+                        switch (reader.getLocalName()) {
+                            case "repository":
+                                builder.generation(increment(reader));
+                                break;
+                            case "resource":
+                                builder.startResource();
+                                if (feed != null) {
+                                    feed.added(added);
+                                }
+                                break;
+                            case "capability":
+                                namespace = share(reader.getAttributeValue(null, "namespace"));
+                                builder.startCapability(namespace);
+                                break;
+                            case "requirement":
+                                namespace = share(reader.getAttributeValue(null, "namespace"));
+                                builder.startRequirement(namespace);
+                                break;
+                            case "attribute":
+                                attribute(reader, namespace, base);
+                                break;
+                            case "directive":
+                                directive(reader);
+                                break;
+                            case "delta":
+                                if (feed != null) {
+                                    feed.start(longValue(reader, "base"), increment(reader));
+                                }
+                                break;
+                            case "add":
+                                added = increment(reader);
+                                break;
+                            case "remove":
+                                if (feed != null) {
+                                    feed.removed(increment(reader), reader.getAttributeValue(null, "identity"),
+                                            reader.getAttributeValue(null, "version"));
+                                }
+                                break;
+                            default:
+                                // referral elements carry nothing we use
+                                break;
+                        }
+                        break;
+                    case XMLStreamReader.END_ELEMENT:
+                        switch (reader.getLocalName()) {
+                            case "capability":
+                            case "requirement":
+                                builder.end();
+                                namespace = null;
+                                break;
+                            default:
+                                break;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static long increment(XMLStreamReader reader) {
+        return longValue(reader, "increment");
+    }
+
+    /**
+     * @return the value of a numeric XML attribute, or -1 if it is missing or not a number
+     */
+    private static long longValue(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // treated as missing
+            }
+        }
+        return -1;
+    }
+
+    private void attribute(XMLStreamReader reader, String namespace, URI base) {
+        String name = share(reader.getAttributeValue(null, "name"));
+        String type = reader.getAttributeValue(null, "type");
+        String value = reader.getAttributeValue(null, "value");
+        if (name == null || value == null) {
+            return;
+        }
+
+        if (CONTENT_NAMESPACE.equals(namespace) && CAPABILITY_URL_ATTRIBUTE.equals(name)) {
+            // Bundles are installed from absolute locations
+            builder.attribute(name, base.resolve(value).toString());
+        } else {
+            builder.attribute(name, value(type, value));
+        }
+    }
+
+    private void directive(XMLStreamReader reader) {
+        String name = reader.getAttributeValue(null, "name");
+        String value = reader.getAttributeValue(null, "value");
+        if (name != null && value != null) {
+            builder.directive(share(name), share(value));
+        }
+    }
+
+    private Object value(String type, String value) {
+        if (type == null) {
+            return intern(value);
+        }
+        type = type.trim();
+        if (!type.startsWith("List<") || !type.endsWith(">")) {
+            Object scalar = scalar(type, value);
+            return scalar instanceof Version ? share(scalar) : intern(scalar);
+        }
+
+        String element = type.substring(5, type.length() - 1).trim();
+        List<Object> list = new ArrayList<>();
+        for (String s : split(value)) {
+            list.add(intern(scalar(element, s)));
+        }
+        return share(Collections.unmodifiableList(list));
+    }
+
+    private static Object scalar(String type, String value) {
+        switch (type) {
+            case "Version":
+                return Version.parseVersion(value.trim());
+            case "Long":
+                return Long.valueOf(value.trim());
+            case "Double":
+                return Double.valueOf(value.trim());
+            case "String":
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Split a list value on the commas not escaped with a backslash
+     */
+    static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                sb.append(value.charAt(++i));
+            } else if (c == ',') {
+                parts.add(sb.toString().trim());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        parts.add(sb.toString().trim());
+        return parts;
+    }
+
+    /**
+     * Intern a value within this load
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+        Object existing = interned.putIfAbsent(value, value);
+        return existing == null ? value : (T) existing;
+    }
+
+    /**
+     * Intern a value through the shared table, asking it only once per load
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T share(T value) {
+        if (value == null) {
+            return null;
+        }
+        Object existing = interned.get(value);
+        if (existing == null) {
+            existing = interner.intern(value);
+            interned.put(existing, existing);
+        }
+        return (T) existing;
+    }
+}
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Version;
+
+import com.paremus.brain.iot.resolver.index.IndexStore.Table;
+
+/**
+ * Saves and loads an {@link IndexStore} as a binary file, so that indexes
+ * which have not changed don't need to be parsed again after a restart.
+ * <p>
+ * The file holds a string table and a value table followed by the columns
+ * of every namespace table, written as <code>int</code> arrays of offsets
+ * and table indexes. Loading maps the file and copies the arrays out in
+ * bulk; only the distinct strings are decoded. As when parsing, the
+ * namespaces, keys, directives, versions and lists are canonicalized
+ * through the shared {@link Interner}. The file starts with the
+ * keys (index location and content digest) it was built from, and is
+ * ignored if they no longer match.
+ */
+final class IndexSnapshot {
+
+    private static final int MAGIC = 0x43495832; // CIX2
+
+    private static final byte STRING = 'S';
+    private static final byte VERSION = 'V';
+    private static final byte LONG = 'L';
+    private static final byte DOUBLE = 'D';
+    private static final byte LIST = 'l';
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * @param store the parsed indexes
+     * @param keys the keys identifying the content of the indexes
+     * @param file the snapshot file, replaced atomically
+     */
+    static void write(IndexStore store, List<String> keys, File file) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Map<Object, Integer> values = new LinkedHashMap<>();
+        for (Table t : tables(store)) {
+            intern(strings, t.namespace);
+            for (int i = 0; i < t.attrCount; i++) {
+                intern(strings, t.attrKeys[i]);
+                value(strings, values, t.attrValues[i]);
+            }
+            for (int i = 0; i < t.dirCount; i++) {
+                intern(strings, t.dirKeys[i]);
+                intern(strings, t.dirValues[i]);
+            }
+        }
+
+        File parent = file.getParentFile();
+        parent.mkdirs();
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(keys.size());
+                for (String key : keys) {
+                    writeString(out, key);
+                }
+
+                out.writeInt(strings.size());
+                for (String s : strings.keySet()) {
+                    writeString(out, s);
+                }
+
+                out.writeInt(values.size());
+                for (Object v : values.keySet()) {
+                    writeValue(out, strings, values, v);
+                }
+
+                out.writeInt(store.size());
+                out.writeLong(store.generation);
+                writeTables(out, strings, values, store.capabilities);
+                writeTables(out, strings, values, store.requirements);
+            }
+            Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @param file the snapshot file
+     * @param keys the keys identifying the current content of the indexes
+     * @return the indexes, or <code>null</code> if there is no usable
+     *         snapshot for these keys
+     */
+    static IndexStore read(File file, List<String> keys) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC) {
+                return null;
+            }
+            int count = buf.getInt();
+            List<String> saved = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                saved.add(readString(buf));
+            }
+            if (!saved.equals(keys)) {
+                return null;
+            }
+
+            String[] strings = new String[buf.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(buf);
+            }
+
+            Object[] values = new Object[buf.getInt()];
+            for (int i = 0; i < values.length; i++) {
+                Object v = readValue(buf, strings, values);
+                values[i] = v instanceof Version || v instanceof List ? Interner.SHARED.intern(v) : v;
+            }
+
+            int resources = buf.getInt();
+            long generation = buf.getLong();
+            boolean[] shared = new boolean[strings.length];
+            Map<String, Table> capabilities = readTables(buf, strings, shared, values);
+            Map<String, Table> requirements = readTables(buf, strings, shared, values);
+            return new IndexStore(capabilities, requirements, resources, generation);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Unreadable or truncated, the indexes will be parsed instead
+            return null;
+        }
+    }
+
+    private static List<Table> tables(IndexStore store) {
+        List<Table> tables = new ArrayList<>(store.capabilities.values());
+        tables.addAll(store.requirements.values());
+        return tables;
+    }
+
+    private static int intern(Map<String, Integer> strings, String s) {
+        return strings.computeIfAbsent(s, k -> strings.size());
+    }
+
+    private static int value(Map<String, Integer> strings, Map<Object, Integer> values, Object v) {
+        Integer idx = values.get(v);
+        if (idx == null) {
+            // list elements are written before the list that refers to them
+            if (v instanceof List) {
+                for (Object o : (List<?>) v) {
+                    value(strings, values, o);
+                }
+            } else if (v instanceof Version) {
+                intern(strings, ((Version) v).getQualifier());
+            } else if (!(v instanceof Long) && !(v instanceof Double)) {
+                intern(strings, String.valueOf(v));
+            }
+            idx = values.size();
+            values.put(v, idx);
+        }
+        return idx;
+    }
+
+    private static void writeValue(DataOutputStream out, Map<String, Integer> strings,
+            Map<Object, Integer> values, Object v) throws IOException {
+        if (v instanceof Version) {
+            Version version = (Version) v;
+            out.writeByte(VERSION);
+            out.writeInt(version.getMajor());
+            out.writeInt(version.getMinor());
+            out.writeInt(version.getMicro());
+            out.writeInt(strings.get(version.getQualifier()));
+        } else if (v instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof List) {
+            List<?> list = (List<?>) v;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object o : list) {
+                out.writeInt(values.get(o));
+            }
+        } else {
+            out.writeByte(STRING);
+            out.writeInt(strings.get(String.valueOf(v)));
+        }
+    }
+
+    private static Object readValue(ByteBuffer buf, String[] strings, Object[] values) {
+        byte tag = buf.get();
+        switch (tag) {
+            case VERSION:
+                return new Version(buf.getInt(), buf.getInt(), buf.getInt(), strings[buf.getInt()]);
+            case LONG:
+                return buf.getLong();
+            case DOUBLE:
+                return buf.getDouble();
+            case LIST:
+                Object[] list = new Object[buf.getInt()];
+                for (int i = 0; i < list.length; i++) {
+                    list[i] = values[buf.getInt()];
+                }
+                return Collections.unmodifiableList(Arrays.asList(list));
+            case STRING:
+                return strings[buf.getInt()];
+            default:
+                throw new IllegalArgumentException("Unknown value type " + tag);
+        }
+    }
+
+    private static void writeTables(DataOutputStream out, Map<String, Integer> strings,
+            Map<Object, Integer> values, Map<String, Table> tables) throws IOException {
+        out.writeInt(tables.size());
+        for (Table t : tables.values()) {
+            out.writeInt(strings.get(t.namespace));
+            out.writeInt(t.size);
+            writeInts(out, t.resource, t.size);
+            writeInts(out, t.attrs, t.size + 1);
+            writeInts(out, t.dirs, t.size + 1);
+
+            out.writeInt(t.attrCount);
+            for (int i = 0; i < t.attrCount; i++) {
+                out.writeInt(strings.get(t.attrKeys[i]));
+            }
+            for (int i = 0; i < t.attrCount; i++) {
+                out.writeInt(values.get(t.attrValues[i]));
+            }
+
+            out.writeInt(t.dirCount);
+            for (int i = 0; i < t.dirCount; i++) {
+                out.writeInt(strings.get(t.dirKeys[i]));
+            }
+            for (int i = 0; i < t.dirCount; i++) {
+                out.writeInt(strings.get(t.dirValues[i]));
+            }
+        }
+    }
+
+    private static Map<String, Table> readTables(ByteBuffer buf, String[] strings, boolean[] shared,
+            Object[] values) {
+        int count = buf.getInt();
+        Map<String, Table> tables = new LinkedHashMap<>();
+        for (int n = 0; n < count; n++) {
+            Table t = new Table(share(strings, shared, buf.getInt()));
+            t.size = buf.getInt();
+            t.resource = readInts(buf, t.size);
+            t.attrs = readInts(buf, t.size + 1);
+            t.dirs = readInts(buf, t.size + 1);
+
+            t.attrCount = buf.getInt();
+            int[] keys = readInts(buf, t.attrCount);
+            int[] vals = readInts(buf, t.attrCount);
+            t.attrKeys = new String[t.attrCount];
+            t.attrValues = new Object[t.attrCount];
+            for (int i = 0; i < t.attrCount; i++) {
+                t.attrKeys[i] = share(strings, shared, keys[i]);
+                t.attrValues[i] = values[vals[i]];
+            }
+
+            t.dirCount = buf.getInt();
+            keys = readInts(buf, t.dirCount);
+            vals = readInts(buf, t.dirCount);
+            t.dirKeys = new String[t.dirCount];
+            t.dirValues = new String[t.dirCount];
+            for (int i = 0; i < t.dirCount; i++) {
+                t.dirKeys[i] = share(strings, shared, keys[i]);
+                t.dirValues[i] = share(strings, shared, vals[i]);
+            }
+            tables.put(t.namespace, t);
+        }
+        return tables;
+    }
+
+    /**
+     * @return the string, replaced in the table by its shared instance the first time it is used
+     */
+    private static String share(String[] strings, boolean[] shared, int i) {
+        if (!shared[i]) {
+            strings[i] = Interner.SHARED.intern(strings[i]);
+            shared[i] = true;
+        }
+        return strings[i];
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            out.writeInt(ints[i]);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buf, int length) {
+        int[] ints = new int[length];
+        buf.asIntBuffer().get(ints);
+        buf.position(buf.position() + length * 4);
+        return ints;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
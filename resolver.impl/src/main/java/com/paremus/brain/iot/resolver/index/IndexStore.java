@@ -0,0 +1,504 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import static java.util.Collections.emptyList;
+import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+import static org.osgi.framework.namespace.IdentityNamespace.IDENTITY_NAMESPACE;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+/**
+ * The parsed content of one or more indexes, held in columns.
+ * <p>
+ * Capabilities and requirements are grouped by namespace into a
+ * {@link Table} each. A table holds the owning resource, the attribute and
+ * directive offsets of every row in <code>int</code> arrays, with the
+ * (interned) keys and values in flat arrays. {@link Resource},
+ * {@link Capability} and {@link Requirement} objects are only created as
+ * views over the columns when they are asked for.
+ * <p>
+ * A store never changes once built. Changes from a delta feed are held in
+ * a further store, with the resources they remove masked out of the older
+ * ones, so views handed out before the change stay valid.
+ */
+final class IndexStore {
+
+    /**
+     * The columns holding every capability, or every requirement, in one namespace
+     */
+    static final class Table {
+        final String namespace;
+
+        int size;
+        // the owning resource of each row, in ascending order
+        int[] resource = new int[8];
+        // the start of each row's attributes and directives, size + 1 entries
+        int[] attrs = new int[9];
+        int[] dirs = new int[9];
+
+        int attrCount;
+        String[] attrKeys = new String[16];
+        Object[] attrValues = new Object[16];
+
+        int dirCount;
+        String[] dirKeys = new String[4];
+        String[] dirValues = new String[4];
+
+        Table(String namespace) {
+            this.namespace = namespace;
+        }
+
+        void startRow(int res) {
+            if (size + 1 == resource.length) {
+                resource = Arrays.copyOf(resource, resource.length * 2);
+                attrs = Arrays.copyOf(attrs, attrs.length * 2);
+                dirs = Arrays.copyOf(dirs, dirs.length * 2);
+            }
+            resource[size] = res;
+        }
+
+        void attribute(String key, Object value) {
+            if (attrCount == attrKeys.length) {
+                attrKeys = Arrays.copyOf(attrKeys, attrCount * 2);
+                attrValues = Arrays.copyOf(attrValues, attrCount * 2);
+            }
+            attrKeys[attrCount] = key;
+            attrValues[attrCount++] = value;
+        }
+
+        void directive(String key, String value) {
+            if (dirCount == dirKeys.length) {
+                dirKeys = Arrays.copyOf(dirKeys, dirCount * 2);
+                dirValues = Arrays.copyOf(dirValues, dirCount * 2);
+            }
+            dirKeys[dirCount] = key;
+            dirValues[dirCount++] = value;
+        }
+
+        void endRow() {
+            size++;
+            attrs[size] = attrCount;
+            dirs[size] = dirCount;
+        }
+
+        void trim() {
+            resource = Arrays.copyOf(resource, size);
+            attrs = Arrays.copyOf(attrs, size + 1);
+            dirs = Arrays.copyOf(dirs, size + 1);
+            attrKeys = Arrays.copyOf(attrKeys, attrCount);
+            attrValues = Arrays.copyOf(attrValues, attrCount);
+            dirKeys = Arrays.copyOf(dirKeys, dirCount);
+            dirValues = Arrays.copyOf(dirValues, dirCount);
+        }
+
+        /**
+         * @return the first row owned by the resource, or the row after
+         *         where it would be
+         */
+        int first(int res) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (resource[mid] < res) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        Map<String, Object> attributes(int row) {
+            return new Columns<>(attrKeys, attrValues, attrs[row], attrs[row + 1]);
+        }
+
+        Map<String, String> directives(int row) {
+            return new Columns<>(dirKeys, dirValues, dirs[row], dirs[row + 1]);
+        }
+    }
+
+    /**
+     * Appends the resources of the indexes, in document order
+     */
+    static final class Builder {
+        private final Map<String, Table> capabilities = new LinkedHashMap<>();
+        private final Map<String, Table> requirements = new LinkedHashMap<>();
+
+        private int resources;
+        private long generation = -1;
+        private Table current;
+
+        /**
+         * @param increment the generation counter of the index being read
+         */
+        void generation(long increment) {
+            generation = increment;
+        }
+
+        void startResource() {
+            resources++;
+        }
+
+        void startCapability(String namespace) {
+            current = capabilities.computeIfAbsent(namespace, Table::new);
+            current.startRow(resources - 1);
+        }
+
+        void startRequirement(String namespace) {
+            current = requirements.computeIfAbsent(namespace, Table::new);
+            current.startRow(resources - 1);
+        }
+
+        void attribute(String key, Object value) {
+            current.attribute(key, value);
+        }
+
+        void directive(String key, String value) {
+            current.directive(key, value);
+        }
+
+        void end() {
+            current.endRow();
+            current = null;
+        }
+
+        IndexStore build() {
+            capabilities.values().forEach(Table::trim);
+            requirements.values().forEach(Table::trim);
+            return new IndexStore(capabilities, requirements, resources, generation);
+        }
+    }
+
+    final Map<String, Table> capabilities;
+    final Map<String, Table> requirements;
+    // the increment of the index, or -1 if it has none
+    final long generation;
+    private final AtomicReferenceArray<ResourceView> resources;
+
+    IndexStore(Map<String, Table> capabilities, Map<String, Table> requirements, int resources, long generation) {
+        this.capabilities = capabilities;
+        this.requirements = requirements;
+        this.generation = generation;
+        this.resources = new AtomicReferenceArray<>(resources);
+    }
+
+    int size() {
+        return resources.length();
+    }
+
+    /**
+     * @param requirement the requirement to match
+     * @return views of the matching capabilities, in index order
+     */
+    List<Capability> findProviders(Requirement requirement) {
+        return findProviders(requirement, null);
+    }
+
+    /**
+     * @param requirement the requirement to match
+     * @param removed the resources to leave out, or <code>null</code>
+     * @return views of the matching capabilities, in index order
+     */
+    List<Capability> findProviders(Requirement requirement, BitSet removed) {
+        Table t = capabilities.get(requirement.getNamespace());
+        if (t == null) {
+            return emptyList();
+        }
+
+        Filter filter = null;
+        String f = requirement.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+        if (f != null) {
+            try {
+                filter = FrameworkUtil.createFilter(f);
+            } catch (InvalidSyntaxException e) {
+                // Nothing can match a broken filter
+                return emptyList();
+            }
+        }
+
+        List<Capability> result = new ArrayList<>();
+        for (int row = 0; row < t.size; row++) {
+            if (removed != null && removed.get(t.resource[row])) {
+                continue;
+            }
+            if (filter == null || filter.matches(t.attributes(row))) {
+                result.add(new CapabilityView(t, row));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the one view of the resource, so that views can be compared by identity
+     */
+    Resource resource(int res) {
+        ResourceView view = resources.get(res);
+        if (view == null) {
+            resources.compareAndSet(res, null, new ResourceView(res));
+            view = resources.get(res);
+        }
+        return view;
+    }
+
+    /**
+     * @return <code>true</code> if the resource is a view of this store
+     */
+    boolean owns(Resource resource) {
+        return resource instanceof ResourceView && ((ResourceView) resource).store() == this;
+    }
+
+    /**
+     * @return the number of the resource in this store, or -1 if it is not a view of this store
+     */
+    int indexOf(Resource resource) {
+        return owns(resource) ? ((ResourceView) resource).res : -1;
+    }
+
+    /**
+     * @param symbolicName the identity to look for
+     * @param version the version to look for
+     * @return the numbers of the resources with that identity and version
+     */
+    BitSet withIdentity(String symbolicName, Version version) {
+        BitSet found = new BitSet();
+        Table t = capabilities.get(IDENTITY_NAMESPACE);
+        if (t == null) {
+            return found;
+        }
+        for (int row = 0; row < t.size; row++) {
+            Map<String, Object> attrs = t.attributes(row);
+            if (symbolicName.equals(attrs.get(IDENTITY_NAMESPACE))
+                    && version.equals(toVersion(attrs.get(CAPABILITY_VERSION_ATTRIBUTE)))) {
+                found.set(t.resource[row]);
+            }
+        }
+        return found;
+    }
+
+    static Version toVersion(Object value) {
+        if (value instanceof Version) {
+            return (Version) value;
+        }
+        try {
+            return Version.parseVersion(value == null ? null : value.toString().trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private final class ResourceView implements Resource {
+        private final int res;
+
+        ResourceView(int res) {
+            this.res = res;
+        }
+
+        IndexStore store() {
+            return IndexStore.this;
+        }
+
+        @Override
+        public List<Capability> getCapabilities(String namespace) {
+            List<Capability> list = new ArrayList<>();
+            for (Table t : select(capabilities, namespace)) {
+                for (int row = t.first(res); row < t.size && t.resource[row] == res; row++) {
+                    list.add(new CapabilityView(t, row));
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
+
+        @Override
+        public List<Requirement> getRequirements(String namespace) {
+            List<Requirement> list = new ArrayList<>();
+            for (Table t : select(requirements, namespace)) {
+                for (int row = t.first(res); row < t.size && t.resource[row] == res; row++) {
+                    list.add(new RequirementView(t, row));
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
+
+        private Iterable<Table> select(Map<String, Table> tables, String namespace) {
+            if (namespace == null) {
+                return tables.values();
+            }
+            Table t = tables.get(namespace);
+            return t == null ? emptyList() : Collections.singletonList(t);
+        }
+
+        @Override
+        public String toString() {
+            List<Capability> identity = getCapabilities(IDENTITY_NAMESPACE);
+            if (identity.isEmpty()) {
+                return "resource " + res;
+            }
+            Map<String, Object> attrs = identity.get(0).getAttributes();
+            return attrs.get(IDENTITY_NAMESPACE) + ";version=" + attrs.get(CAPABILITY_VERSION_ATTRIBUTE);
+        }
+    }
+
+    private abstract class RowView {
+        final Table table;
+        final int row;
+
+        RowView(Table table, int row) {
+            this.table = table;
+            this.row = row;
+        }
+
+        public String getNamespace() {
+            return table.namespace;
+        }
+
+        public Map<String, String> getDirectives() {
+            return table.directives(row);
+        }
+
+        public Map<String, Object> getAttributes() {
+            return table.attributes(row);
+        }
+
+        public Resource getResource() {
+            return resource(table.resource[row]);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(table) * 31 + row;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || obj.getClass() != getClass()) {
+                return false;
+            }
+            RowView other = (RowView) obj;
+            return table == other.table && row == other.row;
+        }
+
+        @Override
+        public String toString() {
+            return table.namespace + getAttributes() + getDirectives();
+        }
+    }
+
+    private final class CapabilityView extends RowView implements Capability {
+        CapabilityView(Table table, int row) {
+            super(table, row);
+        }
+    }
+
+    private final class RequirementView extends RowView implements Requirement {
+        RequirementView(Table table, int row) {
+            super(table, row);
+        }
+    }
+
+    /**
+     * A read only map over a range of a key column and a value column
+     */
+    private static final class Columns<V> extends AbstractMap<String, V> {
+        private final String[] keys;
+        private final Object[] values;
+        private final int start;
+        private final int end;
+
+        Columns(String[] keys, Object[] values, int start, int end) {
+            this.keys = keys;
+            this.values = values;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public V get(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : (V) values[i];
+        }
+
+        private int indexOf(Object key) {
+            for (int i = start; i < end; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Set<Entry<String, V>> entrySet() {
+            return new AbstractSet<Entry<String, V>>() {
+                @Override
+                public int size() {
+                    return end - start;
+                }
+
+                @Override
+                public Iterator<Entry<String, V>> iterator() {
+                    return new Iterator<Entry<String, V>>() {
+                        int i = start;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < end;
+                        }
+
+                        @SuppressWarnings("unchecked")
+                        @Override
+                        public Entry<String, V> next() {
+                            if (i >= end) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, V> e = new SimpleImmutableEntry<>(keys[i], (V) values[i]);
+                            i++;
+                            return e;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
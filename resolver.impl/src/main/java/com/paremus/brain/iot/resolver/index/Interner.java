@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.index;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A weak canonicalizing table for attribute keys and values.
+ * <p>
+ * The {@link #SHARED} table is used by every index loaded in the framework,
+ * whether parsed or read from a snapshot, so that the namespaces, package
+ * names, versions, filters and other values repeated across indexes, and
+ * across reloads of one index, are held once. A value stays in the table
+ * only as long as something else refers to it.
+ * <p>
+ * Each entry is a single weak reference to its value, chained in a hash
+ * table, so that the table costs as little as possible for the values
+ * which turn out not to repeat. The table is split into stripes with a
+ * lock each, so that indexes loaded concurrently rarely wait on each other.
+ */
+final class Interner {
+
+    static final Interner SHARED = new Interner(16);
+
+    private static final class Ref extends WeakReference<Object> {
+        final int hash;
+        Ref next;
+
+        Ref(Object value, int hash, Ref next, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    private static final class Stripe {
+        final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        Ref[] table = new Ref[64];
+        int size;
+    }
+
+    private final Stripe[] stripes;
+
+    /**
+     * @param stripes the number of stripes, rounded up to a power of two, at most 256
+     */
+    Interner(int stripes) {
+        int n = 1;
+        while (n < Math.min(stripes, 256)) {
+            n <<= 1;
+        }
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @param value a value, which must not be changed afterwards
+     * @return the canonical value equal to <code>value</code>
+     */
+    @SuppressWarnings("unchecked")
+    <T> T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+        int h = value.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        Stripe s = stripes[(h >>> 24) & (stripes.length - 1)];
+        synchronized (s) {
+            expunge(s);
+            Ref[] table = s.table;
+            int i = h & (table.length - 1);
+            for (Ref r = table[i]; r != null; r = r.next) {
+                Object existing;
+                if (r.hash == h && (existing = r.get()) != null && existing.equals(value)) {
+                    return (T) existing;
+                }
+            }
+            table[i] = new Ref(value, h, table[i], s.queue);
+            if (++s.size > table.length - (table.length >>> 2)) {
+                resize(s);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * @return the number of values held, including any not yet cleared
+     */
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                expunge(s);
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Unlink the entries whose values have been collected
+     */
+    private static void expunge(Stripe s) {
+        for (Ref r; (r = (Ref) s.queue.poll()) != null;) {
+            int i = r.hash & (s.table.length - 1);
+            Ref prev = null;
+            for (Ref e = s.table[i]; e != null; prev = e, e = e.next) {
+                if (e == r) {
+                    if (prev == null) {
+                        s.table[i] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                    s.size--;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void resize(Stripe s) {
+        Ref[] old = s.table;
+        Ref[] table = new Ref[old.length * 2];
+        for (Ref head : old) {
+            for (Ref r = head; r != null;) {
+                Ref next = r.next;
+                int i = r.hash & (table.length - 1);
+                r.next = table[i];
+                table[i] = r;
+                r = next;
+            }
+        }
+        s.table = table;
+    }
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.osgi.resource.Resource;
+
+/**
+ * The resources added to and removed from a repository by the delta feeds
+ * applied since an earlier copy of it.
+ * <p>
+ * Resources which were not changed are the same objects in both copies, so
+ * anything derived from the earlier copy only needs to be updated for the
+ * resources listed here.
+ */
+public final class ResourceChanges {
+
+    private final List<Resource> added;
+    private final List<Resource> removed;
+
+    ResourceChanges(List<Resource> added, List<Resource> removed) {
+        this.added = Collections.unmodifiableList(new ArrayList<>(added));
+        this.removed = Collections.unmodifiableList(new ArrayList<>(removed));
+    }
+
+    /**
+     * @return the resources in the later copy which were not in the earlier one
+     */
+    public List<Resource> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the resources of the earlier copy which are not in the later one
+     */
+    public List<Resource> getRemoved() {
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "added " + added + ", removed " + removed;
+    }
+}
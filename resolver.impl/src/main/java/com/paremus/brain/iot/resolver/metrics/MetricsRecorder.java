@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import eu.brain.iot.installer.api.MetricsDTO;
+import eu.brain.iot.installer.api.TimerDTO;
+
+/**
+ * The counters, gauges and timers of one module.
+ * <p>
+ * Recording is cheap and never blocks, so it can be done on hot paths.
+ * Gauges are sampled when a snapshot is taken.
+ */
+public class MetricsRecorder {
+
+    private final String source;
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+        volatile long last;
+
+        void record(long millis) {
+            count.increment();
+            total.add(millis);
+            max.accumulateAndGet(millis, Math::max);
+            last = millis;
+        }
+    }
+
+    /**
+     * @param source the name of the module, reported in every snapshot
+     */
+    public MetricsRecorder(String source) {
+        this.source = source;
+    }
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * @return the current value of the counter, zero if it has not been incremented
+     */
+    public long count(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Report a value sampled when each snapshot is taken
+     *
+     * @param name the gauge name
+     * @param value supplies the value, must be thread safe
+     */
+    public void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Report the fraction of lookups which were hits, or zero before any lookups
+     *
+     * @param name the gauge name
+     * @param hits the counter of hits
+     * @param misses the counter of misses
+     */
+    public void ratio(String name, String hits, String misses) {
+        gauge(name, () -> {
+            long h = count(hits);
+            long total = h + count(misses);
+            return total == 0 ? 0 : (double) h / total;
+        });
+    }
+
+    /**
+     * Record the duration of an operation
+     *
+     * @param name the timer name
+     * @param millis the duration in milliseconds
+     */
+    public void record(String name, long millis) {
+        timers.computeIfAbsent(name, k -> new Timer()).record(millis);
+    }
+
+    /**
+     * Record the duration of an operation that started at the given time
+     *
+     * @param name the timer name
+     * @param startNanos the {@link System#nanoTime()} the operation started at
+     * @return the duration in milliseconds
+     */
+    public long stop(String name, long startNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        record(name, millis);
+        return millis;
+    }
+
+    /**
+     * @return the current values of the metrics, sorted by name
+     */
+    public MetricsDTO snapshot() {
+        MetricsDTO dto = new MetricsDTO();
+        dto.source = source;
+        dto.timestamp = System.currentTimeMillis();
+        dto.counters = new TreeMap<>();
+        counters.forEach((k, v) -> dto.counters.put(k, v.sum()));
+        dto.gauges = new TreeMap<>();
+        gauges.forEach((k, v) -> dto.gauges.put(k, v.getAsDouble()));
+        dto.timers = new TreeMap<>();
+        timers.forEach((k, v) -> {
+            TimerDTO t = new TimerDTO();
+            t.count = v.count.sum();
+            t.totalMillis = v.total.sum();
+            t.maxMillis = v.max.get();
+            t.lastMillis = v.last;
+            dto.timers.put(k, t);
+        });
+        return dto;
+    }
+}
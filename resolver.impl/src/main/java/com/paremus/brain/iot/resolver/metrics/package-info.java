@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+/**
+ * Recording of counters, gauges and timers, reported as
+ * {@link eu.brain.iot.installer.api.MetricsDTO} snapshots.
+ */
+@org.osgi.annotation.bundle.Export
+@org.osgi.annotation.versioning.Version("0.1.0")
+package com.paremus.brain.iot.resolver.metrics;
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.osgi.resource.CapReqBuilder;
+
+public class CompactRepositoryTest {
+
+    private static final String INDEX = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<repository xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' name='test' increment='0'>\n"
+            + resource("a", "1.0.0", "bundles/a-1.0.0.jar")
+            + resource("a", "1.1.0", "bundles/a-1.1.0.jar")
+            + resource("b", "2.0.0", "http://example.com/b.jar")
+            + "</repository>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String resource(String bsn, String version, String url) {
+        return "<resource>\n"
+                + " <capability namespace='osgi.identity'>\n"
+                + "  <attribute name='osgi.identity' value='" + bsn + "'/>\n"
+                + "  <attribute name='version' type='Version' value='" + version + "'/>\n"
+                + "  <attribute name='type' value='osgi.bundle'/>\n"
+                + " </capability>\n"
+                + " <capability namespace='osgi.content'>\n"
+                + "  <attribute name='url' value='" + url + "'/>\n"
+                + "  <attribute name='mime' value='application/vnd.osgi.bundle'/>\n"
+                + "  <attribute name='size' type='Long' value='1024'/>\n"
+                + " </capability>\n"
+                + " <capability namespace='eu.brain.iot.behaviour'>\n"
+                + "  <attribute name='name' value='" + bsn + " behaviour'/>\n"
+                + "  <attribute name='consumed' type='List&lt;String&gt;' value='test.Event, test.Other\\,Event'/>\n"
+                + " </capability>\n"
+                + " <requirement namespace='osgi.wiring.package'>\n"
+                + "  <directive name='filter' value='(osgi.wiring.package=org.example)'/>\n"
+                + " </requirement>\n"
+                + "</resource>\n";
+    }
+
+    @Test
+    public void testFindProviders() throws Exception {
+        File index = write("index.xml", false);
+        CompactRepository repo = new CompactRepository("test", singletonList(index.toURI()), null, null, 0);
+
+        assertEquals(3, repo.size());
+
+        Requirement req = new CapReqBuilder("osgi.identity")
+                .addDirective("filter", "(&(osgi.identity=a)(version>=1.1.0))")
+                .buildSyntheticRequirement();
+        Collection<Capability> caps = repo.findProviders(singleton(req)).get(req);
+        assertEquals(1, caps.size());
+
+        Capability cap = caps.iterator().next();
+        assertEquals(new Version("1.1.0"), cap.getAttributes().get("version"));
+
+        // views of one resource are the same object, and see all of its parts
+        Resource resource = cap.getResource();
+        assertSame(resource, resource.getCapabilities("osgi.identity").get(0).getResource());
+        assertEquals(3, resource.getCapabilities(null).size());
+        assertEquals(1, resource.getRequirements("osgi.wiring.package").size());
+        assertEquals("(osgi.wiring.package=org.example)",
+                resource.getRequirements(null).get(0).getDirectives().get("filter"));
+
+        // relative content is resolved against the index
+        Object url = resource.getCapabilities("osgi.content").get(0).getAttributes().get("url");
+        assertEquals(new File(folder.getRoot(), "bundles/a-1.1.0.jar").toURI().toString(), url);
+        assertEquals(1024L, resource.getCapabilities("osgi.content").get(0).getAttributes().get("size"));
+    }
+
+    @Test
+    public void testGzipAndListValues() throws Exception {
+        File index = write("index.xml.gz", true);
+        CompactRepository repo = new CompactRepository("test", singletonList(index.toURI()), null, null, 0);
+
+        Requirement req = new CapReqBuilder("eu.brain.iot.behaviour")
+                .addDirective("filter", "(consumed=test.Event)")
+                .buildSyntheticRequirement();
+        Collection<Capability> caps = repo.findProviders(singleton(req)).get(req);
+        assertEquals(3, caps.size());
+
+        List<?> consumed = (List<?>) caps.iterator().next().getAttributes().get("consumed");
+        assertEquals(Arrays.asList("test.Event", "test.Other,Event"), consumed);
+
+        // equal values are held once
+        Capability[] all = caps.toArray(new Capability[0]);
+        assertSame(consumed, all[2].getAttributes().get("consumed"));
+    }
+
+    @Test
+    public void testDeltaFeedAppliedOnLoad() throws Exception {
+        File index = write("index.xml", false);
+        writeDelta(index, 0, 2, "<add increment='1'>" + resource("c", "1.0.0", "c.jar") + "</add>\n"
+                + "<remove increment='2' identity='a' version='1.0'/>\n");
+
+        CompactRepository repo = new CompactRepository("test", singletonList(index.toURI()), null, null, 0);
+
+        assertEquals(3, repo.size());
+        assertEquals(2, repo.getGeneration());
+        assertTrue(repo.hasDeltaFeed());
+        assertEquals(0, identities(repo, "(&(osgi.identity=a)(version=1.0.0))").size());
+        assertEquals(1, identities(repo, "(osgi.identity=c)").size());
+    }
+
+    @Test
+    public void testUpdateSharesUnchangedResources() throws Exception {
+        File index = write("index.xml", false);
+        writeDelta(index, 0, 0, "");
+
+        CompactRepository repo = new CompactRepository("test", singletonList(index.toURI()), null, null, 0);
+        assertEquals(3, repo.size());
+        assertSame(repo, repo.update());
+
+        writeDelta(index, 0, 3, "<add increment='1'>" + resource("c", "1.0.0", "c.jar") + "</add>\n"
+                + "<remove increment='2' identity='a' version='1.0.0'/>\n"
+                // replaces the resource added at increment 1
+                + "<add increment='3'>" + resource("c", "1.0.0", "c2.jar") + "</add>\n");
+
+        CompactRepository updated = repo.update();
+        assertNotSame(repo, updated);
+        assertEquals(3, updated.size());
+        assertEquals(3, updated.getGeneration());
+
+        // the earlier copy is unchanged
+        assertEquals(3, repo.size());
+        assertEquals(1, identities(repo, "(&(osgi.identity=a)(version=1.0.0))").size());
+
+        Resource a11 = identities(repo, "(&(osgi.identity=a)(version=1.1.0))").iterator().next().getResource();
+        assertSame(a11, identities(updated, "(&(osgi.identity=a)(version=1.1.0))").iterator().next().getResource());
+        assertTrue(updated.provides(a11));
+
+        Resource a10 = identities(repo, "(&(osgi.identity=a)(version=1.0.0))").iterator().next().getResource();
+        assertFalse(updated.provides(a10));
+
+        ResourceChanges changes = updated.changesSince(repo);
+        assertEquals(singletonList(a10), changes.getRemoved());
+        assertEquals(1, changes.getAdded().size());
+        Object url = changes.getAdded().get(0).getCapabilities("osgi.content").get(0).getAttributes().get("url");
+        assertEquals(new File(folder.getRoot(), "c2.jar").toURI().toString(), url);
+
+        // nothing new
+        assertSame(updated, updated.update());
+        assertNull(repo.changesSince(updated));
+    }
+
+    @Test
+    public void testGenerationJumpReloads() throws Exception {
+        File index = write("index.xml", false);
+        writeDelta(index, 0, 1, "<add increment='1'>" + resource("c", "1.0.0", "c.jar") + "</add>\n");
+
+        CompactRepository repo = new CompactRepository("test", singletonList(index.toURI()), null, null, 0);
+        assertEquals(4, repo.size());
+
+        // the publisher rebuilt the index, and the feed starts after the copy held
+        try (OutputStream out = new FileOutputStream(index)) {
+            out.write(INDEX.replace("increment='0'", "increment='5'").getBytes(StandardCharsets.UTF_8));
+        }
+        writeDelta(index, 5, 6, "<remove increment='6' identity='b' version='2.0.0'/>\n");
+
+        CompactRepository updated = repo.update();
+        assertEquals(6, updated.getGeneration());
+        assertEquals(2, updated.size());
+        assertNull(updated.changesSince(repo));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedRepository() throws Exception {
+        File index = write("index.xml", false);
+        CompactRepository repo = new CompactRepository("test", singletonList(index.toURI()), null, null, 0);
+        assertTrue(repo.size() > 0);
+
+        repo.close();
+        repo.size();
+    }
+
+    private static Collection<Capability> identities(CompactRepository repo, String filter) {
+        Requirement req = new CapReqBuilder("osgi.identity").addDirective("filter", filter)
+                .buildSyntheticRequirement();
+        return repo.findProviders(singleton(req)).get(req);
+    }
+
+    private static void writeDelta(File index, long base, long increment, String records) throws Exception {
+        String delta = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<delta xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' base='" + base + "' increment='"
+                + increment + "'>\n" + records + "</delta>\n";
+        try (OutputStream out = new FileOutputStream(new File(CompactRepository.deltaFeedFor(index.toURI())))) {
+            out.write(delta.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private File write(String name, boolean gzip) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        try (OutputStream out = gzip ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file)) {
+            out.write(INDEX.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+import com.paremus.brain.iot.resolver.index.IndexHealth.State;
+
+import aQute.bnd.osgi.resource.CapReqBuilder;
+
+public class IndexFederationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final AtomicLong now = new AtomicLong(1000);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testResultsAreTaggedWithTheirIndex() throws Exception {
+        URI a = write("a.xml", "bundle.a");
+        URI b = write("b.xml", "bundle.b");
+        IndexFederation federation = new IndexFederation(null, null, null, executor, 2, 10000, now::get);
+
+        FederatedRepository repo = federation.repository("test", Arrays.asList(a, b), false);
+        Requirement req = new CapReqBuilder("osgi.identity").buildSyntheticRequirement();
+        List<Capability> caps = (List<Capability>) repo.findProviders(singleton(req)).get(req);
+
+        assertEquals(2, caps.size());
+        assertEquals(a, repo.originOf(caps.get(0).getResource()));
+        assertEquals(b, repo.originOf(caps.get(1).getResource()));
+
+        assertEquals(2, federation.getHealth().size());
+        for (IndexHealth h : federation.getHealth()) {
+            assertEquals(State.HEALTHY, h.getState(now.get()));
+            assertEquals(1, h.getResources());
+        }
+    }
+
+    @Test
+    public void testFailingIndexServesLastGoodCopy() throws Exception {
+        URI a = write("a.xml", "bundle.a");
+        URI b = write("b.xml", "bundle.b");
+        IndexFederation federation = new IndexFederation(null, null, null, executor, 2, 10000, now::get);
+
+        FederatedRepository first = federation.repository("test", Arrays.asList(a, b), true);
+        assertEquals(Arrays.asList(a, b), first.getIndexes());
+
+        new File(b).delete();
+        for (int i = 0; i < 2; i++) {
+            FederatedRepository next = federation.repository("test", Arrays.asList(a, b), true);
+            assertEquals(Arrays.asList(a, b), next.getIndexes());
+        }
+        IndexHealth health = health(federation, b);
+        assertEquals(State.OPEN, health.getState(now.get()));
+        assertEquals(2, health.getFailures());
+
+        // while open the index isn't tried, after the retry interval it is
+        write("b.xml", "bundle.b");
+        federation.repository("test", Arrays.asList(a, b), true).getIndexes();
+        assertEquals(2, health.getFailures());
+
+        now.addAndGet(10000);
+        federation.repository("test", Arrays.asList(a, b), true).getIndexes();
+        assertEquals(State.HEALTHY, health.getState(now.get()));
+    }
+
+    @Test
+    public void testUnloadedIndexIsLeftOut() throws Exception {
+        URI a = write("a.xml", "bundle.a");
+        URI missing = new File(folder.getRoot(), "missing.xml").toURI();
+        IndexFederation federation = new IndexFederation(null, null, null, executor, 2, 10000, now::get);
+
+        FederatedRepository repo = federation.repository("test", Arrays.asList(missing, a), false);
+        assertEquals(Arrays.asList(a), repo.getIndexes());
+        assertEquals(State.FAILING, health(federation, missing).getState(now.get()));
+        assertEquals(-1, health(federation, missing).getResources());
+
+        // an index loaded before is reused unless revalidation is asked for
+        FederatedRepository again = federation.repository("test", Arrays.asList(a), false);
+        Requirement req = new CapReqBuilder("osgi.identity").buildSyntheticRequirement();
+        assertSame(repo.findProviders(singleton(req)).get(req).iterator().next().getResource(),
+                again.findProviders(singleton(req)).get(req).iterator().next().getResource());
+    }
+
+    @Test
+    public void testRevalidationAppliesDeltaFeed() throws Exception {
+        File index = new File(folder.getRoot(), "a.xml");
+        writeFile(index, "<repository xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' increment='1'>"
+                + identity("bundle.a") + "</repository>");
+        File delta = new File(CompactRepository.deltaFeedFor(index.toURI()));
+        writeFile(delta, "<delta xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' base='1' increment='1'/>");
+        IndexFederation federation = new IndexFederation(null, null, null, executor, 2, 10000, now::get);
+
+        FederatedRepository first = federation.repository("test", Arrays.asList(index.toURI()), true);
+        first.getIndexes();
+        assertEquals(1, health(federation, index.toURI()).getResources());
+
+        writeFile(delta, "<delta xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' base='1' increment='2'>"
+                + "<add increment='2'>" + identity("bundle.b") + "</add></delta>");
+        FederatedRepository second = federation.repository("test", Arrays.asList(index.toURI()), true);
+        second.getIndexes();
+        assertEquals(2, health(federation, index.toURI()).getResources());
+
+        ResourceChanges changes = second.changesSince(first);
+        assertEquals(1, changes.getAdded().size());
+        assertEquals(0, changes.getRemoved().size());
+        assertEquals("bundle.b", changes.getAdded().get(0).getCapabilities("osgi.identity").get(0)
+                .getAttributes().get("osgi.identity"));
+        assertEquals(index.toURI(), second.originOf(changes.getAdded().get(0)));
+    }
+
+    @Test
+    public void testRetainForgetsRemovedIndexes() throws Exception {
+        URI a = write("a.xml", "bundle.a");
+        URI b = write("b.xml", "bundle.b");
+        IndexFederation federation = new IndexFederation(null, null, null, executor, 2, 10000, now::get);
+
+        federation.repository("test", Arrays.asList(a, b), false).getIndexes();
+        CompactRepository loaded = health(federation, b).lastGood();
+        assertEquals(2, federation.getHealth().size());
+
+        federation.retain(Arrays.asList(a));
+        assertEquals(1, federation.getHealth().size());
+        assertEquals(a, federation.getHealth().get(0).getIndex());
+
+        // an index configured again is loaded afresh rather than from the forgotten copy
+        federation.repository("test", Arrays.asList(a, b), false).getIndexes();
+        assertNotSame(loaded, health(federation, b).lastGood());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoIndexesLoaded() throws Exception {
+        URI missing = new File(folder.getRoot(), "missing.xml").toURI();
+        new IndexFederation(null, null, null, executor, 2, 10000, now::get)
+                .repository("test", Arrays.asList(missing), false)
+                .getIndexes();
+    }
+
+    private static IndexHealth health(IndexFederation federation, URI index) {
+        return federation.getHealth().stream().filter(h -> h.getIndex().equals(index)).findFirst().get();
+    }
+
+    private URI write(String name, String bsn) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        writeFile(file, "<repository xmlns='http://www.osgi.org/xmlns/repository/v1.0.0'>" + identity(bsn)
+                + "</repository>");
+        return file.toURI();
+    }
+
+    private static String identity(String bsn) {
+        return "<resource><capability namespace='osgi.identity'><attribute name='osgi.identity' value='" + bsn
+                + "'/></capability></resource>";
+    }
+
+    private static void writeFile(File file, String content) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.index;
+
+import static com.paremus.brain.iot.resolver.index.IndexSnapshotTest.requirement;
+import static com.paremus.brain.iot.resolver.index.IndexSnapshotTest.writeIndex;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collection;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * Compares the time to the first query of a large index when it is parsed
+ * from XML and when it is loaded from a snapshot. Not part of the default
+ * test run, use <code>mvn test -Dtest=IndexSnapshotBenchmark</code>.
+ */
+public class IndexSnapshotBenchmark {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStartup() throws Exception {
+        File index = writeIndex(folder.newFile("large.xml"), 10000);
+        File snapshots = folder.newFolder("snapshots");
+        Requirement req = requirement("osgi.identity", "(osgi.identity=bundle.9999)");
+
+        long xml = Long.MAX_VALUE;
+        long snapshot = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            CompactRepository.forgetLoaded();
+            long start = System.nanoTime();
+            Collection<Capability> found = new CompactRepository("xml", singletonList(index.toURI()), null, null, 0)
+                    .findProviders(singleton(req)).get(req);
+            xml = Math.min(xml, System.nanoTime() - start);
+            assertEquals(1, found.size());
+
+            // The first run writes the snapshot
+            new CompactRepository("snapshot", singletonList(index.toURI()), null, null, snapshots, 0).size();
+            CompactRepository.forgetLoaded();
+
+            start = System.nanoTime();
+            found = new CompactRepository("snapshot", singletonList(index.toURI()), null, null, snapshots, 0)
+                    .findProviders(singleton(req)).get(req);
+            snapshot = Math.min(snapshot, System.nanoTime() - start);
+            assertEquals(1, found.size());
+        }
+
+        System.out.printf("First query of a 10000 resource index: XML %d ms, snapshot %d ms%n",
+                xml / 1000000, snapshot / 1000000);
+    }
+}
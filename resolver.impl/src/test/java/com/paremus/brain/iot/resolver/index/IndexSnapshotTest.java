@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+package com.paremus.brain.iot.resolver.index;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+
+import aQute.bnd.osgi.resource.CapReqBuilder;
+
+public class IndexSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        File index = writeIndex(folder.newFile("index.xml"), 20);
+        File snapshots = folder.newFolder("snapshots");
+
+        CompactRepository parsed = new CompactRepository("test", singletonList(index.toURI()), null, null, snapshots, 0);
+        List<String> before = describe(parsed);
+        assertEquals(1, snapshots.listFiles().length);
+
+        CompactRepository.forgetLoaded();
+        CompactRepository loaded = new CompactRepository("test", singletonList(index.toURI()), null, null, snapshots, 0);
+        assertEquals(before, describe(loaded));
+
+        Requirement req = requirement("osgi.identity", "(&(osgi.identity=bundle.7)(version>=1.0.0))");
+        Capability cap = loaded.findProviders(singleton(req)).get(req).iterator().next();
+        assertEquals(new Version(1, 7, 0, "qualifier"), cap.getAttributes().get("version"));
+        assertEquals(Arrays.asList(7L, 8L), cap.getResource().getCapabilities("test").get(0).getAttributes().get("longs"));
+    }
+
+    @Test
+    public void testChangedIndexIgnoresSnapshot() throws Exception {
+        File index = writeIndex(folder.newFile("index.xml"), 5);
+        File snapshots = folder.newFolder("snapshots");
+
+        assertEquals(5, new CompactRepository("test", singletonList(index.toURI()), null, null, snapshots, 0).size());
+        File snapshot = snapshots.listFiles()[0];
+
+        List<String> keys = singletonList(index.toURI() + "#unknown");
+        assertNull(IndexSnapshot.read(snapshot, keys));
+
+        writeIndex(index, 6);
+        assertEquals(6, new CompactRepository("test", singletonList(index.toURI()), null, null, snapshots, 0).size());
+    }
+
+    /**
+     * The second load of an unchanged index reads the snapshot the first
+     * load wrote, without parsing the XML. See {@link IndexSnapshotBenchmark}
+     * for the time this saves.
+     */
+    @Test
+    public void testSnapshotSkipsParse() throws Exception {
+        File index = writeIndex(folder.newFile("index.xml"), 10);
+        File snapshots = folder.newFolder("snapshots");
+        long misses = counter("index.cache.misses");
+        long hits = counter("index.snapshot.hits");
+
+        assertEquals(10, new CompactRepository("xml", singletonList(index.toURI()), null, null, snapshots, 0).size());
+        assertEquals(misses + 1, counter("index.cache.misses"));
+        assertEquals(hits, counter("index.snapshot.hits"));
+        assertEquals(1, snapshots.listFiles().length);
+        assertTrue(snapshots.listFiles()[0].length() > 0);
+
+        CompactRepository.forgetLoaded();
+        assertEquals(10, new CompactRepository("snapshot", singletonList(index.toURI()), null, null, snapshots, 0).size());
+        assertEquals(misses + 1, counter("index.cache.misses"));
+        assertEquals(hits + 1, counter("index.snapshot.hits"));
+    }
+
+    @Test
+    public void testSameContentSharesStore() throws Exception {
+        File index = writeIndex(folder.newFile("index.xml"), 5);
+        CompactRepository first = new CompactRepository("first", singletonList(index.toURI()), null, null, 0);
+        CompactRepository second = new CompactRepository("second", singletonList(index.toURI()), null, null, 0);
+        long hits = counter("index.store.hits");
+
+        Requirement req = requirement("osgi.identity", "(osgi.identity=bundle.3)");
+        assertSame(first.findProviders(singleton(req)).get(req).iterator().next().getResource(),
+                second.findProviders(singleton(req)).get(req).iterator().next().getResource());
+        assertEquals(hits + 1, counter("index.store.hits"));
+    }
+
+    private static long counter(String name) {
+        return CompactRepository.getMetrics().counters.getOrDefault(name, 0L);
+    }
+
+    static Requirement requirement(String namespace, String filter) throws Exception {
+        return new CapReqBuilder(namespace).addDirective("filter", filter).buildSyntheticRequirement();
+    }
+
+    private static List<String> describe(CompactRepository repo) throws Exception {
+        Requirement req = new CapReqBuilder("osgi.identity").buildSyntheticRequirement();
+        List<String> list = new ArrayList<>();
+        for (Capability cap : repo.findProviders(singleton(req)).get(req)) {
+            Resource r = cap.getResource();
+            list.add(r.getCapabilities(null) + " " + r.getRequirements(null));
+        }
+        return list;
+    }
+
+    static File writeIndex(File file, int resources) throws Exception {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+            w.write("<repository xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' name='test'>\n");
+            for (int i = 0; i < resources; i++) {
+                w.write("<resource>\n");
+                w.write(" <capability namespace='osgi.identity'>\n");
+                w.write("  <attribute name='osgi.identity' value='bundle." + i + "'/>\n");
+                w.write("  <attribute name='version' type='Version' value='1." + i + ".0.qualifier'/>\n");
+                w.write("  <attribute name='type' value='osgi.bundle'/>\n");
+                w.write(" </capability>\n");
+                w.write(" <capability namespace='osgi.content'>\n");
+                w.write("  <attribute name='url' value='bundle." + i + ".jar'/>\n");
+                w.write("  <attribute name='mime' value='application/vnd.osgi.bundle'/>\n");
+                w.write(" </capability>\n");
+                w.write(" <capability namespace='osgi.wiring.package'>\n");
+                w.write("  <attribute name='osgi.wiring.package' value='org.example.p" + i + "'/>\n");
+                w.write("  <attribute name='version' type='Version' value='1.0.0'/>\n");
+                w.write("  <directive name='uses' value='org.osgi.framework'/>\n");
+                w.write(" </capability>\n");
+                w.write(" <capability namespace='test'>\n");
+                w.write("  <attribute name='longs' type='List&lt;Long&gt;' value='" + i + "," + (i + 1) + "'/>\n");
+                w.write("  <attribute name='weight' type='Double' value='0.5'/>\n");
+                w.write(" </capability>\n");
+                w.write(" <requirement namespace='osgi.wiring.package'>\n");
+                w.write("  <directive name='filter' value='(&amp;(osgi.wiring.package=org.osgi.framework)(version&gt;=1.9))'/>\n");
+                w.write(" </requirement>\n");
+                w.write("</resource>\n");
+            }
+            w.write("</repository>\n");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.index;
+
+import static com.paremus.brain.iot.resolver.index.InternerTest.parse;
+import static com.paremus.brain.iot.resolver.index.InternerTest.writeIndex;
+import static java.util.Collections.singletonList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares the heap held by a 10000 resource index loaded by two services,
+ * as the installer and the management service do, and by two indexes
+ * overlapping by half, with values interned per load (before) and shared
+ * (after). Not part of the default test run, use
+ * <code>mvn test -Dtest=InternerBenchmark</code>.
+ */
+public class InternerBenchmark {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHeapFootprint() throws Exception {
+        File a = writeIndex(folder.newFile("a.xml"), 0, 10000);
+        File b = writeIndex(folder.newFile("b.xml"), 5000, 15000);
+        List<Object> held = new ArrayList<>();
+
+        long base = usedHeap();
+        held.add(parse(a, new Interner(16)));
+        long one = usedHeap() - base;
+        held.add(parse(a, new Interner(16)));
+        long twiceBefore = usedHeap() - base;
+        held.clear();
+
+        base = usedHeap();
+        for (int i = 0; i < 2; i++) {
+            CompactRepository repo = new CompactRepository("service " + i, singletonList(a.toURI()), null, null, 0);
+            repo.size();
+            held.add(repo);
+        }
+        long twiceAfter = usedHeap() - base;
+        held.clear();
+
+        base = usedHeap();
+        held.add(parse(a, new Interner(16)));
+        held.add(parse(b, new Interner(16)));
+        long overlapBefore = usedHeap() - base;
+        held.clear();
+
+        base = usedHeap();
+        Interner shared = new Interner(16);
+        held.add(parse(a, shared));
+        held.add(parse(b, shared));
+        long overlapAfter = usedHeap() - base;
+
+        System.out.printf("Heap held by a 10000 resource index: %d KB; loaded by two services: before %d KB, "
+                + "after %d KB; with a second index overlapping by half: before %d KB, after %d KB (%d held)%n",
+                one / 1024, twiceBefore / 1024, twiceAfter / 1024, overlapBefore / 1024, overlapAfter / 1024,
+                held.size());
+    }
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.index;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Version;
+
+public class InternerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCanonicalValues() throws Exception {
+        Interner interner = new Interner(4);
+
+        String a = new String("org.example");
+        String b = new String("org.example");
+        assertNotSame(a, b);
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(b));
+
+        Version v = interner.intern(new Version(1, 2, 3));
+        assertSame(v, interner.intern(Version.parseVersion("1.2.3")));
+    }
+
+    @Test
+    public void testUnusedValuesAreDropped() throws Exception {
+        Interner interner = new Interner(1);
+        for (int i = 0; i < 1000; i++) {
+            interner.intern(new String("value." + i));
+        }
+
+        for (int i = 0; i < 10 && interner.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(0, interner.size());
+    }
+
+    @Test
+    public void testIndexesShareValues() throws Exception {
+        File a = IndexSnapshotTest.writeIndex(folder.newFile("a.xml"), 10);
+        File b = IndexSnapshotTest.writeIndex(folder.newFile("b.xml"), 10);
+        Interner interner = new Interner(4);
+
+        IndexStore first = parse(a, interner);
+        IndexStore second = parse(b, interner);
+
+        IndexStore.Table t1 = first.capabilities.get("osgi.wiring.package");
+        IndexStore.Table t2 = second.capabilities.get("osgi.wiring.package");
+        assertSame(t1.namespace, t2.namespace);
+        for (int i = 0; i < t1.attrCount; i++) {
+            assertSame(t1.attrKeys[i], t2.attrKeys[i]);
+            if (t1.attrValues[i] instanceof Version) {
+                assertSame(t1.attrValues[i], t2.attrValues[i]);
+            }
+        }
+        for (int i = 0; i < t1.dirCount; i++) {
+            assertSame(t1.dirValues[i], t2.dirValues[i]);
+        }
+    }
+
+    /**
+     * The installer and the management service loading the same index share
+     * one store. See {@link InternerBenchmark} for the heap this saves.
+     */
+    @Test
+    public void testServicesShareStore() throws Exception {
+        File a = writeIndex(folder.newFile("a.xml"), 0, 100);
+        CompactRepository installer = new CompactRepository("installer", singletonList(a.toURI()), null, null, 0);
+        CompactRepository management = new CompactRepository("management", singletonList(a.toURI()), null, null, 0);
+
+        assertSame(installer.segments()[0], management.segments()[0]);
+    }
+
+    /**
+     * Indexes overlapping by half share the keys, directives and versions of
+     * the resources they have in common, but not plain attribute values,
+     * which are interned only within their own load
+     */
+    @Test
+    public void testOverlappingIndexesShareValues() throws Exception {
+        Interner shared = new Interner(4);
+        IndexStore first = parse(writeIndex(folder.newFile("a.xml"), 0, 100), shared);
+        IndexStore second = parse(writeIndex(folder.newFile("b.xml"), 50, 150), shared);
+
+        for (String ns : first.capabilities.keySet()) {
+            assertSharedRows(first.capabilities.get(ns), second.capabilities.get(ns), 50);
+        }
+        for (String ns : first.requirements.keySet()) {
+            assertSharedRows(first.requirements.get(ns), second.requirements.get(ns), 50);
+        }
+
+        IndexStore separate = parse(writeIndex(folder.newFile("c.xml"), 50, 150), new Interner(4));
+        IndexStore.Table t1 = second.capabilities.get("osgi.identity");
+        IndexStore.Table t2 = separate.capabilities.get("osgi.identity");
+        assertNotSame(t1.attrValues[t1.attrs[0] + 1], t2.attrValues[t2.attrs[0] + 1]);
+    }
+
+    /**
+     * Compare the rows of the resources in <code>first</code> from
+     * <code>offset</code> with the rows of the same resources in <code>second</code>
+     */
+    private static void assertSharedRows(IndexStore.Table first, IndexStore.Table second, int offset) {
+        assertSame(first.namespace, second.namespace);
+        int start = 0;
+        while (first.resource[start] < offset) {
+            start++;
+        }
+        for (int row = start; row < first.size; row++) {
+            int other = row - start;
+            for (int i = first.attrs[row], j = second.attrs[other]; i < first.attrs[row + 1]; i++, j++) {
+                assertSame(first.attrKeys[i], second.attrKeys[j]);
+                if (first.attrValues[i] instanceof Version) {
+                    assertSame(first.attrValues[i], second.attrValues[j]);
+                } else {
+                    assertEquals(first.attrValues[i], second.attrValues[j]);
+                }
+            }
+            for (int i = first.dirs[row], j = second.dirs[other]; i < first.dirs[row + 1]; i++, j++) {
+                assertSame(first.dirKeys[i], second.dirKeys[j]);
+                assertSame(first.dirValues[i], second.dirValues[j]);
+            }
+        }
+    }
+
+    static File writeIndex(File file, int from, int to) throws Exception {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write("<repository xmlns='http://www.osgi.org/xmlns/repository/v1.0.0' increment='1'>\n");
+            for (int i = from; i < to; i++) {
+                w.write("<resource>\n");
+                w.write(" <capability namespace='osgi.identity'>\n");
+                w.write("  <attribute name='osgi.identity' value='com.example.bundle" + i + "'/>\n");
+                w.write("  <attribute name='version' type='Version' value='1.0." + (i % 10) + "'/>\n");
+                w.write("  <attribute name='type' value='osgi.bundle'/>\n");
+                w.write(" </capability>\n");
+                w.write(" <capability namespace='osgi.content'>\n");
+                w.write("  <attribute name='url' value='bundles/com.example.bundle" + i + ".jar'/>\n");
+                w.write("  <attribute name='size' type='Long' value='" + (10000 + i) + "'/>\n");
+                w.write("  <attribute name='mime' value='application/vnd.osgi.bundle'/>\n");
+                w.write(" </capability>\n");
+                w.write(" <capability namespace='osgi.wiring.package'>\n");
+                w.write("  <attribute name='osgi.wiring.package' value='com.example.api" + i + "'/>\n");
+                w.write("  <attribute name='version' type='Version' value='1.0.0'/>\n");
+                w.write("  <directive name='uses' value='com.example.shared" + (i % 300) + "'/>\n");
+                w.write(" </capability>\n");
+                for (int k = 0; k < 6; k++) {
+                    String pkg = "com.example.shared" + ((i * 7 + k * 31) % 300);
+                    w.write(" <requirement namespace='osgi.wiring.package'>\n");
+                    w.write("  <directive name='filter' value='(&amp;(osgi.wiring.package=" + pkg
+                            + ")(version&gt;=1.0.0)(!(version&gt;=2.0.0)))'/>\n");
+                    w.write(" </requirement>\n");
+                }
+                w.write(" <requirement namespace='osgi.ee'>\n");
+                w.write("  <directive name='filter' value='(&amp;(osgi.ee=JavaSE)(version=1.8))'/>\n");
+                w.write(" </requirement>\n");
+                w.write("</resource>\n");
+            }
+            w.write("</repository>\n");
+        }
+        return file;
+    }
+
+    static IndexStore parse(File index, Interner interner) throws Exception {
+        IndexStore.Builder builder = new IndexStore.Builder();
+        try (InputStream in = new FileInputStream(index)) {
+            new IndexParser(builder, null, interner).parse(in, index.toURI());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (C) 2021 Paremus
+ * 
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ * 
+ * SPDX-License-Identifier: EPL-2.0
+ ******************************************************************************/
+
+
+package com.paremus.brain.iot.resolver.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import eu.brain.iot.installer.api.MetricsDTO;
+import eu.brain.iot.installer.api.TimerDTO;
+
+public class MetricsRecorderTest {
+
+    @Test
+    public void testCounters() {
+        MetricsRecorder metrics = new MetricsRecorder("test");
+        metrics.increment("a");
+        metrics.increment("a");
+        metrics.add("b", 40);
+
+        assertEquals(2, metrics.count("a"));
+        assertEquals(0, metrics.count("missing"));
+
+        MetricsDTO dto = metrics.snapshot();
+        assertEquals("test", dto.source);
+        assertEquals(Long.valueOf(2), dto.counters.get("a"));
+        assertEquals(Long.valueOf(40), dto.counters.get("b"));
+        assertTrue(dto.timestamp > 0);
+    }
+
+    @Test
+    public void testGaugesAreSampledAtSnapshot() {
+        MetricsRecorder metrics = new MetricsRecorder("test");
+        AtomicInteger depth = new AtomicInteger(3);
+        metrics.gauge("depth", depth::get);
+        metrics.ratio("hit_ratio", "hits", "misses");
+
+        assertEquals(3, metrics.snapshot().gauges.get("depth"), 0);
+        assertEquals(0, metrics.snapshot().gauges.get("hit_ratio"), 0);
+
+        depth.set(7);
+        metrics.add("hits", 3);
+        metrics.increment("misses");
+        MetricsDTO dto = metrics.snapshot();
+        assertEquals(7, dto.gauges.get("depth"), 0);
+        assertEquals(0.75, dto.gauges.get("hit_ratio"), 0);
+    }
+
+    @Test
+    public void testTimers() {
+        MetricsRecorder metrics = new MetricsRecorder("test");
+        metrics.record("t", 30);
+        metrics.record("t", 50);
+        metrics.record("t", 10);
+        assertTrue(metrics.stop("u", System.nanoTime()) >= 0);
+
+        TimerDTO t = metrics.snapshot().timers.get("t");
+        assertEquals(3, t.count);
+        assertEquals(90, t.totalMillis);
+        assertEquals(50, t.maxMillis);
+        assertEquals(10, t.lastMillis);
+        assertEquals(1, metrics.snapshot().timers.get("u").count);
+    }
+}